@@ -0,0 +1,363 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import common.ChatIF;
+import edu.seg2105.client.backend.ChatClient;
+import ocsf.common.LatencyHistogram;
+import ocsf.common.MessageCodec;
+import ocsf.common.ThreadMode;
+
+/**
+ * Drives a running <code> EchoServer </code> with many headless
+ * <code> ChatClient </code> instances and reports how fast their lines reach
+ * everyone they are broadcast to.
+ * <p>
+ * Clients log in at a steady rate, optionally join rooms of a given size, then
+ * send lines at a steady total rate: first for a warm-up period that is not
+ * measured, then for the measured period. Every line carries the time it was
+ * sent, so the recorder that every client displays to can tell how long each
+ * copy took to arrive. The latency of a copy is the fan-out latency: sending,
+ * the server's handling and broadcast, and the receiving client's reading.
+ * <p>
+ * The report is a single JSON object: the configuration, lines sent and copies
+ * received per second, p50/p99/p999 latency, and errors: connections refused,
+ * lines that could not be sent, connections lost, and errors reported by the
+ * server. It is printed, and also written to a file if one is given.
+ * <p>
+ * Usage: <code> java ocsf.bench.ChatLoadGenerator [name=value ...] </code>
+ * with these settings:
+ *
+ * <pre>
+ * host=localhost port=5555 codec=          the server, and its codec if it has one
+ * clients=1000 loginRate=200               clients, and how many log in per second
+ * roomSize=0                               clients per room, 0 to talk to everyone
+ * messageRate=1000 messageSize=64          lines sent per second by all clients, and characters per line
+ * warmup=10 duration=30                    seconds of warm-up and of measurement
+ * report=                                  a file to write the report to
+ * </pre>
+ *
+ * Every line a client sends is broadcast to every other client, or to its room,
+ * so the server writes about <code> messageRate </code> times the audience
+ * copies per second.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class ChatLoadGenerator {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Marks the timestamp in a line: the marker, the time the line was sent
+	 * in nanoseconds, then padding.
+	 */
+	private static final String STAMP = "~t";
+
+	/**
+	 * What a client displays to its recorder when its connection is lost.
+	 */
+	private static final String CONNECTION_LOST = "~connection lost";
+
+	/**
+	 * How often the sender wakes up to send the lines that are due.
+	 */
+	private static final long SEND_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * How long copies may take to arrive after the last measured line.
+	 */
+	private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0)
+				throw new IllegalArgumentException("expected name=value: " + arg);
+			settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+
+		String host = setting(settings, "host", "localhost");
+		int port = Integer.parseInt(setting(settings, "port", "5555"));
+		String codecName = setting(settings, "codec", "");
+		MessageCodec codec = codecName.isEmpty() ? null : MessageCodec.forName(codecName);
+		int clientCount = Integer.parseInt(setting(settings, "clients", "1000"));
+		double loginRate = Double.parseDouble(setting(settings, "loginRate", "200"));
+		int roomSize = Integer.parseInt(setting(settings, "roomSize", "0"));
+		double messageRate = Double.parseDouble(setting(settings, "messageRate", "1000"));
+		int messageSize = Integer.parseInt(setting(settings, "messageSize", "64"));
+		long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(setting(settings, "warmup", "10")));
+		long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(setting(settings, "duration", "30")));
+		String reportFile = setting(settings, "report", "");
+
+		Results results = new Results();
+
+		// Log in
+		List<LoadClient> clients = new ArrayList<LoadClient>(clientCount);
+		long start = System.nanoTime();
+		for (int i = 0; i < clientCount; i++) {
+			pace(start, i, loginRate);
+			try {
+				clients.add(new LoadClient(host, port, results, "load" + i, codec));
+			} catch (IOException ex) {
+				results.connectErrors.increment();
+			}
+		}
+		results.awaitLogins(clients.size(), DRAIN_NANOS);
+
+		// Join rooms
+		if (roomSize > 0) {
+			for (int i = 0; i < clients.size(); i++)
+				send(clients.get(i), "#join room" + i / roomSize, results);
+		}
+
+		// Warm up, then measure
+		Sender sender = new Sender(clients, messageRate, messageSize, results);
+		sender.run(warmupNanos);
+		results.startMeasuring();
+		long measuredSince = System.nanoTime();
+		long sent = sender.run(durationNanos);
+		results.stopMeasuring();
+		long measuredNanos = System.nanoTime() - measuredSince;
+
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(DRAIN_NANOS)); // Copies in flight
+		for (LoadClient client : clients) {
+			try {
+				client.closeConnection();
+			} catch (IOException ex) {
+			}
+		}
+
+		String report = report(settings, clientCount, clients.size(), sent, measuredNanos, results);
+		System.out.println(report);
+		if (!reportFile.isEmpty())
+			Files.write(Paths.get(reportFile), (report + "\n").getBytes(StandardCharsets.UTF_8));
+		System.exit(0);
+	}
+
+	private static String setting(Map<String, String> settings, String name, String defaultValue) {
+		String value = settings.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Sleeps until the given event is due, events being spread evenly at the
+	 * given rate from the start.
+	 */
+	private static void pace(long start, long event, double ratePerSecond) throws InterruptedException {
+		long due = start + (long) (event * 1e9 / ratePerSecond);
+		long wait = due - System.nanoTime();
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	/**
+	 * Sends a line, counting a failure instead of shutting down as a chat
+	 * client would.
+	 */
+	private static boolean send(LoadClient client, String line, Results results) {
+		try {
+			client.sendToServer(line);
+			return true;
+		} catch (IOException ex) {
+			results.sendErrors.increment();
+			return false;
+		}
+	}
+
+	private static String report(Map<String, String> settings, int clientCount, int connected, long sent,
+			long measuredNanos, Results results) {
+		LatencyHistogram latency = results.latency;
+		double seconds = measuredNanos / 1e9;
+		StringBuilder json = new StringBuilder("{\"settings\":{");
+		String separator = "";
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			json.append(separator).append('"').append(setting.getKey()).append("\":\"")
+					.append(setting.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			separator = ",";
+		}
+		json.append("},");
+		json.append(String.format(Locale.ROOT,
+				"\"clients\":%d,\"connected\":%d,\"measuredSeconds\":%.3f,\"sent\":%d,\"sentPerSec\":%.1f,"
+						+ "\"received\":%d,\"receivedPerSec\":%.1f,",
+				clientCount, connected, seconds, sent, sent / seconds, latency.getCount(),
+				latency.getCount() / seconds));
+		json.append(String.format(Locale.ROOT,
+				"\"latencyUs\":{\"p50\":%.1f,\"p99\":%.1f,\"p999\":%.1f,\"max\":%.1f,\"mean\":%.1f},",
+				latency.getP50Micros(), latency.getP99Micros(), latency.getP999Micros(), latency.getMaxMicros(),
+				latency.getMeanMicros()));
+		json.append(String.format(Locale.ROOT,
+				"\"errors\":{\"connect\":%d,\"send\":%d,\"connectionLost\":%d,\"server\":%d}}",
+				results.connectErrors.sum(), results.sendErrors.sum(), results.connectionsLost.sum(),
+				results.serverErrors.sum()));
+		return json.toString();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * What all the clients saw: the latency of timestamped lines, logins and
+	 * errors. Shared by every client, so it only uses striped counters.
+	 */
+	private static class Results {
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		final LongAdder logins = new LongAdder();
+
+		final LongAdder connectErrors = new LongAdder();
+
+		final LongAdder sendErrors = new LongAdder();
+
+		final LongAdder connectionsLost = new LongAdder();
+
+		final LongAdder serverErrors = new LongAdder();
+
+		/**
+		 * Lines sent from then on, and before it stops, are measured.
+		 */
+		volatile long measuringSince = Long.MAX_VALUE;
+
+		volatile long measuringUntil = Long.MAX_VALUE;
+
+		/**
+		 * Waits until every client has seen its own login announced, or
+		 * until the time is up.
+		 */
+		void awaitLogins(int clients, long timeoutNanos) throws InterruptedException {
+			long deadline = System.nanoTime() + timeoutNanos;
+			while (logins.sum() < clients && System.nanoTime() < deadline)
+				Thread.sleep(10);
+		}
+
+		void startMeasuring() {
+			measuringSince = System.nanoTime();
+		}
+
+		void stopMeasuring() {
+			measuringUntil = System.nanoTime();
+		}
+	}
+
+	/**
+	 * What one client displays goes here instead of to a console: the
+	 * latency of timestamped lines, the announcement of its own login, and
+	 * the errors reported by the server.
+	 */
+	private static class Recorder implements ChatIF {
+		private final Results results;
+
+		private final String loggedOn;
+
+		Recorder(Results results, String loginId) {
+			this.results = results;
+			this.loggedOn = loginId + " has logged on.";
+		}
+
+		@Override
+		public void display(String message) {
+			long now = System.nanoTime();
+			int stamp = message.indexOf(STAMP);
+			if (stamp >= 0) {
+				long sent = parseNanos(message, stamp + STAMP.length());
+				if (sent - results.measuringSince >= 0 && sent - results.measuringUntil < 0)
+					results.latency.record(now - sent);
+			} else if (message.equals(CONNECTION_LOST)) {
+				results.connectionsLost.increment();
+			} else if (message.startsWith("Error")) {
+				results.serverErrors.increment();
+			} else if (message.equals(loggedOn)) {
+				results.logins.increment();
+			}
+		}
+
+		/**
+		 * Reads the digits of the timestamp without creating a string.
+		 */
+		private static long parseNanos(String message, int from) {
+			long value = 0;
+			boolean negative = from < message.length() && message.charAt(from) == '-';
+			for (int i = negative ? from + 1 : from; i < message.length(); i++) {
+				char c = message.charAt(i);
+				if (c < '0' || c > '9')
+					break;
+				value = value * 10 + (c - '0');
+			}
+			return negative ? -value : value;
+		}
+	}
+
+	/**
+	 * A chat client reading on a virtual thread, whose lost connection is
+	 * recorded instead of ending the program.
+	 */
+	private static class LoadClient extends ChatClient {
+		LoadClient(String host, int port, Results results, String loginId, MessageCodec codec) throws IOException {
+			super(host, port, new Recorder(results, loginId), loginId, codec, ThreadMode.VIRTUAL);
+		}
+
+		@Override
+		protected void connectionException(Exception exception) {
+			handleMessageFromServer(CONNECTION_LOST);
+		}
+	}
+
+	/**
+	 * Sends timestamped lines at a steady total rate, from the clients in
+	 * turn.
+	 */
+	private static class Sender {
+		private final List<LoadClient> clients;
+
+		private final double messageRate;
+
+		private final String padding;
+
+		private final Results results;
+
+		private int next = 0;
+
+		Sender(List<LoadClient> clients, double messageRate, int messageSize, Results results) {
+			this.clients = clients;
+			this.messageRate = messageRate;
+			this.results = results;
+
+			// The stamp takes about twenty characters of the line
+			char[] pad = new char[Math.max(0, messageSize - STAMP.length() - 21)];
+			Arrays.fill(pad, 'x');
+			this.padding = " " + new String(pad);
+		}
+
+		/**
+		 * Sends for the given time.
+		 *
+		 * @return the number of lines sent.
+		 */
+		long run(long durationNanos) throws InterruptedException {
+			if (clients.isEmpty())
+				return 0;
+
+			long start = System.nanoTime();
+			long attempted = 0, sent = 0;
+			long elapsed;
+			while ((elapsed = System.nanoTime() - start) < durationNanos) {
+				long due = (long) (elapsed * messageRate / 1e9);
+				for (; attempted < due; attempted++) {
+					LoadClient client = clients.get(next);
+					next = (next + 1) % clients.size();
+					if (send(client, STAMP + System.nanoTime() + padding, results))
+						sent++;
+				}
+				TimeUnit.NANOSECONDS.sleep(SEND_TICK_NANOS);
+			}
+			return sent;
+		}
+	}
+}
+// End of ChatLoadGenerator class
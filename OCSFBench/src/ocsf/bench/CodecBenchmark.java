@@ -0,0 +1,150 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.util.*;
+
+import ocsf.common.Frames;
+import ocsf.common.MessageCodec;
+
+/**
+ * Compares the wire formats a connection can use: bytes on the wire per
+ * message, and messages encoded and decoded per second, for the kind of lines
+ * <code> EchoServer </code> broadcasts and for a small structured message.
+ * <p>
+ * The legacy object stream is measured the way a connection uses it: one
+ * long-lived stream per batch, so its per-message cost includes the handle
+ * bookkeeping but not a stream header per message. The codecs are measured
+ * through <code> Frames </code>, header included.
+ * <p>
+ * Usage: <code> java ocsf.bench.CodecBenchmark [messages per batch] </code>
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class CodecBenchmark {
+	// CLASS VARIABLES **************************************************
+
+	private static final int WARMUP_ROUNDS = 5;
+
+	private static final int MEASURED_ROUNDS = 10;
+
+	private static final String[] WORDS = { "hello", "everyone", "the", "build", "is", "green", "again",
+			"can", "someone", "review", "my", "patch", "lunch", "at", "noon", "café", "déjà", "vu", "ok",
+			"thanks", "see", "you", "tomorrow", "server", "restart", "in", "five", "minutes" };
+
+	/**
+	 * Keeps results alive so the work is not optimized away.
+	 */
+	private static long sink;
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) throws Exception {
+		int batch = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+
+		List<Object> lines = chatLines(batch);
+		List<Object> structured = structuredMessages(batch);
+
+		System.out.println("workload=chat-lines");
+		measureObjectStream(lines);
+		for (MessageCodec codec : new MessageCodec[] { MessageCodec.SERIALIZATION, MessageCodec.TEXT,
+				MessageCodec.BINARY })
+			measureCodec(codec, lines);
+
+		System.out.println("workload=structured");
+		measureObjectStream(structured);
+		for (MessageCodec codec : new MessageCodec[] { MessageCodec.SERIALIZATION, MessageCodec.BINARY })
+			measureCodec(codec, structured);
+
+		if (sink == 42)
+			System.out.println();
+	}
+
+	/**
+	 * Lines as <code> EchoServer </code> broadcasts them: a login id, an
+	 * arrow and a few words. Every line is a distinct string.
+	 */
+	private static List<Object> chatLines(int count) {
+		Random random = new Random(2105);
+		List<Object> lines = new ArrayList<Object>(count);
+		for (int i = 0; i < count; i++) {
+			StringBuilder line = new StringBuilder("user" + random.nextInt(50) + "-> ");
+			int words = 3 + random.nextInt(15);
+			for (int w = 0; w < words; w++)
+				line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			lines.add(line.toString().trim());
+		}
+		return lines;
+	}
+
+	private static List<Object> structuredMessages(int count) {
+		List<Object> messages = new ArrayList<Object>(count);
+		List<Object> lines = chatLines(count);
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> msg = new LinkedHashMap<String, Object>();
+			msg.put("type", "chat");
+			msg.put("room", "lobby");
+			msg.put("seq", 1_000_000L + i);
+			msg.put("urgent", Boolean.FALSE);
+			msg.put("text", lines.get(i));
+			messages.add(msg);
+		}
+		return messages;
+	}
+
+	private static void measureObjectStream(List<Object> messages) throws Exception {
+		long bytes = 0, encodeNanos = 0, decodeNanos = 0;
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			ByteArrayOutputStream wire = new ByteArrayOutputStream(messages.size() * 128);
+
+			long start = System.nanoTime();
+			ObjectOutputStream output = new ObjectOutputStream(wire);
+			for (Object msg : messages)
+				output.writeObject(msg);
+			output.flush();
+			long encoded = System.nanoTime();
+
+			ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(wire.toByteArray()));
+			for (int i = 0; i < messages.size(); i++)
+				sink += input.readObject().hashCode();
+			long decoded = System.nanoTime();
+
+			if (round >= WARMUP_ROUNDS) {
+				bytes += wire.size();
+				encodeNanos += encoded - start;
+				decodeNanos += decoded - encoded;
+			}
+		}
+		report("object-stream", messages.size(), bytes, encodeNanos, decodeNanos);
+	}
+
+	private static void measureCodec(MessageCodec codec, List<Object> messages) throws Exception {
+		long bytes = 0, encodeNanos = 0, decodeNanos = 0;
+		byte[][] frames = new byte[messages.size()][];
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < frames.length; i++)
+				frames[i] = Frames.encode(messages.get(i), codec);
+			long encoded = System.nanoTime();
+
+			for (byte[] frame : frames)
+				sink += codec.decode(frame, Frames.HEADER_LENGTH, frame.length - Frames.HEADER_LENGTH).hashCode();
+			long decoded = System.nanoTime();
+
+			if (round >= WARMUP_ROUNDS) {
+				for (byte[] frame : frames)
+					bytes += frame.length;
+				encodeNanos += encoded - start;
+				decodeNanos += decoded - encoded;
+			}
+		}
+		report(codec.getName(), messages.size(), bytes, encodeNanos, decodeNanos);
+	}
+
+	private static void report(String wire, int batch, long bytes, long encodeNanos, long decodeNanos) {
+		long messages = (long) batch * MEASURED_ROUNDS;
+		System.out.printf("  wire=%-14s bytesPerMsg=%6.1f encodePerSec=%,12.0f decodePerSec=%,12.0f%n", wire,
+				(double) bytes / messages, messages * 1e9 / encodeNanos, messages * 1e9 / decodeNanos);
+	}
+}
+// End of CodecBenchmark class
@@ -0,0 +1,459 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.client.AbstractClient;
+import ocsf.common.MessageCodec;
+import ocsf.common.ResetPolicy;
+import ocsf.common.ThreadMode;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ServerEngine;
+
+/**
+ * Measures the hot paths of the framework with JMH, as a baseline to compare
+ * every engine change against:
+ * <ul>
+ * <li><code> send </code>: <code> ConnectionToClient.sendToClient </code> to
+ * one client, which is mostly the cost of serializing the message;</li>
+ * <li><code> broadcast </code>: <code> AbstractServer.sendToAllClients </code>
+ * to 10, 100 and 1000 clients;</li>
+ * <li><code> echoChat </code>, <code> echoRoom </code> and
+ * <code> echoPrivate </code>: <code> EchoServer.handleMessageFromClient </code>
+ * parsing and dispatching a chat line, a room command and a private
+ * message;</li>
+ * <li><code> roundTrip </code>: the latency of a message sent by an
+ * <code> AbstractClient </code> and echoed back by the server, sampled so
+ * that JMH reports its percentiles.</li>
+ * </ul>
+ * Every measurement but the echo runs on each server engine. Clients are real
+ * <code> AbstractClient </code> instances connected over loopback in the
+ * benchmark JVM, reading on virtual threads. Lines are distinct strings and
+ * streams are reset after every message, as <code> EchoServer </code> does.
+ * Sends and broadcasts are timed as the call returns; every iteration then
+ * waits until the clients have received all of them, so that no iteration
+ * pays for the backlog of the previous one.
+ * <p>
+ * Usage: <code> java -jar OCSFBench/target/benchmarks.jar HotPathBenchmark </code>
+ * with the usual JMH options, or
+ * <code> java ocsf.bench.HotPathBenchmark [send] [broadcast] [echo] [roundTrip] </code>
+ * (all of them by default)
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HotPathBenchmark {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of distinct lines each benchmark cycles through.
+	 */
+	private static final int LINES = 20_000;
+
+	/**
+	 * How long to wait for messages to arrive before giving up on a run.
+	 */
+	private static final long DELIVERY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+	private static final String[] WORDS = { "hello", "everyone", "the", "build", "is", "green", "again", "can",
+			"someone", "review", "my", "patch", "lunch", "at", "noon", "see", "you", "tomorrow" };
+
+	/**
+	 * The port of the next server, so that no trial waits for the port of the
+	 * previous one.
+	 */
+	private static int nextPort = 16555;
+
+	// BENCHMARKS *******************************************************
+
+	/**
+	 * Sends a line to one client from the benchmark thread.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void send(OneClient state) throws IOException {
+		state.connection.sendToClient(state.nextLine());
+	}
+
+	/**
+	 * Broadcasts a line to every client.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void broadcast(FanOut state) {
+		state.server.sendToAllClients(state.nextLine());
+	}
+
+	/**
+	 * Hands a chat line to the handler of <code> EchoServer </code>.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void echoChat(Echo state) {
+		state.server.handleMessageFromClient(state.nextLine(), state.connection);
+	}
+
+	/**
+	 * Hands a room command to the handler of <code> EchoServer </code>,
+	 * joining and leaving in turn.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void echoRoom(Echo state) {
+		state.server.handleMessageFromClient(state.nextRoomCommand(), state.connection);
+	}
+
+	/**
+	 * Hands a private message to the handler of <code> EchoServer </code>.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void echoPrivate(Echo state) {
+		state.server.handleMessageFromClient("#msg bench " + state.nextLine(), state.connection);
+	}
+
+	/**
+	 * Sends one line and waits for the server to send it back.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object roundTrip(RoundTrip state) throws Exception {
+		BenchClient client = state.clients.get(0);
+		client.sendToServer(state.nextLine());
+		Object reply = client.replies.poll(DELIVERY_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+		if (reply == null)
+			throw new IOException("no reply from the server");
+		return reply;
+	}
+
+	/**
+	 * Runs the benchmarks named on the command line, or all of them.
+	 */
+	public static void main(String[] args) throws Exception {
+		ChainedOptionsBuilder options = new OptionsBuilder();
+		if (args.length == 0)
+			options.include(HotPathBenchmark.class.getName() + "\\.");
+		for (String name : args)
+			options.include(HotPathBenchmark.class.getName() + "\\." + name);
+		new Runner(options.build()).run();
+	}
+
+	// STATES ***********************************************************
+
+	/**
+	 * A server sending messages back, its clients, and the lines to send
+	 * them. Every line taken is a message each client is to receive.
+	 */
+	static abstract class Connected {
+		EchoBackServer server;
+
+		List<BenchClient> clients;
+
+		private String[] lines;
+
+		private int next;
+
+		private long sent;
+
+		void open(ServerEngine engine, int clientCount) throws Exception {
+			lines = chatLines(LINES);
+			server = startServer(engine);
+			clients = connect(server, clientCount);
+		}
+
+		String nextLine() {
+			String line = lines[next];
+			next = (next + 1) % lines.length;
+			sent++;
+			return line;
+		}
+
+		/**
+		 * Waits until every client has received all that was sent.
+		 */
+		void awaitDelivery() throws Exception {
+			awaitCount(clients, sent);
+		}
+	}
+
+	/**
+	 * One client, sent to from the benchmark thread.
+	 */
+	@State(Scope.Benchmark)
+	public static class OneClient extends Connected {
+		@Param
+		public ServerEngine engine;
+
+		ConnectionToClient connection;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			open(engine, 1);
+			connection = server.getClientConnections()[0];
+		}
+
+		@TearDown(Level.Iteration)
+		public void awaitIteration() throws Exception {
+			awaitDelivery();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			stop(server, clients);
+		}
+	}
+
+	/**
+	 * One client waiting for the reply to each message.
+	 */
+	@State(Scope.Benchmark)
+	public static class RoundTrip extends Connected {
+		@Param
+		public ServerEngine engine;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			open(engine, 1);
+			clients.get(0).replies = new ArrayBlockingQueue<Object>(1);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			stop(server, clients);
+		}
+	}
+
+	/**
+	 * Many clients to broadcast to.
+	 */
+	@State(Scope.Benchmark)
+	public static class FanOut extends Connected {
+		@Param
+		public ServerEngine engine;
+
+		@Param({ "10", "100", "1000" })
+		public int clientCount;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			open(engine, clientCount);
+		}
+
+		@TearDown(Level.Iteration)
+		public void awaitIteration() throws Exception {
+			awaitDelivery();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			stop(server, clients);
+		}
+	}
+
+	/**
+	 * An <code> EchoServer </code> and the connection of one logged in
+	 * client, whose handler is called directly. The server prints every
+	 * message it handles; the console is replaced by a stream discarding the
+	 * output, so the formatting is measured but not the terminal.
+	 */
+	@State(Scope.Benchmark)
+	public static class Echo {
+		EchoServer server;
+
+		ConnectionToClient connection;
+
+		private List<BenchClient> clients = new ArrayList<BenchClient>();
+
+		private PrintStream console;
+
+		private String[] lines;
+
+		private int next;
+
+		private boolean joined;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			lines = chatLines(LINES);
+			server = new EchoServer(nextPort++);
+			server.setResetPolicy(ResetPolicy.ALWAYS);
+			server.setTcpNoDelay(true);
+
+			console = System.out;
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			server.listen();
+			clients = connect(server, 1);
+			clients.get(0).sendToServer("#login bench");
+			awaitCount(clients, 1); // The announcement of the login
+			connection = server.getClientConnections()[0];
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			stop(server, clients);
+			System.setOut(console);
+		}
+
+		String nextLine() {
+			String line = lines[next];
+			next = (next + 1) % lines.length;
+			return line;
+		}
+
+		String nextRoomCommand() {
+			joined = !joined;
+			return joined ? "#join lobby" : "#leave lobby";
+		}
+	}
+
+	// SET UP -----------------------------------------------------------
+
+	private static EchoBackServer startServer(ServerEngine engine) throws IOException {
+		EchoBackServer server = new EchoBackServer(nextPort++, engine);
+		server.setBacklog(1024);
+		server.setResetPolicy(ResetPolicy.ALWAYS);
+		server.setTcpNoDelay(true);
+		server.listen();
+		return server;
+	}
+
+	/**
+	 * Connects clients to a server and waits until the server has them all.
+	 */
+	private static List<BenchClient> connect(AbstractServer server, int count) throws Exception {
+		List<BenchClient> clients = new ArrayList<BenchClient>(count);
+		for (int i = 0; i < count; i++) {
+			BenchClient client = new BenchClient(server.getPort());
+			if (server.getEngine() == ServerEngine.SELECTOR)
+				client.setCodec(MessageCodec.SERIALIZATION); // The selector engine only exchanges frames
+			client.setResetPolicy(ResetPolicy.ALWAYS);
+			client.setTcpNoDelay(true);
+			client.openConnection();
+			clients.add(client);
+		}
+
+		long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+		while (server.getNumberOfClients() < count) {
+			if (System.nanoTime() > deadline)
+				throw new IOException("only " + server.getNumberOfClients() + " of " + count + " clients connected");
+			Thread.sleep(1);
+		}
+		return clients;
+	}
+
+	/**
+	 * Waits until every client has received at least the given number of
+	 * messages.
+	 */
+	private static void awaitCount(List<BenchClient> clients, long expected) throws Exception {
+		long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+		for (BenchClient client : clients) {
+			while (client.received.sum() < expected) {
+				if (System.nanoTime() > deadline)
+					throw new IOException("a client received " + client.received.sum() + " of " + expected + " messages");
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	private static void stop(AbstractServer server, List<BenchClient> clients) {
+		for (BenchClient client : clients) {
+			try {
+				client.closeConnection();
+			} catch (IOException ex) {
+			}
+		}
+		try {
+			server.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * Distinct lines as <code> EchoServer </code> broadcasts them.
+	 */
+	private static String[] chatLines(int count) {
+		Random random = new Random(2105);
+		String[] lines = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder line = new StringBuilder("user" + random.nextInt(50) + "-> ");
+			int words = 3 + random.nextInt(10);
+			for (int w = 0; w < words; w++)
+				line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			lines[i] = line.append(i).toString();
+		}
+		return lines;
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A server that sends every message back to the client it came from.
+	 */
+	private static class EchoBackServer extends AbstractServer {
+		EchoBackServer(int port, ServerEngine engine) {
+			super(port, engine);
+		}
+
+		@Override
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			try {
+				client.sendToClient(msg);
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * A client counting what it receives, and handing it over when a reply
+	 * is awaited.
+	 */
+	private static class BenchClient extends AbstractClient {
+		final LongAdder received = new LongAdder();
+
+		volatile BlockingQueue<Object> replies;
+
+		BenchClient(int port) {
+			super("localhost", port, ThreadMode.VIRTUAL);
+		}
+
+		@Override
+		protected void handleMessageFromServer(Object msg) {
+			received.increment();
+			BlockingQueue<Object> replies = this.replies;
+			if (replies != null)
+				replies.offer(msg);
+		}
+	}
+}
+// End of HotPathBenchmark class
@@ -0,0 +1,166 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ServerEngine;
+
+/**
+ * Measures what idle clients cost a server: resident memory per connection
+ * and how fast connections are accepted, for each server engine.
+ * <p>
+ * Every measurement runs in a fresh JVM so the engines do not share heap or
+ * thread history. The clients are plain sockets opened by the measuring JVM
+ * without any thread of their own; the threads, stacks and buffers that make
+ * the difference all belong to the server.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java ocsf.bench.IdleConnectionBenchmark                      all engines, 1k, 10k and 50k clients
+ * java ocsf.bench.IdleConnectionBenchmark &lt;engine&gt; &lt;clients&gt; [port]   one measurement in this JVM
+ * </pre>
+ *
+ * 50k connections need a file descriptor limit above 100k
+ * (<code> ulimit -n </code>). Clients are spread over several loopback
+ * addresses so the ephemeral port range is not exhausted.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public class IdleConnectionBenchmark {
+	// CLASS VARIABLES **************************************************
+
+	private static final int[] DEFAULT_CLIENTS = { 1_000, 10_000, 50_000 };
+
+	private static final int FIRST_PORT = 15555;
+
+	/**
+	 * Clients opened from one loopback address before moving to the next.
+	 */
+	private static final int CLIENTS_PER_ADDRESS = 20_000;
+
+	/**
+	 * The header every Java object stream starts with, sent by the idle
+	 * clients of the stream engines.
+	 */
+	private static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+	// CLASS METHODS ****************************************************
+
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 2) {
+			int port = args.length > 2 ? Integer.parseInt(args[2]) : FIRST_PORT;
+			measure(ServerEngine.valueOf(args[0]), Integer.parseInt(args[1]), port);
+			System.exit(0);
+		}
+
+		int port = FIRST_PORT;
+		for (int clients : DEFAULT_CLIENTS) {
+			for (ServerEngine engine : ServerEngine.values())
+				fork(engine, clients, port++);
+		}
+	}
+
+	/**
+	 * Runs one measurement in a child JVM sharing our class path and heap
+	 * settings.
+	 */
+	private static void fork(ServerEngine engine, int clients, int port) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(IdleConnectionBenchmark.class.getName());
+		command.add(engine.name());
+		command.add(Integer.toString(clients));
+		command.add(Integer.toString(port));
+
+		Process child = new ProcessBuilder(command).inheritIO().start();
+		if (child.waitFor() != 0)
+			System.out.println("engine=" + engine + " clients=" + clients + " FAILED");
+	}
+
+	private static void measure(ServerEngine engine, int clients, int port) throws Exception {
+		IdleServer server = new IdleServer(port, engine);
+		server.setBacklog(4096);
+		server.listen();
+		settle();
+		long rssBefore = residentBytes();
+
+		List<Socket> sockets = new ArrayList<Socket>(clients);
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			Socket socket = new Socket();
+			socket.bind(new InetSocketAddress("127.0.0." + (1 + i / CLIENTS_PER_ADDRESS), 0));
+			socket.connect(new InetSocketAddress("127.0.0.1", port));
+			if (engine != ServerEngine.SELECTOR)
+				socket.getOutputStream().write(STREAM_HEADER);
+			sockets.add(socket);
+		}
+		while (server.getNumberOfClients() < clients)
+			Thread.sleep(1);
+		long elapsed = System.nanoTime() - start;
+
+		settle();
+		long rssAfter = residentBytes();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		System.out.printf("engine=%s clients=%d acceptsPerSec=%.0f rssDeltaMB=%.1f rssPerClientKB=%.1f platformThreads=%d%n",
+				engine, clients, clients * 1e9 / elapsed, (rssAfter - rssBefore) / 1048576.0,
+				(rssAfter - rssBefore) / 1024.0 / clients, threads);
+
+		for (Socket socket : sockets)
+			socket.close();
+		server.close();
+	}
+
+	/**
+	 * Gives the server time to go idle and the collector a chance to run, so
+	 * only live memory is measured.
+	 */
+	private static void settle() throws InterruptedException {
+		Thread.sleep(1000);
+		System.gc();
+		Thread.sleep(500);
+	}
+
+	/**
+	 * @return the resident set size of this JVM, or the used heap when the
+	 *         operating system does not report it.
+	 */
+	private static long residentBytes() throws IOException {
+		Path status = Paths.get("/proc/self/status");
+		if (Files.isReadable(status)) {
+			for (String line : Files.readAllLines(status)) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A server whose clients never say anything.
+	 */
+	private static class IdleServer extends AbstractServer {
+		IdleServer(int port, ServerEngine engine) {
+			super(port, engine);
+		}
+
+		@Override
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+}
+// End of IdleConnectionBenchmark class
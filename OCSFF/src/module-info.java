@@ -5,4 +5,5 @@
  * 
  */
 module OCSFF {
+	requires java.management;
 }
\ No newline at end of file
@@ -5,6 +5,31 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import ocsf.common.CoalescingOutputStream;
+import ocsf.common.Compression;
+import ocsf.common.CompressionStatistics;
+import ocsf.common.CountingObjectOutputStream;
+import ocsf.common.DeflatedMessage;
+import ocsf.common.FlushPolicy;
+import ocsf.common.Frames;
+import ocsf.common.Heartbeat;
+import ocsf.common.HeartbeatMonitor;
+import ocsf.common.HeartbeatPolicy;
+import ocsf.common.MessageCodec;
+import ocsf.common.QueueFullPolicy;
+import ocsf.common.ReconnectPolicy;
+import ocsf.common.ResetPolicy;
+import ocsf.common.ThreadMode;
+import ocsf.common.TimerWheel;
+import ocsf.common.WriteStatistics;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -15,6 +40,36 @@ import java.net.*;
  * Method <code> handleMessageFromServer </code> must be defined by a concrete
  * subclass. Several other hook methods may also be overriden.
  * <p>
+ * By default the client exchanges a continuous object stream with the server,
+ * as expected by a server using one thread per client. Once a
+ * <code> MessageCodec </code> is set with <code> setCodec </code>, messages
+ * travel as length-prefixed frames encoded by that codec instead, which is
+ * what a server using a codec or the selector engine expects.
+ * <p>
+ * Output is buffered and written to the socket as the
+ * <code> FlushPolicy </code> set with <code> setFlushPolicy </code> says.
+ * With a <code> Compression </code>, large messages are deflated, and the
+ * server is told when the connection opens that it may deflate its own.
+ * <p>
+ * Messages sent with <code> sendToServerAsync </code> wait in a bounded queue
+ * and are written by a virtual thread started whenever the queue stops being
+ * empty. It writes everything queued as one run of messages, so many messages
+ * sent in a row share system calls, and the sender never waits for the
+ * socket unless the queue is full and the <code> QueueFullPolicy </code> says
+ * so. Messages sent either way reach the server in the order they were sent.
+ * <p>
+ * With a <code> ReconnectPolicy </code>, a client whose connection is lost
+ * connects again by itself, to its server or to one of the alternate servers
+ * in turn, after delays that grow and vary from client to client. The hooks
+ * see a new connection: <code> connectionEstablished </code> is called again
+ * once it is open.
+ * <p>
+ * With a <code> HeartbeatPolicy </code>, a client that stops hearing from
+ * its server pings it, and takes the connection for lost once the server
+ * has been silent for too long, which also lets the reconnect policy act
+ * on a server that vanished without closing the connection. Pings from the
+ * server are answered whatever the policy.
+ * <p>
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
@@ -29,6 +84,15 @@ import java.net.*;
  */
 public abstract class AbstractClient implements Runnable {
 
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Times the heartbeats of every client of the program. Its thread only
+	 * starts with the first connection watched.
+	 */
+	private static final TimerWheel HEARTBEAT_WHEEL = new TimerWheel("OCSF client heartbeats", 100,
+			TimeUnit.MILLISECONDS, 512);
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -42,18 +106,143 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * The stream to handle data going to the server.
 	 */
-	private ObjectOutputStream output;
+	private CountingObjectOutputStream output;
 
 	/**
 	 * The stream to handle data from the server.
 	 */
 	private ObjectInputStream input;
 
+	/**
+	 * The buffered stream writing to the socket, under the object stream or
+	 * receiving frames when a codec is used.
+	 */
+	private CoalescingOutputStream socketOutput;
+
+	/**
+	 * The buffered stream to handle frames from the server, when a codec is
+	 * used.
+	 */
+	private DataInputStream frameInput;
+
+	/**
+	 * The codec of the next connection, or null to exchange a continuous
+	 * object stream.
+	 */
+	private MessageCodec codec = null;
+
+	/**
+	 * The codec of the current connection.
+	 */
+	private MessageCodec connectionCodec;
+
+	/**
+	 * The compression of the next connection.
+	 */
+	private Compression compression = Compression.NONE;
+
+	/**
+	 * The compression of the current connection.
+	 */
+	private Compression connectionCompression = Compression.NONE;
+
+	/**
+	 * What compressing and inflating messages cost.
+	 */
+	private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+	/**
+	 * When the object stream to the server is reset.
+	 */
+	private volatile ResetPolicy resetPolicy = ResetPolicy.NEVER;
+
+	/**
+	 * When the bytes sent to the server are written to the socket.
+	 */
+	private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+
+	/**
+	 * The value of TCP_NODELAY for the next connection.
+	 */
+	private boolean tcpNoDelay = false;
+
+	/**
+	 * What the writes to the server cost.
+	 */
+	private final WriteStatistics writeStatistics = new WriteStatistics();
+
+	/**
+	 * Serializes the writes to the server.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Messages sent asynchronously and not written yet. Guards itself,
+	 * <code> pendingHeartbeats </code> and <code> writerScheduled </code>.
+	 */
+	private final ArrayDeque<PendingMessage> sendQueue = new ArrayDeque<PendingMessage>();
+
+	/**
+	 * Heartbeats not written yet, which the writer writes ahead of the
+	 * queued messages.
+	 */
+	private final EnumSet<Heartbeat> pendingHeartbeats = EnumSet.noneOf(Heartbeat.class);
+
+	/**
+	 * Indicates if a writer thread is draining the send queue.
+	 */
+	private boolean writerScheduled = false;
+
+	/**
+	 * The most messages the send queue holds.
+	 */
+	private volatile int sendQueueCapacity = 1024;
+
+	/**
+	 * What happens to a message sent asynchronously when the queue is full.
+	 */
+	private volatile QueueFullPolicy queueFullPolicy = QueueFullPolicy.BLOCK;
+
+	/**
+	 * When a lost connection is opened again.
+	 */
+	private volatile ReconnectPolicy reconnectPolicy = ReconnectPolicy.NEVER;
+
+	/**
+	 * When the server is pinged and given up, from the next connection on.
+	 */
+	private volatile HeartbeatPolicy heartbeatPolicy = HeartbeatPolicy.NONE;
+
+	/**
+	 * What watches the current connection, or null.
+	 */
+	private volatile HeartbeatMonitor heartbeatMonitor;
+
+	/**
+	 * Why the heartbeat policy gave the current connection up, or null.
+	 */
+	private volatile SocketTimeoutException heartbeatFailure;
+
+	/**
+	 * The servers tried after the server of the lost connection.
+	 */
+	private volatile List<InetSocketAddress> alternateServers = Collections.emptyList();
+
+	/**
+	 * The thread opening a lost connection again, or null.
+	 */
+	private volatile Thread reconnector;
+
 	/**
 	 * The thread created to read data from the server.
 	 */
 	private Thread clientReader;
 
+	/**
+	 * The kind of thread created to read data from the server.
+	 */
+	private final ThreadMode readerMode;
+
 	/**
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
@@ -81,9 +270,25 @@ public abstract class AbstractClient implements Runnable {
 	 *            the port number.
 	 */
 	public AbstractClient(String host, int port) {
+		this(host, port, ThreadMode.PLATFORM);
+	}
+
+	/**
+	 * Constructs the client, choosing the kind of thread that reads data from
+	 * the server.
+	 * 
+	 * @param host
+	 *            the server's host name.
+	 * @param port
+	 *            the port number.
+	 * @param readerMode
+	 *            platform or virtual reader thread.
+	 */
+	public AbstractClient(String host, int port, ThreadMode readerMode) {
 		// Initialize variables
 		this.host = host;
 		this.port = port;
+		this.readerMode = readerMode;
 	}
 
 	// INSTANCE METHODS *************************************************
@@ -103,8 +308,23 @@ public abstract class AbstractClient implements Runnable {
 		// Create the sockets and the data streams
 		try {
 			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			clientSocket.setTcpNoDelay(tcpNoDelay);
+			socketOutput = new CoalescingOutputStream(clientSocket.getOutputStream(), flushPolicy, writeStatistics);
+			connectionCodec = codec;
+			connectionCompression = compression;
+			if (connectionCompression.isEnabled()) {
+				// Before anything else, and at once: the server deflates
+				// nothing for this client until it has read it
+				Compression.writePreamble(socketOutput);
+				socketOutput.flush();
+			}
+			if (connectionCodec != null) {
+				frameInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+			} else {
+				output = new CountingObjectOutputStream(socketOutput);
+				socketOutput.flush(); // The server waits for the stream header
+				input = new ObjectInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+			}
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -117,8 +337,13 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		clientReader = readerMode.newThread(this); // Create the data reader thread
 		readyToStop = false;
+		heartbeatFailure = null;
+		if (heartbeatPolicy.isEnabled()) {
+			heartbeatMonitor = new HeartbeatMonitor(heartbeatPolicy, HEARTBEAT_WHEEL, new HeartbeatPeer(clientSocket));
+			heartbeatMonitor.start();
+		}
 		clientReader.start(); // Start the thread
 	}
 
@@ -132,10 +357,71 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		List<PendingMessage> written = new ArrayList<PendingMessage>();
+		try {
+			synchronized (writeLock) {
+				// Messages sent asynchronously before this one go first
+				writeQueued(written);
+				writeItem(msg, false);
+			}
+		} finally {
+			complete(written);
+		}
+	}
 
-		output.writeObject(msg);
+	/**
+	 * Sends an object to the server without waiting for the socket. The
+	 * message is queued and written by a writer thread, after every message
+	 * sent before it. When the queue is full, the queue full policy decides
+	 * whether the caller waits, this message fails, or the oldest queued
+	 * message fails to make room.
+	 * <p>
+	 * The future completes once the message is written to the connection's
+	 * buffer, which the flush policy writes to the socket, as when
+	 * <code> sendToServer </code> returns. It fails if the client is not
+	 * connected, if the message is refused or dropped, or if it cannot be
+	 * written; a message that cannot be written fails every message queued
+	 * after it too. It is completed on the writer thread, or on the thread
+	 * closing the connection.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return the future of the send.
+	 */
+	final public CompletableFuture<Void> sendToServerAsync(Object msg) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		PendingMessage dropped = null;
+		try {
+			synchronized (sendQueue) {
+				while (true) {
+					if (clientSocket == null)
+						throw new SocketException("socket does not exist");
+					if (sendQueue.size() < sendQueueCapacity)
+						break;
+
+					QueueFullPolicy policy = queueFullPolicy;
+					if (policy == QueueFullPolicy.FAIL)
+						throw new IOException("send queue full (" + sendQueueCapacity + " messages)");
+					if (policy == QueueFullPolicy.DROP_OLDEST) {
+						dropped = sendQueue.poll();
+						break;
+					}
+					sendQueue.wait(); // Until the writer or closing makes room
+				}
+
+				sendQueue.add(new PendingMessage(msg, future));
+				scheduleWriter();
+			}
+		} catch (IOException ex) {
+			future.completeExceptionally(ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(ex);
+		}
+
+		if (dropped != null)
+			dropped.future.completeExceptionally(new IOException("dropped, send queue full"));
+		return future;
 	}
 
 
@@ -148,6 +434,21 @@ public abstract class AbstractClient implements Runnable {
 	final public void closeConnection() throws IOException {
 		// Prevent the thread from looping any more
 		readyToStop = true;
+		stopReconnecting();
+
+		List<PendingMessage> written = new ArrayList<PendingMessage>();
+		try {
+			// Write what is queued and what the flush policy is holding back
+			synchronized (writeLock) {
+				writeQueued(written);
+				if (socketOutput != null)
+					socketOutput.flush();
+			}
+		} catch (IOException ex) {
+			// The connection is going away anyway
+		} finally {
+			complete(written);
+		}
 
 		try {
 			closeAll();
@@ -159,6 +460,14 @@ public abstract class AbstractClient implements Runnable {
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * @return true if the client is connecting again after losing its
+	 *         connection.
+	 */
+	final public boolean isReconnecting() {
+		return reconnector != null;
+	}
+
 	/**
 	 * @return true if the client is connnected.
 	 */
@@ -184,6 +493,273 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * @return the kind of thread reading data from the server.
+	 */
+	final public ThreadMode getReaderMode() {
+		return readerMode;
+	}
+
+	/**
+	 * @return the codec of the next connection, or null if a continuous object
+	 *         stream is exchanged.
+	 */
+	final public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec used to exchange messages, which must be the codec of the
+	 * server. With null, the default, a continuous object stream is exchanged
+	 * instead of frames. The change only takes effect at the time of the next
+	 * call to openConnection().
+	 * 
+	 * @param codec
+	 *            the codec, or null.
+	 * @see ocsf.server.AbstractServer#setCodec(MessageCodec)
+	 */
+	final public void setCodec(MessageCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets which messages are deflated, with <code> Compression.NONE </code>,
+	 * the default, for none. A client with compression also tells the server
+	 * that it may deflate what it sends, which only a server of this version
+	 * of the framework understands. The change only takes effect at the time
+	 * of the next call to openConnection().
+	 * 
+	 * @param compression
+	 *            the compression.
+	 * @see ocsf.server.AbstractServer#setCompression(Compression)
+	 */
+	final public void setCompression(Compression compression) {
+		if (compression == null)
+			throw new NullPointerException("compression");
+		this.compression = compression;
+	}
+
+	/**
+	 * @return which messages are deflated on the next connection.
+	 */
+	final public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return what compressing and inflating messages has cost since this
+	 *         client was created.
+	 */
+	final public CompressionStatistics getCompressionStatistics() {
+		return compressionStatistics;
+	}
+
+	/**
+	 * @return when the object stream to the server is reset.
+	 */
+	final public ResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+
+	/**
+	 * Sets when the object stream to the server is reset. Until it is reset,
+	 * the stream keeps every object sent through it, in this client and in
+	 * the server. The default, <code> ResetPolicy.NEVER </code>, is the
+	 * behaviour of the original framework. Takes effect immediately; has no
+	 * effect when a codec is used.
+	 * 
+	 * @param resetPolicy
+	 *            the policy.
+	 * @see ocsf.server.AbstractServer#setResetPolicy(ResetPolicy)
+	 */
+	final public void setResetPolicy(ResetPolicy resetPolicy) {
+		if (resetPolicy == null)
+			throw new NullPointerException("resetPolicy");
+		this.resetPolicy = resetPolicy;
+	}
+
+	/**
+	 * @return the number of objects and class descriptors the object stream
+	 *         to the server keeps until its next reset, 0 if there is no such
+	 *         stream.
+	 */
+	final public int getHandleTableSize() {
+		CountingObjectOutputStream output = this.output;
+		return output == null ? 0 : output.getHandleCount();
+	}
+
+	/**
+	 * Sets when the bytes sent to the server are written to the socket.
+	 * <code> FlushPolicy.IMMEDIATE </code>, the default, writes every message
+	 * at once; a coalescing policy trades a bounded delay for fewer system
+	 * calls. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param flushPolicy
+	 *            the policy.
+	 * @see ocsf.server.AbstractServer#setFlushPolicy(FlushPolicy)
+	 */
+	final public void setFlushPolicy(FlushPolicy flushPolicy) {
+		if (flushPolicy == null)
+			throw new NullPointerException("flushPolicy");
+		this.flushPolicy = flushPolicy;
+	}
+
+	/**
+	 * @return when the bytes sent to the server are written to the socket.
+	 */
+	final public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Sets the most messages sent with <code> sendToServerAsync </code> that
+	 * wait to be written, 1024 by default. Takes effect immediately.
+	 * 
+	 * @param sendQueueCapacity
+	 *            the capacity, at least one.
+	 */
+	final public void setSendQueueCapacity(int sendQueueCapacity) {
+		if (sendQueueCapacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		synchronized (sendQueue) {
+			this.sendQueueCapacity = sendQueueCapacity;
+			sendQueue.notifyAll(); // Senders waiting may now have room
+		}
+	}
+
+	/**
+	 * @return the most messages waiting to be written.
+	 */
+	final public int getSendQueueCapacity() {
+		return sendQueueCapacity;
+	}
+
+	/**
+	 * @return the number of messages sent asynchronously and not written yet.
+	 */
+	final public int getSendQueueSize() {
+		synchronized (sendQueue) {
+			return sendQueue.size();
+		}
+	}
+
+	/**
+	 * Sets what happens to a message sent with
+	 * <code> sendToServerAsync </code> when the send queue is full.
+	 * <code> QueueFullPolicy.BLOCK </code>, the default, makes the sender
+	 * wait. Takes effect immediately.
+	 * 
+	 * @param queueFullPolicy
+	 *            the policy.
+	 */
+	final public void setQueueFullPolicy(QueueFullPolicy queueFullPolicy) {
+		if (queueFullPolicy == null)
+			throw new NullPointerException("queueFullPolicy");
+		this.queueFullPolicy = queueFullPolicy;
+	}
+
+	/**
+	 * @return what happens to a message sent asynchronously when the send
+	 *         queue is full.
+	 */
+	final public QueueFullPolicy getQueueFullPolicy() {
+		return queueFullPolicy;
+	}
+
+	/**
+	 * Sets when a lost connection is opened again. With
+	 * <code> ReconnectPolicy.NEVER </code>, the default, the client stays
+	 * disconnected once <code> connectionException </code> has been called.
+	 * Closing the connection stops the attempts.
+	 * 
+	 * @param reconnectPolicy
+	 *            the policy.
+	 */
+	final public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		if (reconnectPolicy == null)
+			throw new NullPointerException("reconnectPolicy");
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	/**
+	 * @return when a lost connection is opened again.
+	 */
+	final public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * Sets when a server that has gone silent is pinged, and when it is given
+	 * up: the connection is then lost, <code> connectionException </code> is
+	 * called with a <code> SocketTimeoutException </code>, and the reconnect
+	 * policy applies. The default, <code> HeartbeatPolicy.NONE </code>,
+	 * watches nothing. The change only takes effect at the time of the next
+	 * call to openConnection().
+	 * 
+	 * @param heartbeatPolicy
+	 *            the policy.
+	 * @see ocsf.server.AbstractServer#setHeartbeatPolicy(HeartbeatPolicy)
+	 */
+	final public void setHeartbeatPolicy(HeartbeatPolicy heartbeatPolicy) {
+		if (heartbeatPolicy == null)
+			throw new NullPointerException("heartbeatPolicy");
+		this.heartbeatPolicy = heartbeatPolicy;
+	}
+
+	/**
+	 * @return when the server is pinged and given up.
+	 */
+	final public HeartbeatPolicy getHeartbeatPolicy() {
+		return heartbeatPolicy;
+	}
+
+	/**
+	 * Sets the servers tried when a lost connection is opened again. The
+	 * attempts go round the server of the lost connection and these ones, in
+	 * order; host and port are left at the server connected to.
+	 * 
+	 * @param alternateServers
+	 *            the other servers, possibly none.
+	 */
+	final public void setAlternateServers(List<InetSocketAddress> alternateServers) {
+		this.alternateServers = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(alternateServers));
+	}
+
+	/**
+	 * @return the servers tried after the server of a lost connection.
+	 */
+	final public List<InetSocketAddress> getAlternateServers() {
+		return alternateServers;
+	}
+
+	/**
+	 * Sets TCP_NODELAY on the socket, so the operating system sends what it is
+	 * given at once instead of waiting to fill a packet. The change only takes
+	 * effect at the time of the next call to openConnection().
+	 * 
+	 * @param tcpNoDelay
+	 *            true to disable the operating system's coalescing.
+	 */
+	final public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return true if TCP_NODELAY is set on the next connection.
+	 */
+	final public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * @return what writing to the server has cost since this client was
+	 *         created, updated as messages are sent.
+	 */
+	final public WriteStatistics getWriteStatistics() {
+		return writeStatistics;
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -225,12 +801,25 @@ public abstract class AbstractClient implements Runnable {
 
 		// Loop waiting for data
 
+		boolean lost = false;
 		try {
 			while (!readyToStop) {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				msg = frameInput != null ? Frames.read(frameInput, connectionCodec, compressionStatistics)
+						: DeflatedMessage.unwrap(input.readObject(), compressionStatistics);
+
+				HeartbeatMonitor monitor = heartbeatMonitor;
+				if (msg instanceof Heartbeat) {
+					if (monitor != null)
+						monitor.heartbeatReceived();
+					if (msg == Heartbeat.PING)
+						sendHeartbeat(Heartbeat.PONG);
+					continue;
+				}
+				if (monitor != null)
+					monitor.messageReceived();
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -243,11 +832,16 @@ public abstract class AbstractClient implements Runnable {
 				} catch (Exception ex) {
 				}
 
-				connectionException(exception);
+				lost = true;
+				SocketTimeoutException failure = heartbeatFailure;
+				connectionException(failure != null ? failure : exception);
 			}
 		} finally {
 			clientReader = null;
 		}
+
+		if (lost && !readyToStop && reconnectPolicy.isEnabled())
+			startReconnecting();
 	}
 
 	// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
@@ -280,6 +874,16 @@ public abstract class AbstractClient implements Runnable {
 	protected void connectionEstablished() {
 	}
 
+	/**
+	 * Hook method called when the reconnect policy gives up on a lost
+	 * connection. The default implementation does nothing.
+	 * 
+	 * @param exception
+	 *            the failure of the last attempt, or null if none was made.
+	 */
+	protected void reconnectFailed(Exception exception) {
+	}
+
 	/**
 	 * Handles a message sent from the server to this client. This MUST be
 	 * implemented by subclasses, who should respond to messages.
@@ -291,6 +895,215 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Starts opening the lost connection again, on a thread of its own since
+	 * the reader thread must end first.
+	 */
+	private void startReconnecting() {
+		Thread thread = ThreadMode.VIRTUAL.newThread(this::reconnect);
+		reconnector = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops opening the lost connection again, if that is under way.
+	 */
+	private void stopReconnecting() {
+		Thread thread = reconnector;
+		reconnector = null;
+		if (thread != null && thread != Thread.currentThread())
+			thread.interrupt();
+	}
+
+	/**
+	 * Tries the servers in turn, waiting as the reconnect policy says, until
+	 * a connection is open, the policy gives up, or the client is closed. Runs
+	 * on the reconnecting thread.
+	 */
+	private void reconnect() {
+		Thread self = Thread.currentThread();
+		ReconnectPolicy policy = reconnectPolicy;
+		List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+		servers.add(InetSocketAddress.createUnresolved(host, port));
+		servers.addAll(alternateServers);
+
+		Exception failure = null;
+		for (int attempt = 1; policy.allowsAttempt(attempt); attempt++) {
+			try {
+				Thread.sleep(policy.getDelayMillis(attempt));
+			} catch (InterruptedException ex) {
+				return; // Closed meanwhile
+			}
+			if (reconnector != self)
+				return;
+
+			InetSocketAddress server = servers.get((attempt - 1) % servers.size());
+			host = server.getHostString();
+			port = server.getPort();
+			try {
+				openConnection();
+				if (reconnector != self)
+					closeConnection(); // Closed while connecting
+				else
+					reconnector = null;
+				return;
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+
+		if (reconnector == self) {
+			reconnector = null;
+			reconnectFailed(failure);
+		}
+	}
+
+	/**
+	 * Has a heartbeat written by the writer thread, ahead of the messages
+	 * queued, which it does not need to wait for. The reader and the timer
+	 * never wait for the socket themselves: a writer blocked on a server
+	 * that does not read must not stop the client from reading.
+	 */
+	private void sendHeartbeat(Heartbeat heartbeat) {
+		synchronized (sendQueue) {
+			pendingHeartbeats.add(heartbeat); // One answers any number of pings
+			scheduleWriter();
+		}
+	}
+
+	/**
+	 * Starts a writer thread, unless one is draining the queue already. Must
+	 * be called holding the lock of the send queue.
+	 */
+	private void scheduleWriter() {
+		if (!writerScheduled) {
+			writerScheduled = true;
+			ThreadMode.VIRTUAL.newThread(this::drainSendQueue).start();
+		}
+	}
+
+	/**
+	 * Writes the queued messages until the queue is empty. Runs on the writer
+	 * thread.
+	 */
+	private void drainSendQueue() {
+		while (true) {
+			List<PendingMessage> written = new ArrayList<PendingMessage>();
+			try {
+				synchronized (writeLock) {
+					writeQueued(written);
+				}
+			} catch (IOException ex) {
+				failQueued(ex);
+			} finally {
+				complete(written);
+			}
+
+			// Stop only if nothing was queued meanwhile
+			synchronized (sendQueue) {
+				if (sendQueue.isEmpty() && pendingHeartbeats.isEmpty()) {
+					writerScheduled = false;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the heartbeats and then the messages queued, the run of them
+	 * ending with a single write to the socket. Must be called holding the
+	 * write lock.
+	 * 
+	 * @param written
+	 *            receives the messages taken from the queue, whose futures
+	 *            the caller completes once it no longer holds the lock.
+	 * @exception IOException
+	 *                if a message cannot be written.
+	 */
+	private void writeQueued(List<PendingMessage> written) throws IOException {
+		while (true) {
+			Heartbeat heartbeat = null;
+			PendingMessage next = null;
+			boolean more;
+			synchronized (sendQueue) {
+				if (!pendingHeartbeats.isEmpty()) {
+					heartbeat = pendingHeartbeats.iterator().next();
+					pendingHeartbeats.remove(heartbeat);
+				} else {
+					next = sendQueue.poll();
+					if (next == null)
+						return;
+					sendQueue.notifyAll(); // A sender may be waiting for room
+				}
+				more = !pendingHeartbeats.isEmpty() || !sendQueue.isEmpty();
+			}
+
+			if (heartbeat != null) {
+				writeItem(heartbeat, more);
+				continue;
+			}
+			written.add(next);
+			try {
+				writeItem(next.msg, more);
+			} catch (IOException ex) {
+				next.failure = ex;
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Writes a message. Must be called holding the write lock.
+	 * 
+	 * @param more
+	 *            true if another message will be written right after this one.
+	 */
+	private void writeItem(Object msg, boolean more) throws IOException {
+		CoalescingOutputStream socketOutput = this.socketOutput;
+		CountingObjectOutputStream output = this.output;
+		if (clientSocket == null || socketOutput == null)
+			throw new SocketException("socket does not exist");
+
+		if (connectionCodec != null) {
+			socketOutput.write(Frames.encode(msg, connectionCodec, connectionCompression, compressionStatistics));
+		} else {
+			output.writeMessage(DeflatedMessage.wrap(msg, connectionCompression, compressionStatistics),
+					resetPolicy);
+		}
+		socketOutput.endMessage(more);
+	}
+
+	/**
+	 * Completes the futures of messages taken from the queue.
+	 */
+	private static void complete(List<PendingMessage> written) {
+		for (PendingMessage pending : written) {
+			if (pending.failure == null)
+				pending.future.complete(null);
+			else
+				pending.future.completeExceptionally(pending.failure);
+		}
+	}
+
+	/**
+	 * Fails every queued message, forgets the heartbeats, and wakes the
+	 * senders waiting for room.
+	 * 
+	 * @param exception
+	 *            why the messages cannot be sent.
+	 */
+	private void failQueued(IOException exception) {
+		PendingMessage[] failed;
+		synchronized (sendQueue) {
+			failed = sendQueue.toArray(new PendingMessage[0]);
+			sendQueue.clear();
+			pendingHeartbeats.clear();
+			sendQueue.notifyAll();
+		}
+		for (PendingMessage pending : failed)
+			pending.future.completeExceptionally(exception);
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -303,13 +1116,20 @@ public abstract class AbstractClient implements Runnable {
 			if (clientSocket != null)
 				clientSocket.close();
 
-			// Close the output stream
+			// Close the output streams, the one under the object stream
+			// first so it does not try to write to the closed socket
+			if (socketOutput != null)
+				socketOutput.close();
 			if (output != null)
 				output.close();
 
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame stream
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
@@ -317,7 +1137,67 @@ public abstract class AbstractClient implements Runnable {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			socketOutput = null;
+			frameInput = null;
 			clientSocket = null;
+
+			HeartbeatMonitor monitor = heartbeatMonitor;
+			heartbeatMonitor = null;
+			if (monitor != null)
+				monitor.stop();
+
+			// What was not written before closing never will be
+			failQueued(new SocketException("connection closed"));
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Pings the server, and drops the connection once the server is given up.
+	 */
+	private final class HeartbeatPeer implements HeartbeatMonitor.Peer {
+		/**
+		 * The socket of the connection watched, which a reconnection replaces.
+		 */
+		private final Socket socket;
+
+		HeartbeatPeer(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void ping() throws IOException {
+			if (clientSocket == socket)
+				sendHeartbeat(Heartbeat.PING);
+		}
+
+		public void expire(SocketTimeoutException reason) {
+			// The reader fails, and handles the loss as any other
+			if (clientSocket == socket)
+				heartbeatFailure = reason;
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * A message sent asynchronously and its future.
+	 */
+	private static final class PendingMessage {
+		final Object msg;
+
+		final CompletableFuture<Void> future;
+
+		/**
+		 * Why the message could not be written, or null.
+		 */
+		IOException failure;
+
+		PendingMessage(Object msg, CompletableFuture<Void> future) {
+			this.msg = msg;
+			this.future = future;
 		}
 	}
 }
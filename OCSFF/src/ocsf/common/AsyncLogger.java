@@ -0,0 +1,542 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that never makes the threads logging wait for the console or a
+ * file. A line is a template, where each <code> {} </code> stands for an
+ * argument, and at most two arguments; logging it only stores them in a
+ * slot of a bounded ring, claimed without a lock. A background thread
+ * formats the lines and writes them in batches, flushing once per batch,
+ * so a burst of lines costs a few system calls instead of one per line.
+ * <p>
+ * When the ring is full, lines are dropped and counted rather than waited
+ * for. Lines logged for every message can also be sampled: beyond a number
+ * per second, only one in so many is kept, and the writer says how many
+ * were left out.
+ * <p>
+ * Arguments are turned into text by the writer thread, after the call
+ * returns, so they must not change once logged; strings and numbers are
+ * the usual ones.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.LogLevel
+ */
+public final class AsyncLogger implements Closeable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of lines the ring holds by default.
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * How often the writer says how many lines were sampled out, at most.
+	 */
+	private static final long SAMPLING_REPORT_NANOS = 1_000_000_000L;
+
+	/**
+	 * The most lines written in one batch.
+	 */
+	private static final int MAX_BATCH = 4096;
+
+	/**
+	 * How long the writer sleeps when the ring is empty, unless woken up.
+	 */
+	private static final long IDLE_NANOS = 50_000_000L;
+
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+			.withZone(ZoneId.systemDefault());
+
+	private static final LogLevel[] LEVELS = LogLevel.values();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Where the lines are written.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Indicates if the stream is closed with the logger.
+	 */
+	private final boolean ownsStream;
+
+	/**
+	 * The number of slots minus one; the number of slots is a power of two.
+	 */
+	private final int mask;
+
+	/**
+	 * The sequence of every slot: its position when it is free to be
+	 * claimed, its position plus one once its line is stored.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * The lines in the slots.
+	 */
+	private final byte[] levels;
+	private final long[] times;
+	private final String[] templates;
+	private final Object[] firsts;
+	private final Object[] seconds;
+
+	/**
+	 * The position of the next slot to claim.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * The position of the next slot to write. Only used by the writer.
+	 */
+	private long head = 0;
+
+	/**
+	 * The last time formatted, and its text. Only used by the writer.
+	 */
+	private long formattedMillis = -1;
+	private String formattedTime;
+
+	/**
+	 * The lowest level written.
+	 */
+	private volatile LogLevel level = LogLevel.INFO;
+
+	/**
+	 * The sampled lines per second kept in full, and the share of the others
+	 * kept.
+	 */
+	private volatile int samplingThreshold = Integer.MAX_VALUE;
+	private volatile int samplingOneIn = 1;
+
+	/**
+	 * When the current second of sampling started, and the sampled lines
+	 * logged in it.
+	 */
+	private final AtomicLong samplingWindow = new AtomicLong(System.nanoTime());
+	private final AtomicInteger samplingCount = new AtomicInteger();
+
+	/**
+	 * What the logger has done.
+	 */
+	private final LongAdder logged = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder sampledOut = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+
+	/**
+	 * The writer thread, once started.
+	 */
+	private volatile Thread writer;
+
+	/**
+	 * Indicates if the writer thread was started, on the first line logged.
+	 */
+	private final AtomicBoolean started = new AtomicBoolean(false);
+
+	/**
+	 * Indicates if the writer is about to sleep, and wants to be woken up.
+	 */
+	private volatile boolean idle = false;
+
+	/**
+	 * Indicates if the logger is closing or closed.
+	 */
+	private volatile boolean closed = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param out
+	 *            where the lines are written.
+	 * @param ownsStream
+	 *            true to close the stream with the logger.
+	 * @param capacity
+	 *            the most lines waiting to be written, rounded up to a power
+	 *            of two.
+	 */
+	public AsyncLogger(OutputStream out, boolean ownsStream, int capacity) {
+		if (out == null)
+			throw new NullPointerException("out");
+		if (capacity <= 0 || capacity > 1 << 24)
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		int slots = Integer.highestOneBit(capacity);
+		if (slots < capacity)
+			slots <<= 1;
+
+		this.out = out;
+		this.ownsStream = ownsStream;
+		this.mask = slots - 1;
+		this.sequences = new AtomicLongArray(slots);
+		for (int i = 0; i < slots; i++)
+			sequences.set(i, i);
+		this.levels = new byte[slots];
+		this.times = new long[slots];
+		this.templates = new String[slots];
+		this.firsts = new Object[slots];
+		this.seconds = new Object[slots];
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return a logger writing to the standard output, which it leaves open.
+	 */
+	public static AsyncLogger console() {
+		return new AsyncLogger(System.out, false, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param file
+	 *            the file the lines are added to, created if need be.
+	 * @return a logger writing to the file.
+	 * @exception IOException
+	 *                if the file cannot be opened.
+	 */
+	public static AsyncLogger toFile(Path file) throws IOException {
+		return new AsyncLogger(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+				StandardOpenOption.WRITE), true, DEFAULT_CAPACITY);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Sets the lowest level written. Lines below it cost a comparison.
+	 *
+	 * @param level
+	 *            the level.
+	 */
+	public void setLevel(LogLevel level) {
+		if (level == null)
+			throw new NullPointerException("level");
+		this.level = level;
+	}
+
+	/**
+	 * @return the lowest level written.
+	 */
+	public LogLevel getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param level
+	 *            a level.
+	 * @return true if lines of that level are written.
+	 */
+	public boolean isEnabled(LogLevel level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	/**
+	 * Sets how the lines logged with <code> sample </code> are thinned out.
+	 * By default none is.
+	 *
+	 * @param perSecond
+	 *            the lines kept in full in any second.
+	 * @param oneIn
+	 *            beyond that, one line is kept in so many.
+	 */
+	public void setSampling(int perSecond, int oneIn) {
+		if (perSecond < 0 || oneIn < 1)
+			throw new IllegalArgumentException("invalid sampling");
+		this.samplingThreshold = perSecond;
+		this.samplingOneIn = oneIn;
+	}
+
+	/**
+	 * Logs a line at the <code> DEBUG </code> level.
+	 *
+	 * @see #log(LogLevel, String, Object, Object)
+	 */
+	public void debug(String template, Object first, Object second) {
+		log(LogLevel.DEBUG, template, first, second);
+	}
+
+	/**
+	 * Logs a line at the <code> INFO </code> level.
+	 *
+	 * @see #log(LogLevel, String, Object, Object)
+	 */
+	public void info(String template) {
+		log(LogLevel.INFO, template, null, null);
+	}
+
+	/**
+	 * Logs a line at the <code> INFO </code> level.
+	 *
+	 * @see #log(LogLevel, String, Object, Object)
+	 */
+	public void info(String template, Object first) {
+		log(LogLevel.INFO, template, first, null);
+	}
+
+	/**
+	 * Logs a line at the <code> INFO </code> level.
+	 *
+	 * @see #log(LogLevel, String, Object, Object)
+	 */
+	public void info(String template, Object first, Object second) {
+		log(LogLevel.INFO, template, first, second);
+	}
+
+	/**
+	 * Logs a line at the <code> WARN </code> level.
+	 *
+	 * @see #log(LogLevel, String, Object, Object)
+	 */
+	public void warn(String template, Object first) {
+		log(LogLevel.WARN, template, first, null);
+	}
+
+	/**
+	 * Logs a line at the <code> WARN </code> level.
+	 *
+	 * @see #log(LogLevel, String, Object, Object)
+	 */
+	public void warn(String template, Object first, Object second) {
+		log(LogLevel.WARN, template, first, second);
+	}
+
+	/**
+	 * Logs a line, unless it is below the level of the logger or the ring is
+	 * full.
+	 *
+	 * @param level
+	 *            the level of the line.
+	 * @param template
+	 *            the text, where each <code> {} </code> stands for an
+	 *            argument.
+	 * @param first
+	 *            the first argument, or null.
+	 * @param second
+	 *            the second argument, or null.
+	 */
+	public void log(LogLevel level, String template, Object first, Object second) {
+		if (isEnabled(level))
+			publish(level, template, first, second);
+	}
+
+	/**
+	 * Logs one of the lines written for every message: kept in full up to
+	 * the sampling threshold in any second, one in so many beyond.
+	 *
+	 * @see #log(LogLevel, String, Object, Object)
+	 * @see #setSampling(int, int)
+	 */
+	public void sample(LogLevel level, String template, Object first, Object second) {
+		if (!isEnabled(level))
+			return;
+
+		long now = System.nanoTime();
+		long window = samplingWindow.get();
+		if (now - window >= 1_000_000_000L && samplingWindow.compareAndSet(window, now))
+			samplingCount.set(0);
+		int count = samplingCount.incrementAndGet();
+		if (count > samplingThreshold && count % samplingOneIn != 0) {
+			sampledOut.increment();
+			return;
+		}
+		publish(level, template, first, second);
+	}
+
+	/**
+	 * Writes every line logged so far, then stops the writer. Lines logged
+	 * afterwards are dropped.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		Thread writer = this.writer;
+		if (writer != null) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (ownsStream)
+			out.close();
+		else
+			out.flush();
+	}
+
+	/**
+	 * @return the number of lines written.
+	 */
+	public long getLinesLogged() {
+		return logged.sum();
+	}
+
+	/**
+	 * @return the number of lines dropped because the ring was full or the
+	 *         logger closed.
+	 */
+	public long getLinesDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return the number of lines left out by sampling.
+	 */
+	public long getLinesSampledOut() {
+		return sampledOut.sum();
+	}
+
+	/**
+	 * @return the number of batches written.
+	 */
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public String toString() {
+		return "logged=" + getLinesLogged() + " batches=" + getBatches() + " dropped=" + getLinesDropped()
+				+ " sampledOut=" + getLinesSampledOut();
+	}
+
+	/**
+	 * Claims a slot and stores a line in it.
+	 */
+	private void publish(LogLevel level, String template, Object first, Object second) {
+		if (closed) {
+			dropped.increment();
+			return;
+		}
+		if (!started.get() && started.compareAndSet(false, true))
+			startWriter();
+
+		long position;
+		int slot;
+		while (true) {
+			position = tail.get();
+			slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			if (difference == 0 && tail.compareAndSet(position, position + 1))
+				break;
+			if (difference < 0) { // The writer has not freed the slot yet
+				dropped.increment();
+				return;
+			}
+		}
+
+		levels[slot] = (byte) level.ordinal();
+		times[slot] = System.currentTimeMillis();
+		templates[slot] = template;
+		firsts[slot] = first;
+		seconds[slot] = second;
+		sequences.set(slot, position + 1); // Hands the slot to the writer, before reading idle
+
+		if (idle)
+			LockSupport.unpark(writer);
+	}
+
+	private void startWriter() {
+		Thread thread = new Thread(this::drain, "AsyncLogger");
+		thread.setDaemon(true);
+		writer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Writes the lines as they are logged, until the logger closes. Run by
+	 * the writer thread.
+	 */
+	private void drain() {
+		StringBuilder batch = new StringBuilder(4096);
+		long reported = 0;
+		long lastReport = System.nanoTime();
+
+		while (true) {
+			boolean closing = closed;
+			int count = 0;
+			while (count < MAX_BATCH) {
+				int slot = (int) head & mask;
+				if (sequences.get(slot) != head + 1)
+					break;
+				format(batch, slot);
+				templates[slot] = null;
+				firsts[slot] = null;
+				seconds[slot] = null;
+				sequences.lazySet(slot, head + mask + 1); // Free for the next round
+				head++;
+				count++;
+			}
+
+			long now = System.nanoTime();
+			long sampled = sampledOut.sum();
+			if (sampled != reported && (now - lastReport >= SAMPLING_REPORT_NANOS || closing)) {
+				batch.append(TIME.format(Instant.now())).append(" INFO  ").append(sampled - reported)
+						.append(" lines sampled out").append(System.lineSeparator());
+				reported = sampled;
+				lastReport = now;
+			}
+
+			if (batch.length() > 0) {
+				try {
+					out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+					out.flush();
+					logged.add(count);
+					batches.increment();
+				} catch (IOException ex) {
+					dropped.add(count); // Nowhere to say so
+				}
+				batch.setLength(0);
+				if (batch.capacity() > 1 << 20)
+					batch = new StringBuilder(4096);
+			}
+
+			if (count == 0) {
+				if (closing)
+					return;
+				idle = true;
+				if (sequences.get((int) head & mask) != head + 1 && !closed)
+					LockSupport.parkNanos(this, IDLE_NANOS);
+				idle = false;
+			}
+		}
+	}
+
+	/**
+	 * Appends a line to a batch, replacing each {} with the next argument.
+	 */
+	private void format(StringBuilder batch, int slot) {
+		if (times[slot] != formattedMillis) { // Lines come in bursts within the same millisecond
+			formattedMillis = times[slot];
+			formattedTime = TIME.format(Instant.ofEpochMilli(formattedMillis));
+		}
+		batch.append(formattedTime).append(' ');
+		String name = LEVELS[levels[slot]].name();
+		batch.append(name);
+		for (int i = name.length(); i < 6; i++)
+			batch.append(' ');
+
+		String template = templates[slot];
+		Object[] arguments = { firsts[slot], seconds[slot] };
+		int used = 0;
+		int from = 0;
+		int at;
+		while (used < 2 && (at = template.indexOf("{}", from)) >= 0) {
+			batch.append(template, from, at).append(arguments[used++]);
+			from = at + 2;
+		}
+		batch.append(template, from, template.length()).append(System.lineSeparator());
+	}
+}
+// End of AsyncLogger class
@@ -0,0 +1,234 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact codec for structured messages. Every value starts with a one byte
+ * tag; integers are written as zig-zag variable-length numbers, so small
+ * values take one or two bytes, and strings as a length followed by their
+ * UTF-8 bytes. No class names or descriptors are ever written.
+ * <p>
+ * Supported values are null, <code> String </code>, <code> Boolean </code>,
+ * <code> Integer </code>, <code> Long </code>, <code> Double </code>,
+ * <code> byte[] </code>, and any <code> List </code> or <code> Map </code> of
+ * supported values. Lists decode as <code> ArrayList </code> and maps as
+ * <code> LinkedHashMap </code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec#BINARY
+ */
+final class BinaryCodec implements MessageCodec {
+	// CLASS VARIABLES **************************************************
+
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int TRUE = 2;
+	private static final int FALSE = 3;
+	private static final int INT = 4;
+	private static final int LONG = 5;
+	private static final int DOUBLE = 6;
+	private static final int BYTES = 7;
+	private static final int LIST = 8;
+	private static final int MAP = 9;
+
+	/**
+	 * How deeply lists and maps may be nested in a decoded payload.
+	 */
+	private static final int MAX_DEPTH = 64;
+
+	// INSTANCE METHODS *************************************************
+
+	@Override
+	public String getName() {
+		return "binary";
+	}
+
+	@Override
+	public void encode(Object msg, OutputStream output) throws IOException {
+		write(msg, output);
+	}
+
+	@Override
+	public Object decode(byte[] buffer, int offset, int length) throws IOException {
+		Cursor cursor = new Cursor(buffer, offset, offset + length);
+		Object msg = cursor.readValue(0);
+		if (cursor.position != cursor.end)
+			throw new StreamCorruptedException("trailing bytes after binary message");
+		return msg;
+	}
+
+	// ENCODING ---------------------------------------------------------
+
+	private static void write(Object value, OutputStream output) throws IOException {
+		if (value == null) {
+			output.write(NULL);
+		} else if (value instanceof String) {
+			output.write(STRING);
+			writeBytes(((String) value).getBytes(StandardCharsets.UTF_8), output);
+		} else if (value instanceof Boolean) {
+			output.write((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Integer) {
+			output.write(INT);
+			writeVarLong(zigZag((Integer) value), output);
+		} else if (value instanceof Long) {
+			output.write(LONG);
+			writeVarLong(zigZag((Long) value), output);
+		} else if (value instanceof Double) {
+			output.write(DOUBLE);
+			long bits = Double.doubleToRawLongBits((Double) value);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				output.write((int) (bits >>> shift));
+		} else if (value instanceof byte[]) {
+			output.write(BYTES);
+			writeBytes((byte[]) value, output);
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			output.write(LIST);
+			writeVarLong(list.size(), output);
+			for (Object element : list)
+				write(element, output);
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			output.write(MAP);
+			writeVarLong(map.size(), output);
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				write(entry.getKey(), output);
+				write(entry.getValue(), output);
+			}
+		} else {
+			throw new NotSerializableException("the binary codec cannot encode " + value.getClass().getName());
+		}
+	}
+
+	private static void writeBytes(byte[] bytes, OutputStream output) throws IOException {
+		writeVarLong(bytes.length, output);
+		output.write(bytes);
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void writeVarLong(long value, OutputStream output) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.write((int) value);
+	}
+
+	// DECODING ---------------------------------------------------------
+
+	/**
+	 * Reads values from a payload.
+	 */
+	private static final class Cursor {
+		private final byte[] buffer;
+		private int position;
+		private final int end;
+
+		Cursor(byte[] buffer, int position, int end) {
+			this.buffer = buffer;
+			this.position = position;
+			this.end = end;
+		}
+
+		Object readValue(int depth) throws IOException {
+			int tag = readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				int length = readLength();
+				String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+				position += length;
+				return string;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return (int) unZigZag(readVarLong());
+			case LONG:
+				return unZigZag(readVarLong());
+			case DOUBLE:
+				long bits = 0;
+				for (int i = 0; i < 8; i++)
+					bits = (bits << 8) | readByte();
+				return Double.longBitsToDouble(bits);
+			case BYTES:
+				int size = readLength();
+				byte[] bytes = Arrays.copyOfRange(buffer, position, position + size);
+				position += size;
+				return bytes;
+			case LIST:
+				checkDepth(depth);
+				int count = readCount();
+				List<Object> list = new ArrayList<Object>(count);
+				for (int i = 0; i < count; i++)
+					list.add(readValue(depth + 1));
+				return list;
+			case MAP:
+				checkDepth(depth);
+				int entries = readCount();
+				Map<Object, Object> map = new LinkedHashMap<Object, Object>(entries * 4 / 3 + 1);
+				for (int i = 0; i < entries; i++)
+					map.put(readValue(depth + 1), readValue(depth + 1));
+				return map;
+			default:
+				throw new StreamCorruptedException("unknown binary tag: " + tag);
+			}
+		}
+
+		private int readByte() throws IOException {
+			if (position >= end)
+				throw new EOFException("truncated binary message");
+			return buffer[position++] & 0xFF;
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new StreamCorruptedException("malformed variable-length number");
+		}
+
+		/**
+		 * Reads the length of a string or byte array, which must fit in what
+		 * is left of the payload.
+		 */
+		private int readLength() throws IOException {
+			long length = readVarLong();
+			if (length < 0 || length > end - position)
+				throw new StreamCorruptedException("invalid binary length: " + length);
+			return (int) length;
+		}
+
+		/**
+		 * Reads the number of elements of a list or map. Every element takes
+		 * at least one byte, which bounds what a hostile payload can make us
+		 * allocate.
+		 */
+		private int readCount() throws IOException {
+			return readLength();
+		}
+
+		private static long unZigZag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private static void checkDepth(int depth) throws StreamCorruptedException {
+			if (depth >= MAX_DEPTH)
+				throw new StreamCorruptedException("binary message nested too deeply");
+		}
+	}
+}
+// End of BinaryCodec class
@@ -0,0 +1,260 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * A buffered stream to a socket that writes as a <code> FlushPolicy </code>
+ * says. The sender marks the end of every message with
+ * <code> endMessage </code>; the stream then either writes what it holds
+ * right away or holds it back, and a timer shared by every coalescing stream
+ * writes it once the oldest message has waited long enough.
+ * <p>
+ * Every method is synchronized on the stream, which is what the timer
+ * synchronizes on too. An error met by the timer is thrown by the next call.
+ * Closing the stream discards what it holds: <code> flush </code> it first
+ * to keep it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.FlushPolicy
+ */
+public class CoalescingOutputStream extends OutputStream {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The smallest buffer, used by immediate policies too so that a message is
+	 * written with a single system call.
+	 */
+	private static final int MIN_BUFFER_SIZE = 8 * 1024;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The stream of the socket.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * When to write.
+	 */
+	private final FlushPolicy policy;
+
+	/**
+	 * Where writes and delays are counted.
+	 */
+	private final WriteStatistics statistics;
+
+	/**
+	 * The bytes not written yet.
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * The number of bytes in the buffer.
+	 */
+	private int count = 0;
+
+	/**
+	 * The number of complete messages held back by the policy.
+	 */
+	private int held = 0;
+
+	/**
+	 * The times the held messages were completed, added up.
+	 */
+	private long heldSince = 0;
+
+	/**
+	 * Indicates if the timer will write the buffer.
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * Indicates if the stream is closed.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * The error met by the timer, if any.
+	 */
+	private IOException failure;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates a stream writing to a socket stream.
+	 *
+	 * @param out
+	 *            the stream of the socket.
+	 * @param policy
+	 *            when to write.
+	 * @param statistics
+	 *            where writes and delays are counted.
+	 */
+	public CoalescingOutputStream(OutputStream out, FlushPolicy policy, WriteStatistics statistics) {
+		this.out = out;
+		this.policy = policy;
+		this.statistics = statistics;
+		this.buffer = new byte[Math.max(MIN_BUFFER_SIZE, policy.getMaxBytes())];
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		ensureOpen();
+		if (count == buffer.length)
+			writeBuffer();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (len > buffer.length - count)
+			writeBuffer();
+
+		// Too large to be worth copying
+		if (len >= buffer.length) {
+			out.write(b, off, len);
+			statistics.recordWrite();
+			return;
+		}
+
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Marks the end of a message, which is then written or held back as the
+	 * policy says.
+	 *
+	 * @exception IOException
+	 *                if what the stream holds cannot be written.
+	 */
+	public void endMessage() throws IOException {
+		endMessage(false);
+	}
+
+	/**
+	 * Marks the end of a message, which is then written or held back as the
+	 * policy says.
+	 *
+	 * @param more
+	 *            true if the sender already has another message to write, in
+	 *            which case an immediate policy waits for it.
+	 * @exception IOException
+	 *                if what the stream holds cannot be written.
+	 */
+	public synchronized void endMessage(boolean more) throws IOException {
+		ensureOpen();
+		statistics.recordMessages(1);
+
+		if (policy.isImmediate()) {
+			if (!more)
+				flushBuffer();
+			return;
+		}
+
+		held++;
+		heldSince += System.nanoTime();
+		if (count >= policy.getMaxBytes()) {
+			flushBuffer();
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			Timer.INSTANCE.schedule(this::flushOnTimer, policy.getMaxDelayNanos(), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Writes everything the stream holds. Does nothing once closed.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (!closed)
+			flushBuffer();
+	}
+
+	/**
+	 * Discards what the stream holds and closes the socket stream.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		count = 0;
+		out.close();
+	}
+
+	/**
+	 * @return the policy of the stream.
+	 */
+	public FlushPolicy getPolicy() {
+		return policy;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new IOException("stream closed");
+		if (failure != null)
+			throw failure;
+	}
+
+	private void flushBuffer() throws IOException {
+		writeBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffer, which releases the messages held in it.
+	 */
+	private void writeBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			statistics.recordWrite();
+			count = 0;
+		}
+
+		if (held > 0) {
+			statistics.recordDelay(held, held * System.nanoTime() - heldSince);
+			held = 0;
+			heldSince = 0;
+		}
+	}
+
+	private synchronized void flushOnTimer() {
+		flushScheduled = false;
+		if (closed || failure != null)
+			return;
+
+		try {
+			flushBuffer();
+		} catch (IOException ex) {
+			failure = ex;
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The thread writing what coalescing streams held back, created the first
+	 * time it is needed.
+	 */
+	private static final class Timer {
+		static final ScheduledExecutorService INSTANCE;
+
+		static {
+			ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+				Thread thread = new Thread(task, "OCSF flush timer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.setRemoveOnCancelPolicy(true);
+			INSTANCE = timer;
+		}
+	}
+}
+// End of CoalescingOutputStream class
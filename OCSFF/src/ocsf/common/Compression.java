@@ -0,0 +1,265 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Which messages are deflated before being sent. Messages whose encoding is
+ * at least as long as a threshold are deflated, and sent deflated if that
+ * makes them shorter; short messages, which deflate poorly and are cheap to
+ * send anyway, are left alone.
+ * <p>
+ * Compression is negotiated when a connection opens. A client with
+ * compression starts its connection with a preamble saying it can inflate
+ * messages, which no client without compression sends, and a server with
+ * compression only deflates what it sends to such clients. Either end
+ * inflates whatever arrives deflated, whether or not it compresses itself.
+ * <p>
+ * A deflated payload is the length of the payload once inflated, four bytes
+ * big-endian, followed by the zlib stream. Frames carrying one are flagged in
+ * their header; object streams carry it in a <code> DeflatedMessage </code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Frames#DEFLATED
+ * @see ocsf.common.DeflatedMessage
+ * @see ocsf.common.CompressionStatistics
+ * @see ocsf.client.AbstractClient#setCompression(Compression)
+ * @see ocsf.server.AbstractServer#setCompression(Compression)
+ */
+public final class Compression {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Never deflates: the behaviour of the original framework.
+	 */
+	public static final Compression NONE = new Compression(0, 0);
+
+	/**
+	 * The number of bytes of the preamble.
+	 */
+	public static final int PREAMBLE_LENGTH = 4;
+
+	/**
+	 * The preamble of a client that inflates. Its first byte can start
+	 * neither an object stream nor a frame.
+	 */
+	private static final byte[] PREAMBLE = { 'O', 'C', 'Z', 1 };
+
+	/**
+	 * The length of the header of a deflated payload.
+	 */
+	private static final int LENGTH_HEADER = 4;
+
+	/**
+	 * Inflaters ready for use, shared by every connection.
+	 */
+	private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The length from which payloads are deflated, 0 for none.
+	 */
+	private final int threshold;
+
+	/**
+	 * The deflate level, from 1 for the fastest to 9 for the smallest.
+	 */
+	private final int level;
+
+	/**
+	 * Deflaters of this level ready for use. Each holds a few hundred
+	 * kilobytes of native memory, so they are reused rather than created
+	 * per message.
+	 */
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	// CONSTRUCTORS *****************************************************
+
+	private Compression(int threshold, int level) {
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @param threshold
+	 *            the length from which payloads are deflated, positive.
+	 * @return a policy deflating large payloads as fast as possible.
+	 */
+	public static Compression deflate(int threshold) {
+		return deflate(threshold, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param threshold
+	 *            the length from which payloads are deflated, positive.
+	 * @param level
+	 *            the deflate level, from 1 for the fastest to 9 for the
+	 *            smallest.
+	 * @return a policy deflating large payloads.
+	 */
+	public static Compression deflate(int threshold, int level) {
+		if (threshold <= 0)
+			throw new IllegalArgumentException("threshold must be positive");
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("invalid deflate level: " + level);
+		return new Compression(threshold, level);
+	}
+
+	/**
+	 * Writes the preamble of a client that inflates.
+	 *
+	 * @param output
+	 *            the stream to the server, before anything else is written.
+	 */
+	public static void writePreamble(OutputStream output) throws IOException {
+		output.write(PREAMBLE);
+	}
+
+	/**
+	 * Tells if bytes are the preamble of a client that inflates.
+	 *
+	 * @param buffer
+	 *            the array holding the first bytes received.
+	 * @param offset
+	 *            where they start; at least <code> PREAMBLE_LENGTH </code>
+	 *            bytes must follow.
+	 * @return true if they are the preamble.
+	 */
+	public static boolean isPreamble(byte[] buffer, int offset) {
+		return Arrays.equals(buffer, offset, offset + PREAMBLE_LENGTH, PREAMBLE, 0, PREAMBLE_LENGTH);
+	}
+
+	/**
+	 * Inflates a deflated payload.
+	 *
+	 * @param buffer
+	 *            the array holding the deflated payload.
+	 * @param offset
+	 *            where it starts.
+	 * @param length
+	 *            its length.
+	 * @param statistics
+	 *            where the work is counted, or null.
+	 * @return the payload.
+	 * @exception StreamCorruptedException
+	 *                if the payload is not valid or too large.
+	 */
+	public static byte[] inflate(byte[] buffer, int offset, int length, CompressionStatistics statistics)
+			throws IOException {
+		if (length < LENGTH_HEADER)
+			throw new StreamCorruptedException("invalid deflated payload");
+		int inflatedLength = Frames.checkLength(((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+				| ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF));
+
+		long start = System.nanoTime();
+		Inflater inflater = INFLATERS.poll();
+		if (inflater == null)
+			inflater = new Inflater();
+		try {
+			inflater.setInput(buffer, offset + LENGTH_HEADER, length - LENGTH_HEADER);
+			byte[] inflated = new byte[inflatedLength];
+			int count = 0;
+			while (count < inflatedLength) {
+				int n = inflater.inflate(inflated, count, inflatedLength - count);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				count += n;
+			}
+			// The end of the stream may only be seen once the output is full
+			if (count == inflatedLength && !inflater.finished())
+				count += inflater.inflate(new byte[1]);
+			if (count != inflatedLength || !inflater.finished())
+				throw new StreamCorruptedException("invalid deflated payload");
+
+			if (statistics != null)
+				statistics.recordInflate(inflatedLength, System.nanoTime() - start);
+			return inflated;
+		} catch (DataFormatException ex) {
+			throw new StreamCorruptedException("invalid deflated payload: " + ex.getMessage());
+		} finally {
+			inflater.reset();
+			INFLATERS.offer(inflater);
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if some payloads are deflated.
+	 */
+	public boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	/**
+	 * Deflates a payload, if it is long enough and deflating makes it
+	 * shorter.
+	 *
+	 * @param buffer
+	 *            the array holding the payload.
+	 * @param offset
+	 *            where it starts.
+	 * @param length
+	 *            its length.
+	 * @param statistics
+	 *            where the work is counted, or null.
+	 * @return the deflated payload, or null if the payload is to be sent as
+	 *         it is.
+	 */
+	public byte[] deflate(byte[] buffer, int offset, int length, CompressionStatistics statistics) {
+		if (!isEnabled() || length < threshold)
+			return null;
+
+		long start = System.nanoTime();
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			deflater = new Deflater(level);
+		try {
+			deflater.setInput(buffer, offset, length);
+			deflater.finish();
+
+			// Anything as long as the payload is not worth sending
+			byte[] deflated = new byte[LENGTH_HEADER + length];
+			Frames.putLength(deflated, 0, length);
+			int count = LENGTH_HEADER;
+			while (!deflater.finished() && count < deflated.length)
+				count += deflater.deflate(deflated, count, deflated.length - count);
+
+			boolean shorter = deflater.finished() && count < length;
+			if (statistics != null)
+				statistics.recordDeflate(length, shorter ? count : length, System.nanoTime() - start);
+			return shorter ? Arrays.copyOf(deflated, count) : null;
+		} finally {
+			deflater.reset();
+			deflaters.offer(deflater);
+		}
+	}
+
+	/**
+	 * @return the length from which payloads are deflated, 0 if none is.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the deflate level.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public String toString() {
+		return isEnabled() ? "deflate from " + threshold + " bytes at level " + level : "none";
+	}
+}
+// End of Compression class
@@ -0,0 +1,150 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the compression of a client or server does: messages deflated
+ * and their size before and after, messages left alone because deflating
+ * them saved nothing, messages inflated, and the time spent on both. A
+ * message sent to many clients is deflated, and counted, once. Updated
+ * concurrently by every connection sharing it.
+ * <p>
+ * The times are measured around the calls to the compression library on the
+ * calling thread, which does nothing else meanwhile: they are the processor
+ * time compression costs, give or take the thread being descheduled.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Compression
+ */
+public final class CompressionStatistics {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final LongAdder deflated = new LongAdder();
+
+	private final LongAdder bytesBeforeDeflate = new LongAdder();
+
+	private final LongAdder bytesAfterDeflate = new LongAdder();
+
+	private final LongAdder deflateNanos = new LongAdder();
+
+	private final LongAdder notWorthDeflating = new LongAdder();
+
+	private final LongAdder inflated = new LongAdder();
+
+	private final LongAdder bytesInflated = new LongAdder();
+
+	private final LongAdder inflateNanos = new LongAdder();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records a payload deflated.
+	 *
+	 * @param before
+	 *            its length before.
+	 * @param after
+	 *            its length after, the length it was sent with if deflating
+	 *            saved nothing.
+	 * @param nanos
+	 *            the time deflating took.
+	 */
+	public void recordDeflate(int before, int after, long nanos) {
+		deflateNanos.add(nanos);
+		if (after >= before) {
+			notWorthDeflating.increment();
+			return;
+		}
+		deflated.increment();
+		bytesBeforeDeflate.add(before);
+		bytesAfterDeflate.add(after);
+	}
+
+	/**
+	 * Records a payload inflated.
+	 *
+	 * @param after
+	 *            its length once inflated.
+	 * @param nanos
+	 *            the time inflating took.
+	 */
+	public void recordInflate(int after, long nanos) {
+		inflated.increment();
+		bytesInflated.add(after);
+		inflateNanos.add(nanos);
+	}
+
+	/**
+	 * @return the number of messages sent deflated.
+	 */
+	public long getMessagesDeflated() {
+		return deflated.sum();
+	}
+
+	/**
+	 * @return the number of messages deflated for nothing, and sent as they
+	 *         were.
+	 */
+	public long getMessagesNotWorthDeflating() {
+		return notWorthDeflating.sum();
+	}
+
+	/**
+	 * @return the bytes of the messages sent deflated, before deflating.
+	 */
+	public long getBytesBeforeDeflate() {
+		return bytesBeforeDeflate.sum();
+	}
+
+	/**
+	 * @return the bytes of the messages sent deflated, after deflating.
+	 */
+	public long getBytesAfterDeflate() {
+		return bytesAfterDeflate.sum();
+	}
+
+	/**
+	 * @return the size of the messages sent deflated relative to their size
+	 *         before, 1 if none was.
+	 */
+	public double getCompressionRatio() {
+		long before = getBytesBeforeDeflate();
+		return before == 0 ? 1 : (double) getBytesAfterDeflate() / before;
+	}
+
+	/**
+	 * @return the time spent deflating, in nanoseconds.
+	 */
+	public long getDeflateNanos() {
+		return deflateNanos.sum();
+	}
+
+	/**
+	 * @return the number of messages received deflated.
+	 */
+	public long getMessagesInflated() {
+		return inflated.sum();
+	}
+
+	/**
+	 * @return the bytes of the messages received deflated, once inflated.
+	 */
+	public long getBytesInflated() {
+		return bytesInflated.sum();
+	}
+
+	/**
+	 * @return the time spent inflating, in nanoseconds.
+	 */
+	public long getInflateNanos() {
+		return inflateNanos.sum();
+	}
+
+	public String toString() {
+		return "deflated=" + getMessagesDeflated() + " notWorthIt=" + getMessagesNotWorthDeflating()
+				+ String.format(" ratio=%.3f deflateMs=%.1f", getCompressionRatio(), getDeflateNanos() / 1e6)
+				+ " inflated=" + getMessagesInflated() + String.format(" inflateMs=%.1f", getInflateNanos() / 1e6);
+	}
+}
+// End of CompressionStatistics class
@@ -0,0 +1,146 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * An object stream that knows how much it remembers. It counts the entries of
+ * its handle table (objects and class descriptors written since the last
+ * reset) and the bytes and messages written since then, and resets itself as
+ * a <code> ResetPolicy </code> asks.
+ * <p>
+ * The count is kept by watching what the stream does rather than by looking
+ * into it: a new object goes through <code> replaceObject </code> and a new
+ * class descriptor through <code> writeClassDescriptor </code> exactly when
+ * they are given a handle. Only the rare proxy class descriptors and
+ * <code> Class </code> objects are not counted.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.ResetPolicy
+ */
+public class CountingObjectOutputStream extends ObjectOutputStream {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Counts the bytes going to the underlying stream.
+	 */
+	private final ByteCounter counter;
+
+	/**
+	 * Handles assigned since the last reset.
+	 */
+	private int handles = 0;
+
+	/**
+	 * Messages written since the last reset.
+	 */
+	private long messagesSinceReset = 0;
+
+	/**
+	 * The byte count at the last reset.
+	 */
+	private long bytesAtReset = 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates an object stream writing to the given stream, and writes the
+	 * stream header.
+	 *
+	 * @param output
+	 *            the underlying stream.
+	 * @exception IOException
+	 *                if the header cannot be written.
+	 */
+	public CountingObjectOutputStream(OutputStream output) throws IOException {
+		this(new ByteCounter(output));
+	}
+
+	private CountingObjectOutputStream(ByteCounter counter) throws IOException {
+		super(counter);
+		this.counter = counter;
+		enableReplaceObject(true);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Writes one message, then resets the stream if the policy asks for it.
+	 *
+	 * @param msg
+	 *            the message.
+	 * @param policy
+	 *            when to reset.
+	 * @exception IOException
+	 *                if the message cannot be written.
+	 */
+	public void writeMessage(Object msg, ResetPolicy policy) throws IOException {
+		writeObject(msg);
+		messagesSinceReset++;
+
+		if (policy.shouldReset(messagesSinceReset, counter.count - bytesAtReset))
+			reset();
+	}
+
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		handles = 0;
+		messagesSinceReset = 0;
+		bytesAtReset = counter.count;
+	}
+
+	/**
+	 * @return the number of entries of the handle table, that is the objects
+	 *         and class descriptors the stream keeps until its next reset.
+	 */
+	public int getHandleCount() {
+		return handles;
+	}
+
+	/**
+	 * @return the number of bytes written since the stream was created.
+	 */
+	public long getBytesWritten() {
+		return counter.count;
+	}
+
+	@Override
+	protected Object replaceObject(Object obj) {
+		handles++; // Called once for each object given a handle
+		return obj;
+	}
+
+	@Override
+	protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+		handles++;
+		super.writeClassDescriptor(desc);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Passes bytes through, counting them.
+	 */
+	private static final class ByteCounter extends FilterOutputStream {
+		private long count = 0;
+
+		ByteCounter(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
+// End of CountingObjectOutputStream class
@@ -0,0 +1,89 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A message deflated for a continuous object stream. It holds the message
+ * serialized on its own and deflated; the receiving end replaces it with the
+ * message before handing it to the application, which never sees it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Compression
+ */
+public final class DeflatedMessage implements Serializable {
+	// CLASS VARIABLES **************************************************
+
+	private static final long serialVersionUID = 1L;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The deflated serialization of the message.
+	 */
+	private final byte[] payload;
+
+	// CONSTRUCTORS *****************************************************
+
+	private DeflatedMessage(byte[] payload) {
+		this.payload = payload;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns what to write to an object stream for a message: the message
+	 * deflated, if the compression applies to it and deflating makes it
+	 * shorter, or else the message itself.
+	 *
+	 * @param msg
+	 *            the message.
+	 * @param compression
+	 *            the compression of the connection.
+	 * @param statistics
+	 *            where the work is counted, or null.
+	 * @return the object to write.
+	 * @exception IOException
+	 *                if the message cannot be serialized.
+	 */
+	public static Object wrap(Object msg, Compression compression, CompressionStatistics statistics)
+			throws IOException {
+		if (!compression.isEnabled())
+			return msg;
+		// A string cannot serialize longer than three bytes per character
+		if (msg instanceof String && ((String) msg).length() * 3L + 16 < compression.getThreshold())
+			return msg;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		MessageCodec.SERIALIZATION.encode(msg, bytes);
+		byte[] deflated = compression.deflate(bytes.toByteArray(), 0, bytes.size(), statistics);
+		return deflated == null ? msg : new DeflatedMessage(deflated);
+	}
+
+	/**
+	 * Returns a message read from an object stream, inflated if it arrived
+	 * deflated.
+	 *
+	 * @param msg
+	 *            the object read.
+	 * @param statistics
+	 *            where the work is counted, or null.
+	 * @return the message.
+	 * @exception IOException
+	 *                if the deflated message is not valid.
+	 * @exception ClassNotFoundException
+	 *                if the message names a class that cannot be found.
+	 */
+	public static Object unwrap(Object msg, CompressionStatistics statistics)
+			throws IOException, ClassNotFoundException {
+		if (!(msg instanceof DeflatedMessage))
+			return msg;
+		byte[] payload = ((DeflatedMessage) msg).payload;
+		if (payload == null)
+			throw new StreamCorruptedException("invalid deflated message");
+		byte[] inflated = Compression.inflate(payload, 0, payload.length, statistics);
+		return MessageCodec.SERIALIZATION.decode(inflated, 0, inflated.length);
+	}
+}
+// End of DeflatedMessage class
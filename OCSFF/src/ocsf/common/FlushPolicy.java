@@ -0,0 +1,99 @@
+package ocsf.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When the bytes of the messages sent through a connection are handed to the
+ * socket. An immediate policy writes every message as soon as it is complete,
+ * for the lowest latency. A coalescing policy holds complete messages back
+ * until enough bytes have gathered or the oldest of them has waited long
+ * enough, so that many small messages share one system call.
+ * <p>
+ * Whatever the policy, messages that are already waiting to be written when
+ * one is complete are written together with it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.CoalescingOutputStream
+ * @see ocsf.common.WriteStatistics
+ */
+public final class FlushPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Writes every message as soon as it is complete: the behaviour of the
+	 * original framework.
+	 */
+	public static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The longest a message is held back, in nanoseconds.
+	 */
+	private final long maxDelayNanos;
+
+	/**
+	 * The number of bytes held back that triggers a write.
+	 */
+	private final int maxBytes;
+
+	// CONSTRUCTORS *****************************************************
+
+	private FlushPolicy(long maxDelayNanos, int maxBytes) {
+		this.maxDelayNanos = maxDelayNanos;
+		this.maxBytes = maxBytes;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns a policy holding messages back until some bytes have gathered
+	 * or some time has passed, whichever comes first.
+	 *
+	 * @param maxDelay
+	 *            the longest a message is held back, positive.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @param maxBytes
+	 *            the number of bytes that triggers a write, positive.
+	 * @return the policy.
+	 */
+	public static FlushPolicy coalesce(long maxDelay, TimeUnit unit, int maxBytes) {
+		if (maxDelay <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException("coalescing needs a positive delay and size");
+		return new FlushPolicy(unit.toNanos(maxDelay), maxBytes);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if messages are never held back.
+	 */
+	public boolean isImmediate() {
+		return maxBytes == 0;
+	}
+
+	/**
+	 * @return the longest a message is held back, in nanoseconds; 0 if the
+	 *         policy is immediate.
+	 */
+	public long getMaxDelayNanos() {
+		return maxDelayNanos;
+	}
+
+	/**
+	 * @return the number of bytes held back that triggers a write; 0 if the
+	 *         policy is immediate.
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public String toString() {
+		return isImmediate() ? "immediate"
+				: "coalesce up to " + maxBytes + " bytes or " + TimeUnit.NANOSECONDS.toMicros(maxDelayNanos) + " us";
+	}
+}
+// End of FlushPolicy class
@@ -0,0 +1,274 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Helper methods for the length-prefixed framing used by connections that do
+ * not exchange a continuous object stream, such as the connections of the
+ * selector server engine. A frame is a four byte big-endian payload length
+ * followed by the payload, which holds exactly one message encoded by a
+ * <code> MessageCodec </code>.
+ * <p>
+ * The highest bit of the header, which no valid length uses, flags a payload
+ * that was deflated after encoding. The next one flags a control frame, a
+ * header alone whose low bits say what it is, such as a
+ * <code> Heartbeat </code>: no codec is involved.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ServerEngine#SELECTOR
+ * @see ocsf.common.MessageCodec
+ */
+public final class Frames {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of bytes in front of every payload.
+	 */
+	public static final int HEADER_LENGTH = 4;
+
+	/**
+	 * The largest payload accepted. Anything larger is treated as a corrupted
+	 * stream rather than an invitation to allocate the memory.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * The bit of the header flagging a deflated payload.
+	 */
+	public static final int DEFLATED = 0x80000000;
+
+	/**
+	 * The bit of the header flagging a control frame.
+	 */
+	public static final int CONTROL = 0x40000000;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Frames() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Encodes a message into a complete frame, header included.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param codec
+	 *            the codec producing the payload.
+	 * @return the frame.
+	 * @exception IOException
+	 *                if the message cannot be encoded or is too large.
+	 */
+	public static byte[] encode(Object msg, MessageCodec codec) throws IOException {
+		if (msg instanceof Heartbeat)
+			return control((Heartbeat) msg);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		bytes.write(new byte[HEADER_LENGTH]); // Room for the header
+		codec.encode(msg, bytes);
+
+		byte[] frame = bytes.toByteArray();
+		putLength(frame, 0, checkLength(frame.length - HEADER_LENGTH));
+		return frame;
+	}
+
+	/**
+	 * Encodes a message into a complete frame, deflated if the compression
+	 * applies to it.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param codec
+	 *            the codec producing the payload.
+	 * @param compression
+	 *            the compression of the connection.
+	 * @param statistics
+	 *            where the compression work is counted, or null.
+	 * @return the frame.
+	 * @exception IOException
+	 *                if the message cannot be encoded or is too large.
+	 */
+	public static byte[] encode(Object msg, MessageCodec codec, Compression compression,
+			CompressionStatistics statistics) throws IOException {
+		if (msg instanceof Heartbeat)
+			return control((Heartbeat) msg);
+		return deflate(encode(msg, codec), compression, statistics);
+	}
+
+	/**
+	 * Encodes a heartbeat into a control frame.
+	 *
+	 * @param heartbeat
+	 *            the heartbeat.
+	 * @return the frame, a header alone.
+	 */
+	public static byte[] control(Heartbeat heartbeat) {
+		byte[] frame = new byte[HEADER_LENGTH];
+		putLength(frame, 0, CONTROL | heartbeat.code());
+		return frame;
+	}
+
+	/**
+	 * Returns a frame with its payload deflated, if the compression applies
+	 * to it, or else the frame itself.
+	 *
+	 * @param frame
+	 *            a frame whose payload is not deflated.
+	 * @param compression
+	 *            the compression of the connection.
+	 * @param statistics
+	 *            where the compression work is counted, or null.
+	 * @return the frame to send.
+	 */
+	public static byte[] deflate(byte[] frame, Compression compression, CompressionStatistics statistics) {
+		byte[] deflated = compression.deflate(frame, HEADER_LENGTH, frame.length - HEADER_LENGTH, statistics);
+		if (deflated == null)
+			return frame;
+
+		byte[] deflatedFrame = new byte[HEADER_LENGTH + deflated.length];
+		putLength(deflatedFrame, 0, deflated.length | DEFLATED);
+		System.arraycopy(deflated, 0, deflatedFrame, HEADER_LENGTH, deflated.length);
+		return deflatedFrame;
+	}
+
+	/**
+	 * Reads one frame from a stream and decodes its payload. Blocks until the
+	 * whole frame has arrived.
+	 *
+	 * @param input
+	 *            the stream to read from.
+	 * @param codec
+	 *            the codec that produced the payload.
+	 * @return the decoded message.
+	 */
+	public static Object read(DataInputStream input, MessageCodec codec)
+			throws IOException, ClassNotFoundException {
+		return read(input, codec, null);
+	}
+
+	/**
+	 * Reads one frame from a stream and decodes its payload, inflating it
+	 * first if it is deflated. Blocks until the whole frame has arrived.
+	 * A control frame is returned as the heartbeat it stands for.
+	 *
+	 * @param input
+	 *            the stream to read from.
+	 * @param codec
+	 *            the codec that produced the payload.
+	 * @param statistics
+	 *            where the compression work is counted, or null.
+	 * @return the decoded message.
+	 */
+	public static Object read(DataInputStream input, MessageCodec codec, CompressionStatistics statistics)
+			throws IOException, ClassNotFoundException {
+		int header = input.readInt();
+		if (isControl(header))
+			return heartbeat(header);
+		int length = payloadLength(header);
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return decode(payload, 0, length, isDeflated(header), codec, statistics);
+	}
+
+	/**
+	 * Decodes a payload, inflating it first if it is deflated.
+	 *
+	 * @param buffer
+	 *            the array holding the payload.
+	 * @param offset
+	 *            where the payload starts.
+	 * @param length
+	 *            the payload length.
+	 * @param deflated
+	 *            true if the header flags the payload as deflated.
+	 * @param codec
+	 *            the codec that produced the payload.
+	 * @param statistics
+	 *            where the compression work is counted, or null.
+	 * @return the decoded message.
+	 */
+	public static Object decode(byte[] buffer, int offset, int length, boolean deflated, MessageCodec codec,
+			CompressionStatistics statistics) throws IOException, ClassNotFoundException {
+		if (!deflated)
+			return codec.decode(buffer, offset, length);
+		byte[] inflated = Compression.inflate(buffer, offset, length, statistics);
+		return codec.decode(inflated, 0, inflated.length);
+	}
+
+	/**
+	 * Validates a header and returns the length of the payload following it.
+	 *
+	 * @param header
+	 *            the header.
+	 * @return the payload length.
+	 * @exception StreamCorruptedException
+	 *                if the length is too large.
+	 */
+	public static int payloadLength(int header) throws StreamCorruptedException {
+		return checkLength(header & ~DEFLATED);
+	}
+
+	/**
+	 * @param header
+	 *            the header of a frame.
+	 * @return true if it is a control frame, without a payload.
+	 */
+	public static boolean isControl(int header) {
+		return (header & (DEFLATED | CONTROL)) == CONTROL;
+	}
+
+	/**
+	 * Returns the heartbeat a control frame stands for.
+	 *
+	 * @param header
+	 *            the header of a control frame.
+	 * @return the heartbeat.
+	 * @exception StreamCorruptedException
+	 *                if the header stands for no heartbeat.
+	 */
+	public static Heartbeat heartbeat(int header) throws StreamCorruptedException {
+		Heartbeat heartbeat = Heartbeat.of(header & ~CONTROL);
+		if (heartbeat == null)
+			throw new StreamCorruptedException("invalid control frame: " + Integer.toHexString(header));
+		return heartbeat;
+	}
+
+	/**
+	 * @param header
+	 *            the header of a frame.
+	 * @return true if its payload is deflated.
+	 */
+	public static boolean isDeflated(int header) {
+		return (header & DEFLATED) != 0;
+	}
+
+	/**
+	 * Validates a payload length read from, or about to be written to, a
+	 * header.
+	 *
+	 * @param length
+	 *            the payload length.
+	 * @return the length, if it is valid.
+	 * @exception StreamCorruptedException
+	 *                if the length is negative or too large.
+	 */
+	public static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+			throw new StreamCorruptedException("invalid frame length: " + length);
+		return length;
+	}
+
+	/**
+	 * Writes a payload length, big-endian, into an array.
+	 */
+	public static void putLength(byte[] buffer, int offset, int length) {
+		buffer[offset] = (byte) (length >>> 24);
+		buffer[offset + 1] = (byte) (length >>> 16);
+		buffer[offset + 2] = (byte) (length >>> 8);
+		buffer[offset + 3] = (byte) length;
+	}
+}
+// End of Frames class
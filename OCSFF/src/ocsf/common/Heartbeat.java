@@ -0,0 +1,45 @@
+package ocsf.common;
+
+/**
+ * The messages a client and a server exchange to tell that the connection
+ * is alive. They are answered and consumed by the framework and never reach
+ * the handlers. On object streams they travel as objects; between frames
+ * they are control frames, a header with no payload, so that every codec
+ * carries them.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.HeartbeatPolicy
+ * @see ocsf.common.Frames#CONTROL
+ */
+public enum Heartbeat {
+	/**
+	 * Asks the other end to answer.
+	 */
+	PING,
+
+	/**
+	 * Answers a ping.
+	 */
+	PONG;
+
+	private static final Heartbeat[] CODES = values();
+
+	/**
+	 * @return the code of this heartbeat in a control frame.
+	 */
+	public int code() {
+		return ordinal() + 1;
+	}
+
+	/**
+	 * @param code
+	 *            the code of a control frame.
+	 * @return the heartbeat with that code, or null if there is none.
+	 */
+	public static Heartbeat of(int code) {
+		return code >= 1 && code <= CODES.length ? CODES[code - 1] : null;
+	}
+}
+// End of Heartbeat enum
@@ -0,0 +1,208 @@
+package ocsf.common;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches one connection as a <code> HeartbeatPolicy </code> says. Reading
+ * from the connection only records the time, and never touches the timer
+ * wheel: the monitor has a single task on the wheel, due at the earliest
+ * thing to do, and when that task runs it looks at the times recorded and
+ * either does that thing or schedules itself again. A busy connection thus
+ * costs one task per interval, however many messages it reads.
+ * <p>
+ * Pings and closing are done on a virtual thread, since the thread of the
+ * wheel must not wait for a socket or for the hooks closing calls.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.TimerWheel
+ */
+public final class HeartbeatMonitor {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final TimerWheel wheel;
+
+	private final Peer peer;
+
+	private final long intervalNanos;
+
+	private final long timeoutNanos;
+
+	private final long idleTimeoutNanos;
+
+	/**
+	 * When something, a heartbeat or a message, was last heard.
+	 */
+	private volatile long lastHeard;
+
+	/**
+	 * When a message other than a heartbeat last arrived.
+	 */
+	private volatile long lastMessage;
+
+	/**
+	 * When the last ping was sent. Used by the thread of the wheel only.
+	 */
+	private long lastPing;
+
+	/**
+	 * The next check, or null if there is none yet.
+	 */
+	private volatile TimerWheel.Timeout check;
+
+	private volatile boolean stopped = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a monitor, which does nothing until started.
+	 *
+	 * @param policy
+	 *            when the connection is pinged and closed.
+	 * @param wheel
+	 *            the wheel timing the checks.
+	 * @param peer
+	 *            what pings and closes the connection.
+	 */
+	public HeartbeatMonitor(HeartbeatPolicy policy, TimerWheel wheel, Peer peer) {
+		this.wheel = wheel;
+		this.peer = peer;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(policy.getIntervalMillis());
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(policy.getTimeoutMillis());
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(policy.getIdleTimeoutMillis());
+		long now = System.nanoTime();
+		lastHeard = now;
+		lastMessage = now;
+		lastPing = now;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Starts watching the connection, counting from now.
+	 */
+	public void start() {
+		long now = System.nanoTime();
+		lastHeard = now;
+		lastMessage = now;
+		schedule(nextCheck(now) - now);
+	}
+
+	/**
+	 * Stops watching the connection. Safe to call more than once, and from
+	 * any thread.
+	 */
+	public void stop() {
+		stopped = true;
+		TimerWheel.Timeout check = this.check;
+		if (check != null)
+			check.cancel();
+	}
+
+	/**
+	 * Records that a heartbeat arrived.
+	 */
+	public void heartbeatReceived() {
+		lastHeard = System.nanoTime();
+	}
+
+	/**
+	 * Records that a message arrived.
+	 */
+	public void messageReceived() {
+		long now = System.nanoTime();
+		lastHeard = now;
+		if (idleTimeoutNanos > 0)
+			lastMessage = now;
+	}
+
+	/**
+	 * Closes or pings the connection if it is time to, and schedules the
+	 * next check. Runs on the thread of the wheel.
+	 */
+	private void check() {
+		if (stopped)
+			return;
+
+		long now = System.nanoTime();
+		long heard = lastHeard;
+		if (timeoutNanos > 0 && now - heard >= timeoutNanos) {
+			expire("nothing heard for " + TimeUnit.NANOSECONDS.toMillis(now - heard) + " ms");
+			return;
+		}
+		if (idleTimeoutNanos > 0 && now - lastMessage >= idleTimeoutNanos) {
+			expire("no message for " + TimeUnit.NANOSECONDS.toMillis(now - lastMessage) + " ms");
+			return;
+		}
+
+		if (intervalNanos > 0 && now - Math.max(heard, lastPing) >= intervalNanos) {
+			lastPing = now;
+			ThreadMode.VIRTUAL.newThread(() -> {
+				try {
+					peer.ping();
+				} catch (IOException ex) {
+					// Reading fails too, or the timeout closes the connection
+				}
+			}).start();
+		}
+
+		schedule(nextCheck(now) - now);
+	}
+
+	/**
+	 * @return when the next ping or closing is due, if nothing is heard
+	 *         meanwhile.
+	 */
+	private long nextCheck(long now) {
+		long next = Long.MAX_VALUE;
+		long heard = lastHeard;
+		if (intervalNanos > 0)
+			next = Math.max(heard, lastPing) + intervalNanos;
+		if (timeoutNanos > 0)
+			next = Math.min(next, heard + timeoutNanos);
+		if (idleTimeoutNanos > 0)
+			next = Math.min(next, lastMessage + idleTimeoutNanos);
+		return Math.max(next, now);
+	}
+
+	private void schedule(long delayNanos) {
+		TimerWheel.Timeout check = wheel.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+		this.check = check;
+		if (stopped) // Stopped while scheduling
+			check.cancel();
+	}
+
+	private void expire(String reason) {
+		stopped = true;
+		SocketTimeoutException exception = new SocketTimeoutException(reason);
+		ThreadMode.VIRTUAL.newThread(() -> peer.expire(exception)).start();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The connection a monitor watches.
+	 */
+	public interface Peer {
+		/**
+		 * Sends a ping to the other end. Called on a virtual thread.
+		 *
+		 * @exception IOException
+		 *                if the ping cannot be written.
+		 */
+		void ping() throws IOException;
+
+		/**
+		 * Closes the connection, the other end being dead or idle. Called on
+		 * a virtual thread, once.
+		 *
+		 * @param reason
+		 *            what the policy found.
+		 */
+		void expire(SocketTimeoutException reason);
+	}
+}
+// End of HeartbeatMonitor class
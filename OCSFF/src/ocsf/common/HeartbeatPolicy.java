@@ -0,0 +1,143 @@
+package ocsf.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a connection is checked for being alive, and when it is given up.
+ * A connection that has heard nothing from the other end for an interval is
+ * sent a ping, which the other end answers; once nothing at all has been
+ * heard for the timeout, the other end is taken for dead and the connection
+ * is closed. An idle timeout also closes a connection over which no message
+ * other than heartbeats has arrived for that long.
+ * <p>
+ * Without heartbeats, a connection whose other end vanished without closing
+ * it, such as a laptop put to sleep or a mapping dropped by a router, looks
+ * open for as long as nothing is written to it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setHeartbeatPolicy(HeartbeatPolicy)
+ * @see ocsf.client.AbstractClient#setHeartbeatPolicy(HeartbeatPolicy)
+ */
+public final class HeartbeatPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Sends no pings and closes nothing: the behaviour of the original
+	 * framework.
+	 */
+	public static final HeartbeatPolicy NONE = new HeartbeatPolicy(0, 0, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * How long the connection may be silent before a ping is sent, in
+	 * milliseconds, 0 for no pings.
+	 */
+	private final long intervalMillis;
+
+	/**
+	 * How long the connection may be silent before it is closed, in
+	 * milliseconds, 0 for no limit.
+	 */
+	private final long timeoutMillis;
+
+	/**
+	 * How long the connection may go without a message before it is closed,
+	 * in milliseconds, 0 for no limit.
+	 */
+	private final long idleTimeoutMillis;
+
+	// CONSTRUCTORS *****************************************************
+
+	private HeartbeatPolicy(long intervalMillis, long timeoutMillis, long idleTimeoutMillis) {
+		this.intervalMillis = intervalMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns a policy pinging a silent connection and closing it once it
+	 * has been silent for the timeout.
+	 *
+	 * @param interval
+	 *            how long the connection may be silent before a ping is
+	 *            sent, positive.
+	 * @param timeout
+	 *            how long it may be silent before it is closed, longer than
+	 *            the interval so that a ping can be answered.
+	 * @param unit
+	 *            the unit of both.
+	 * @return the policy.
+	 */
+	public static HeartbeatPolicy every(long interval, long timeout, TimeUnit unit) {
+		long intervalMillis = unit.toMillis(interval);
+		long timeoutMillis = unit.toMillis(timeout);
+		if (intervalMillis <= 0 || timeoutMillis <= intervalMillis)
+			throw new IllegalArgumentException("the interval must be positive and shorter than the timeout");
+		return new HeartbeatPolicy(intervalMillis, timeoutMillis, 0);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Returns this policy, also closing connections over which no message
+	 * has arrived for a while. Heartbeats do not count as messages.
+	 *
+	 * @param idleTimeout
+	 *            how long a connection may go without a message, positive.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return the new policy.
+	 */
+	public HeartbeatPolicy withIdleTimeout(long idleTimeout, TimeUnit unit) {
+		long idleTimeoutMillis = unit.toMillis(idleTimeout);
+		if (idleTimeoutMillis <= 0)
+			throw new IllegalArgumentException("the idle timeout must be positive");
+		return new HeartbeatPolicy(intervalMillis, timeoutMillis, idleTimeoutMillis);
+	}
+
+	/**
+	 * @return true if connections are watched at all.
+	 */
+	public boolean isEnabled() {
+		return intervalMillis > 0 || idleTimeoutMillis > 0;
+	}
+
+	/**
+	 * @return how long a connection may be silent before a ping is sent, in
+	 *         milliseconds, 0 for no pings.
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * @return how long a connection may be silent before it is closed, in
+	 *         milliseconds, 0 for no limit.
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * @return how long a connection may go without a message before it is
+	 *         closed, in milliseconds, 0 for no limit.
+	 */
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public String toString() {
+		if (!isEnabled())
+			return "none";
+		String heartbeats = intervalMillis == 0 ? "no pings"
+				: "ping after " + intervalMillis + " ms, close after " + timeoutMillis + " ms of silence";
+		return idleTimeoutMillis == 0 ? heartbeats
+				: heartbeats + ", close after " + idleTimeoutMillis + " ms without a message";
+	}
+}
+// End of HeartbeatPolicy class
@@ -0,0 +1,181 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations that many threads can record into at once without
+ * locking. Every power of two is split into eight buckets, so percentiles are
+ * reported within 12.5% of the recorded values; durations from a nanosecond
+ * to about eighteen minutes are told apart, longer ones all count as the
+ * longest.
+ * <p>
+ * Recording costs a few arithmetic operations and the increment of two
+ * striped counters. Reading walks the buckets, and reflects the recordings
+ * made so far only approximately while recordings continue.
+ * <p>
+ * The getters make the histogram readable as composite data by JMX.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class LatencyHistogram {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The bits of a duration below its highest bit that choose its bucket.
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The longest duration told apart: 2^40 nanoseconds.
+	 */
+	private static final int MAX_EXPONENT = 40;
+
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	// CONSTRUCTORS *****************************************************
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records one duration.
+	 *
+	 * @param nanos
+	 *            the duration, in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets[bucketOf(nanos)].increment();
+		count.increment();
+		totalNanos.add(nanos);
+	}
+
+	/**
+	 * Returns a duration that the given fraction of the recorded durations do
+	 * not exceed, to the precision of the buckets.
+	 *
+	 * @param fraction
+	 *            between 0 and 1, such as 0.99 for the 99th percentile.
+	 * @return the duration, in nanoseconds; 0 if nothing was recorded.
+	 */
+	public long getPercentileNanos(double fraction) {
+		long total = count.sum();
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i].sum();
+			if (seen >= rank)
+				return upperBoundOf(i);
+		}
+		return upperBoundOf(BUCKETS - 1);
+	}
+
+	/**
+	 * @return the number of durations recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the mean duration, in microseconds.
+	 */
+	public double getMeanMicros() {
+		long total = count.sum();
+		return total == 0 ? 0 : totalNanos.sum() / 1000.0 / total;
+	}
+
+	/**
+	 * @return the median duration, in microseconds.
+	 */
+	public double getP50Micros() {
+		return getPercentileNanos(0.5) / 1000.0;
+	}
+
+	/**
+	 * @return the 99th percentile, in microseconds.
+	 */
+	public double getP99Micros() {
+		return getPercentileNanos(0.99) / 1000.0;
+	}
+
+	/**
+	 * @return the 99.9th percentile, in microseconds.
+	 */
+	public double getP999Micros() {
+		return getPercentileNanos(0.999) / 1000.0;
+	}
+
+	/**
+	 * @return the longest duration, to the precision of the buckets, in
+	 *         microseconds.
+	 */
+	public double getMaxMicros() {
+		return getPercentileNanos(1) / 1000.0;
+	}
+
+	/**
+	 * Forgets every duration recorded. Durations recorded meanwhile may be
+	 * partly kept.
+	 */
+	public void reset() {
+		for (LongAdder bucket : buckets)
+			bucket.reset();
+		count.reset();
+		totalNanos.reset();
+	}
+
+	public String toString() {
+		return String.format("count=%d meanUs=%.1f p50Us=%.1f p99Us=%.1f p999Us=%.1f maxUs=%.1f", getCount(),
+				getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+	}
+
+	/**
+	 * Small durations have a bucket each; larger ones share a bucket with the
+	 * durations having the same highest bit and next three bits.
+	 */
+	private static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+
+		int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the longest duration falling in a bucket.
+	 */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long low = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+		return low + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
+// End of LatencyHistogram class
@@ -0,0 +1,33 @@
+package ocsf.common;
+
+/**
+ * How important a line of an <code> AsyncLogger </code> is. A logger writes
+ * the lines of its level and above.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.AsyncLogger#setLevel(LogLevel)
+ */
+public enum LogLevel {
+	/**
+	 * Detail only wanted while looking into a problem.
+	 */
+	DEBUG,
+
+	/**
+	 * What the program does in the normal course of things.
+	 */
+	INFO,
+
+	/**
+	 * Something went wrong, and the program carries on.
+	 */
+	WARN,
+
+	/**
+	 * Something went wrong that the program cannot make up for.
+	 */
+	ERROR;
+}
+// End of LogLevel enum
@@ -0,0 +1,94 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * Turns messages into frame payloads and back. A codec is shared by every
+ * connection using it, so implementations must be stateless or thread-safe.
+ * <p>
+ * Connections configured with a codec exchange length-prefixed frames, one
+ * message per frame. Connections without one exchange the continuous Java
+ * object stream of the original framework, which stays the default of the
+ * thread-per-client engines.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Frames
+ * @see ocsf.client.AbstractClient#setCodec(MessageCodec)
+ * @see ocsf.server.AbstractServer#setCodec(MessageCodec)
+ */
+public interface MessageCodec {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Java serialization, one object stream per frame. Any serializable
+	 * message.
+	 */
+	MessageCodec SERIALIZATION = new SerializationCodec();
+
+	/**
+	 * UTF-8 text. Strings only.
+	 */
+	MessageCodec TEXT = new TextCodec();
+
+	/**
+	 * Compact tagged binary encoding of strings, numbers, booleans, byte
+	 * arrays, lists and maps.
+	 */
+	MessageCodec BINARY = new BinaryCodec();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the name identifying the codec.
+	 */
+	String getName();
+
+	/**
+	 * Writes the payload encoding a message.
+	 *
+	 * @param msg
+	 *            the message to encode.
+	 * @param output
+	 *            where the payload goes.
+	 * @exception IOException
+	 *                if the message cannot be encoded by this codec.
+	 */
+	void encode(Object msg, OutputStream output) throws IOException;
+
+	/**
+	 * Reads a message back from a payload.
+	 *
+	 * @param buffer
+	 *            the array holding the payload.
+	 * @param offset
+	 *            where the payload starts.
+	 * @param length
+	 *            the payload length.
+	 * @return the decoded message.
+	 * @exception IOException
+	 *                if the payload is not a valid encoding.
+	 * @exception ClassNotFoundException
+	 *                if the payload names a class that cannot be found.
+	 */
+	Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException;
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns one of the codecs provided by the framework.
+	 *
+	 * @param name
+	 *            the name of the codec, case insensitive.
+	 * @return the codec, or null if there is none by that name.
+	 */
+	static MessageCodec forName(String name) {
+		for (MessageCodec codec : new MessageCodec[] { SERIALIZATION, TEXT, BINARY }) {
+			if (codec.getName().equalsIgnoreCase(name))
+				return codec;
+		}
+		return null;
+	}
+}
+// End of MessageCodec interface
@@ -0,0 +1,32 @@
+package ocsf.common;
+
+/**
+ * What happens to a message sent asynchronously when the queue of messages
+ * waiting to be written is full, because the peer reads more slowly than
+ * messages are sent.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#setQueueFullPolicy(QueueFullPolicy)
+ */
+public enum QueueFullPolicy {
+	/**
+	 * The sender waits until the queue has room: nothing is lost, and the
+	 * sender slows down to the pace of the peer.
+	 */
+	BLOCK,
+
+	/**
+	 * The message is refused at once: its future fails and the sender decides
+	 * what to do.
+	 */
+	FAIL,
+
+	/**
+	 * The oldest message still queued is discarded to make room: its future
+	 * fails, and the peer gets the most recent messages.
+	 */
+	DROP_OLDEST
+}
+// End of QueueFullPolicy enum
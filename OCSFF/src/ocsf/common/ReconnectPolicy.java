@@ -0,0 +1,155 @@
+package ocsf.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a client whose connection was lost tries to connect again. The delay
+ * before each attempt grows exponentially from an initial delay up to a
+ * maximum, and the actual delay is drawn at random between zero and that
+ * ceiling. The randomness matters when a server restarts: its clients all
+ * lose their connection at the same moment, and without it they would all
+ * come back at the same moments too.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#setReconnectPolicy(ReconnectPolicy)
+ */
+public final class ReconnectPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Never reconnects: the behaviour of the original framework.
+	 */
+	public static final ReconnectPolicy NEVER = new ReconnectPolicy(0, 0, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The ceiling of the delay before the first attempt, in milliseconds, 0
+	 * if the client never reconnects.
+	 */
+	private final long initialDelayMillis;
+
+	/**
+	 * The highest ceiling of the delay, in milliseconds.
+	 */
+	private final long maxDelayMillis;
+
+	/**
+	 * The most attempts after a connection is lost, 0 for no limit.
+	 */
+	private final int maxAttempts;
+
+	// CONSTRUCTORS *****************************************************
+
+	private ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxAttempts = maxAttempts;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @param initialDelay
+	 *            the ceiling of the delay before the first attempt.
+	 * @param maxDelay
+	 *            the highest ceiling of the delay.
+	 * @param unit
+	 *            the unit of the delays.
+	 * @return a policy trying again until the client is connected or closed.
+	 */
+	public static ReconnectPolicy exponential(long initialDelay, long maxDelay, TimeUnit unit) {
+		return of(initialDelay, maxDelay, unit, 0);
+	}
+
+	/**
+	 * Returns a policy giving up after some attempts.
+	 *
+	 * @param initialDelay
+	 *            the ceiling of the delay before the first attempt, positive.
+	 * @param maxDelay
+	 *            the highest ceiling of the delay, at least the initial one.
+	 * @param unit
+	 *            the unit of the delays.
+	 * @param maxAttempts
+	 *            the most attempts, 0 for no limit.
+	 * @return the policy.
+	 */
+	public static ReconnectPolicy of(long initialDelay, long maxDelay, TimeUnit unit, int maxAttempts) {
+		long initialDelayMillis = unit.toMillis(initialDelay);
+		long maxDelayMillis = unit.toMillis(maxDelay);
+		if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis)
+			throw new IllegalArgumentException("the initial delay must be positive and at most the maximum");
+		if (maxAttempts < 0)
+			throw new IllegalArgumentException("maxAttempts cannot be negative");
+		return new ReconnectPolicy(initialDelayMillis, maxDelayMillis, maxAttempts);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if the client tries to connect again at all.
+	 */
+	public boolean isEnabled() {
+		return initialDelayMillis > 0;
+	}
+
+	/**
+	 * @param attempt
+	 *            the number of the attempt, the first being 1.
+	 * @return true if the attempt is made.
+	 */
+	public boolean allowsAttempt(int attempt) {
+		return isEnabled() && (maxAttempts == 0 || attempt <= maxAttempts);
+	}
+
+	/**
+	 * Draws the delay before an attempt. The ceiling doubles with every
+	 * attempt until it reaches the maximum.
+	 *
+	 * @param attempt
+	 *            the number of the attempt, the first being 1.
+	 * @return the delay, in milliseconds.
+	 */
+	public long getDelayMillis(int attempt) {
+		if (!isEnabled())
+			return 0;
+		int doublings = Math.max(attempt - 1, 0);
+		long ceiling = doublings >= Long.numberOfLeadingZeros(initialDelayMillis) - 1 ? maxDelayMillis
+				: Math.min(maxDelayMillis, initialDelayMillis << doublings);
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * @return the ceiling of the delay before the first attempt, in
+	 *         milliseconds, 0 if the client never reconnects.
+	 */
+	public long getInitialDelayMillis() {
+		return initialDelayMillis;
+	}
+
+	/**
+	 * @return the highest ceiling of the delay, in milliseconds.
+	 */
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	/**
+	 * @return the most attempts after a connection is lost, 0 for no limit.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public String toString() {
+		if (!isEnabled())
+			return "never";
+		return "after up to " + initialDelayMillis + " ms, doubling to " + maxDelayMillis + " ms, "
+				+ (maxAttempts == 0 ? "until connected" : "at most " + maxAttempts + " times");
+	}
+}
+// End of ReconnectPolicy class
@@ -0,0 +1,123 @@
+package ocsf.common;
+
+/**
+ * When a connection exchanging a continuous object stream resets it. Until a
+ * reset, the stream remembers every object written so it can refer back to
+ * it, which keeps those objects reachable for the life of the connection and
+ * makes a mutated object arrive unchanged when it is sent again. A reset
+ * forgets them all at the cost of a byte, plus class descriptors being sent
+ * again.
+ * <p>
+ * A policy resets after a number of messages, after a number of bytes, or
+ * whichever comes first when both are given.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.CountingObjectOutputStream
+ */
+public final class ResetPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Never resets: the behaviour of the original framework.
+	 */
+	public static final ResetPolicy NEVER = new ResetPolicy(0, 0);
+
+	/**
+	 * Resets after every message, so every message stands alone.
+	 */
+	public static final ResetPolicy ALWAYS = new ResetPolicy(1, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Messages between resets, 0 if not counted.
+	 */
+	private final int messages;
+
+	/**
+	 * Bytes between resets, 0 if not counted.
+	 */
+	private final long bytes;
+
+	// CONSTRUCTORS *****************************************************
+
+	private ResetPolicy(int messages, long bytes) {
+		this.messages = messages;
+		this.bytes = bytes;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @param messages
+	 *            the number of messages between resets, at least one.
+	 * @return a policy resetting after that many messages.
+	 */
+	public static ResetPolicy everyMessages(int messages) {
+		return of(messages, 0);
+	}
+
+	/**
+	 * @param bytes
+	 *            the number of bytes between resets, at least one.
+	 * @return a policy resetting once that many bytes have been written.
+	 */
+	public static ResetPolicy everyBytes(long bytes) {
+		return of(0, bytes);
+	}
+
+	/**
+	 * Returns a policy resetting after a number of messages or a number of
+	 * bytes, whichever comes first.
+	 *
+	 * @param messages
+	 *            the number of messages between resets, 0 not to count them.
+	 * @param bytes
+	 *            the number of bytes between resets, 0 not to count them.
+	 * @return the policy.
+	 */
+	public static ResetPolicy of(int messages, long bytes) {
+		if (messages < 0 || bytes < 0)
+			throw new IllegalArgumentException("negative reset interval");
+		return new ResetPolicy(messages, bytes);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Tells if a stream must be reset.
+	 *
+	 * @param messagesSinceReset
+	 *            the messages written since the last reset.
+	 * @param bytesSinceReset
+	 *            the bytes written since the last reset.
+	 * @return true to reset now.
+	 */
+	public boolean shouldReset(long messagesSinceReset, long bytesSinceReset) {
+		return (messages > 0 && messagesSinceReset >= messages) || (bytes > 0 && bytesSinceReset >= bytes);
+	}
+
+	/**
+	 * @return the number of messages between resets, 0 if not counted.
+	 */
+	public int getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return the number of bytes between resets, 0 if not counted.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public String toString() {
+		if (messages == 0 && bytes == 0)
+			return "never";
+		return "every " + (messages > 0 ? messages + " messages" : "")
+				+ (messages > 0 && bytes > 0 ? " or " : "") + (bytes > 0 ? bytes + " bytes" : "");
+	}
+}
+// End of ResetPolicy class
@@ -0,0 +1,36 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The codec keeping Java serialization on framed connections. Every payload
+ * is a complete object stream of its own, so nothing is shared between
+ * messages: no handle table grows with the connection, but class descriptors
+ * are repeated in every frame.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec#SERIALIZATION
+ */
+final class SerializationCodec implements MessageCodec {
+	@Override
+	public String getName() {
+		return "serialization";
+	}
+
+	@Override
+	public void encode(Object msg, OutputStream output) throws IOException {
+		ObjectOutputStream objects = new ObjectOutputStream(output);
+		objects.writeObject(msg);
+		objects.flush();
+	}
+
+	@Override
+	public Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buffer, offset, length))) {
+			return input.readObject();
+		}
+	}
+}
+// End of SerializationCodec class
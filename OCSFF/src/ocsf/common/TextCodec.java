@@ -0,0 +1,35 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The codec for plain chat: a payload is the UTF-8 encoding of a string and
+ * nothing else. Any other kind of message is refused.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec#TEXT
+ */
+final class TextCodec implements MessageCodec {
+	@Override
+	public String getName() {
+		return "text";
+	}
+
+	@Override
+	public void encode(Object msg, OutputStream output) throws IOException {
+		if (!(msg instanceof String))
+			throw new NotSerializableException("the text codec only sends strings, not "
+					+ (msg == null ? "null" : msg.getClass().getName()));
+
+		output.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public Object decode(byte[] buffer, int offset, int length) {
+		return new String(buffer, offset, length, StandardCharsets.UTF_8);
+	}
+}
+// End of TextCodec class
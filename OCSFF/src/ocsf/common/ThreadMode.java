@@ -0,0 +1,37 @@
+package ocsf.common;
+
+/**
+ * The kind of thread used to wait for incoming messages. A platform thread
+ * reserves a native stack of its own, whereas a virtual thread only occupies
+ * a carrier thread while it is running, which makes idle connections far
+ * cheaper. The blocking stream code is the same in both cases.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#AbstractClient(String, int, ThreadMode)
+ * @see ocsf.server.ServerEngine#VIRTUAL_THREAD_PER_CLIENT
+ */
+public enum ThreadMode {
+	/**
+	 * One operating system thread per reader.
+	 */
+	PLATFORM,
+
+	/**
+	 * One virtual thread per reader.
+	 */
+	VIRTUAL;
+
+	/**
+	 * Creates a thread of this kind, without starting it.
+	 *
+	 * @param task
+	 *            what the thread runs.
+	 * @return the unstarted thread.
+	 */
+	public Thread newThread(Runnable task) {
+		return this == VIRTUAL ? Thread.ofVirtual().unstarted(task) : new Thread(task);
+	}
+}
+// End of ThreadMode enum
@@ -0,0 +1,303 @@
+package ocsf.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, for many more tasks than a scheduled executor
+ * copes with cheaply. Time is cut into ticks, and the wheel is a ring of
+ * buckets: a task goes into the bucket of the tick it is due at, modulo the
+ * size of the ring, and at every tick one thread visits one bucket and runs
+ * what is due in it. Scheduling and cancelling cost the same whatever the
+ * number of tasks, and a tick costs the size of one bucket, the tasks
+ * divided by the size of the ring on average; tasks run up to a tick late.
+ * <p>
+ * Tasks are handed to the thread of the wheel through a queue, so any
+ * thread schedules and cancels without a lock. They run on that thread,
+ * one after the other: they must be short and must not block, and hand
+ * longer work to other threads. The thread is started with the first task
+ * and sleeps while there is none.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.HeartbeatMonitor
+ */
+public final class TimerWheel {
+	// CLASS VARIABLES **************************************************
+
+	private static final int PENDING = 0;
+
+	private static final int CANCELLED = 1;
+
+	private static final int EXPIRED = 2;
+
+	/**
+	 * The longest delay, so that deadlines cannot overflow.
+	 */
+	private static final long MAX_DELAY_NANOS = Long.MAX_VALUE / 4;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The name of the thread of the wheel.
+	 */
+	private final String name;
+
+	/**
+	 * The length of a tick.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * The first task of every bucket, linked to the next. Used by the thread
+	 * of the wheel only.
+	 */
+	private final Timeout[] buckets;
+
+	private final int mask;
+
+	/**
+	 * The tasks scheduled and not yet put in their bucket.
+	 */
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * The number of tasks scheduled that have neither run nor been cancelled.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * The number of tasks run.
+	 */
+	private volatile long expired = 0;
+
+	/**
+	 * The time the ticks are counted from.
+	 */
+	private final long origin = System.nanoTime();
+
+	/**
+	 * The last tick visited. Used by the thread of the wheel only.
+	 */
+	private long tick = 0;
+
+	private final AtomicBoolean started = new AtomicBoolean(false);
+
+	private volatile Thread worker;
+
+	/**
+	 * Indicates if the thread is sleeping until a task is scheduled.
+	 */
+	private volatile boolean idle = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a wheel. Its thread is only started with the first task.
+	 *
+	 * @param name
+	 *            the name of the thread.
+	 * @param tickDuration
+	 *            the length of a tick, how late a task may run.
+	 * @param unit
+	 *            the unit of the tick.
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two. The
+	 *            ring should cover the usual delays: longer ones go round
+	 *            the wheel and are looked at on every turn.
+	 */
+	public TimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+		if (name == null)
+			throw new NullPointerException("name");
+		if (unit.toNanos(tickDuration) <= 0 || wheelSize < 1 || wheelSize > 1 << 30)
+			throw new IllegalArgumentException("the tick and the size must be positive");
+		this.name = name;
+		this.tickNanos = unit.toNanos(tickDuration);
+		int size = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Schedules a task. Safe to call from any thread, the task itself
+	 * included.
+	 *
+	 * @param task
+	 *            what runs on the thread of the wheel once the delay is over.
+	 * @param delay
+	 *            the delay.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return what cancels the task.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (task == null)
+			throw new NullPointerException("task");
+		long delayNanos = Math.min(Math.max(unit.toNanos(delay), 0), MAX_DELAY_NANOS);
+		long deadline = System.nanoTime() - origin + delayNanos;
+		Timeout timeout = new Timeout(task, (deadline + tickNanos - 1) / tickNanos);
+
+		pending.incrementAndGet();
+		added.add(timeout);
+		if (!started.get() && started.compareAndSet(false, true)) {
+			Thread thread = new Thread(this::run, name);
+			thread.setDaemon(true);
+			worker = thread;
+			thread.start();
+		} else if (idle) {
+			LockSupport.unpark(worker);
+		}
+		return timeout;
+	}
+
+	/**
+	 * @return the number of tasks that have neither run nor been cancelled.
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * @return the number of tasks run since the wheel was created.
+	 */
+	public long getExpiredCount() {
+		return expired;
+	}
+
+	public String toString() {
+		return name + ": " + getPendingCount() + " pending, " + getExpiredCount() + " run, " + buckets.length
+				+ " buckets of " + TimeUnit.NANOSECONDS.toMillis(tickNanos) + " ms";
+	}
+
+	/**
+	 * Visits the buckets as the ticks go by. Runs on the thread of the wheel.
+	 */
+	private void run() {
+		while (true) {
+			if (pending.get() == 0) {
+				idle = true;
+				if (pending.get() == 0) // A task scheduled meanwhile saw idle, or is counted
+					LockSupport.park(this);
+				idle = false;
+			}
+
+			long now = System.nanoTime() - origin;
+			long current = now / tickNanos;
+			if (current <= tick) {
+				LockSupport.parkNanos(this, (tick + 1) * tickNanos - now);
+				continue;
+			}
+
+			transferAdded(current);
+
+			// Every bucket at most once, however long the thread slept
+			for (long t = Math.max(tick + 1, current - mask); t <= current; t++)
+				expireBucket((int) (t & mask), current);
+			tick = current;
+		}
+	}
+
+	/**
+	 * Puts the tasks scheduled since the last tick in their bucket, the tasks
+	 * already due in the bucket visited now.
+	 */
+	private void transferAdded(long current) {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != PENDING)
+				continue;
+			int index = (int) (Math.max(timeout.deadline, current) & mask);
+			timeout.next = buckets[index];
+			buckets[index] = timeout;
+		}
+	}
+
+	/**
+	 * Runs the tasks of a bucket that are due, and forgets those cancelled.
+	 */
+	private void expireBucket(int index, long current) {
+		Timeout previous = null;
+		Timeout timeout = buckets[index];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			boolean due = timeout.deadline <= current;
+			if (due || timeout.state.get() != PENDING) {
+				if (previous == null)
+					buckets[index] = next;
+				else
+					previous.next = next;
+				timeout.next = null;
+				if (due)
+					timeout.expire();
+			} else {
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public final class Timeout {
+		private final Runnable task;
+
+		/**
+		 * The tick the task is due at.
+		 */
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		/**
+		 * The next task of the bucket. Used by the thread of the wheel only.
+		 */
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, unless it has already run. Safe to call from any
+		 * thread.
+		 *
+		 * @return true if the task will not run.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return state.get() == CANCELLED;
+			pending.decrementAndGet();
+			return true;
+		}
+
+		/**
+		 * @return true if the task has run or is running.
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED))
+				return;
+			pending.decrementAndGet();
+			expired++; // Written by the thread of the wheel only
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				// The other tasks run regardless
+			}
+		}
+	}
+}
+// End of TimerWheel class
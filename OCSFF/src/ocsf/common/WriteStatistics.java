@@ -0,0 +1,110 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the flush policy of a client or server does: messages written,
+ * the system calls that wrote them, and how long messages were held back
+ * before being written. Updated concurrently by every connection sharing it;
+ * the values read are a consistent sum only when nothing is being written.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.FlushPolicy
+ */
+public final class WriteStatistics {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final LongAdder messages = new LongAdder();
+
+	private final LongAdder writes = new LongAdder();
+
+	private final LongAdder delayedMessages = new LongAdder();
+
+	private final LongAdder delayNanos = new LongAdder();
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records messages handed to a connection for writing.
+	 *
+	 * @param count
+	 *            the number of messages.
+	 */
+	public void recordMessages(int count) {
+		messages.add(count);
+	}
+
+	/**
+	 * Records one system call writing to a socket.
+	 */
+	public void recordWrite() {
+		writes.increment();
+	}
+
+	/**
+	 * Records messages released after being held back.
+	 *
+	 * @param count
+	 *            the number of messages.
+	 * @param totalNanos
+	 *            the time they were held back, added up.
+	 */
+	public void recordDelay(int count, long totalNanos) {
+		delayedMessages.add(count);
+		delayNanos.add(totalNanos);
+	}
+
+	/**
+	 * @return the number of messages written.
+	 */
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	/**
+	 * @return the number of system calls writing to sockets.
+	 */
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	/**
+	 * @return the system calls saved compared to writing each message with
+	 *         one of its own.
+	 */
+	public long getWritesSaved() {
+		return Math.max(0, getMessages() - getWrites());
+	}
+
+	/**
+	 * @return the number of messages held back by a coalescing policy.
+	 */
+	public long getDelayedMessages() {
+		return delayedMessages.sum();
+	}
+
+	/**
+	 * @return the time messages were held back, added up, in nanoseconds.
+	 */
+	public long getAddedLatencyNanos() {
+		return delayNanos.sum();
+	}
+
+	/**
+	 * @return the average time a message written was held back, in
+	 *         nanoseconds.
+	 */
+	public double getAverageAddedLatencyNanos() {
+		long count = getMessages();
+		return count == 0 ? 0 : (double) getAddedLatencyNanos() / count;
+	}
+
+	public String toString() {
+		return "messages=" + getMessages() + " writes=" + getWrites() + " writesSaved=" + getWritesSaved()
+				+ " delayed=" + getDelayedMessages() + String.format(" avgAddedLatencyUs=%.1f",
+						getAverageAddedLatencyNanos() / 1000);
+	}
+}
+// End of WriteStatistics class
@@ -5,7 +5,29 @@ package ocsf.server;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ocsf.common.Compression;
+import ocsf.common.CompressionStatistics;
+import ocsf.common.FlushPolicy;
+import ocsf.common.Heartbeat;
+import ocsf.common.HeartbeatPolicy;
+import ocsf.common.MessageCodec;
+import ocsf.common.ResetPolicy;
+import ocsf.common.TimerWheel;
+import ocsf.common.WriteStatistics;
 
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
@@ -15,10 +37,55 @@ import java.util.concurrent.ConcurrentHashMap;
 * server, the two programs can then exchange <code> Object </code>
 * instances.<p>
 *
+* The waiting thread sleeps until connection attempts arrive, accepts all
+* of them at once, and wakes up as soon as the server stops listening or is
+* closed. <code> getAcceptStatistics </code> tells how it keeps up.<p>
+*
 * Method <code> handleMessageFromClient </code> must be defined by
 * a concrete subclass. Several other hook methods may also be
 * overriden.<p>
 *
+* The way connections are serviced is chosen at construction time with a
+* <code> ServerEngine </code>: one thread per client (the default), one
+* virtual thread per client, or a few selector threads shared by all the
+* clients.<p>
+*
+* Messages are exchanged as a continuous Java object stream unless a
+* <code> MessageCodec </code> is set with <code> setCodec </code>, in which
+* case they travel as length-prefixed frames. The selector engine always uses
+* frames, with Java serialization when no codec is set.<p>
+*
+* By default messages are handled one at a time, whatever client they come
+* from, with the server instance as the lock. Once a dispatch executor is set
+* with <code> setDispatchExecutor </code>, messages from different clients are
+* handled in parallel on that executor, while the messages of any one client
+* are still handled one after the other, in the order they arrived. The hook
+* methods document what they may run concurrently with.<p>
+*
+* Sending can be made asynchronous with <code> setOutboundQueueCapacity
+* </code>: every connection then queues what is sent to it and a writer of its
+* own drains the queue, so a client that reads slowly only delays itself.<p>
+*
+* Output is buffered. With <code> setFlushPolicy </code>, messages can be held
+* back for a short while so that many of them share one system call; what
+* this saves and costs is counted by <code> getWriteStatistics </code>.<p>
+*
+* Traffic, connections and the latency of handlers and broadcasts are kept
+* by <code> getMetrics </code> and published over JMX while the server
+* listens.<p>
+*
+* A <code> HeartbeatPolicy </code> set with <code> setHeartbeatPolicy
+* </code> pings clients that have gone silent and closes the connections of
+* those that stay silent, so a client that vanished without closing its
+* connection does not stay connected for ever. The connections are watched
+* by one timer wheel, whatever their number.<p>
+*
+* A <code> SlowConsumerPolicy </code> set with <code> setSlowConsumerPolicy
+* </code> bounds what a client that reads slowly makes the server hold: past
+* its thresholds, the oldest messages to the client are dropped, the client
+* is disconnected, or the excess is spilled to a file until the client
+* catches up.<p>
+*
 * Several public service methods are provided to applications that use
 * this framework, and several hook methods are also available<p>
 *
@@ -30,29 +97,66 @@ import java.util.concurrent.ConcurrentHashMap;
 * @author Paul Holden
 * @version September 2025 (2.14)
 * @see ocsf.server.ConnectionToClient
+* @see ocsf.server.ServerEngine
 */
 
 public abstract class AbstractServer implements Runnable
 {
+	// CLASS VARIABLES ************************************************
+
+	/**
+	 * The most threads writing the last messages of clients being closed.
+	 * Each client is given up at its close deadline, so a client that does
+	 * not read holds one of them no longer than that.
+	 */
+	private static final int CLOSE_THREADS = 4;
+
 	// INSTANCE VARIABLES *********************************************
 
 	/**
-	 * The server socket: listens for clients who want to connect.
+	 * The server socket: listens for clients who want to connect. It is
+	 * non-blocking, so that the listener waits on a selector instead.
 	 */
-	private ServerSocket serverSocket = null;
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * Wakes the connection listener when clients are waiting to be accepted,
+	 * or when the server stops listening.
+	 */
+	private Selector acceptSelector = null;
 
 	/**
 	 * The connection listener thread.
 	 */
 	private Thread connectionListener;
 
+	/**
+	 * The engine servicing the client connections.
+	 */
+	private final ServerEngine engine;
+
+	/**
+	 * The I/O threads of the selector engine, null when not running.
+	 */
+	private SelectorLoop[] selectorLoops;
+
+	/**
+	 * The number of selector threads started by the next listen().
+	 */
+	private int selectorThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The selector loop that receives the next accepted client.
+	 */
+	private int nextSelectorLoop = 0;
+
 	/**
 	 * The port number
 	 */
 	private int port;
 
 	/**
-	 * The server timeout while for accepting connections.
+	 * The server timeout while for accepting connections. No longer used.
 	 */
 	private int timeout = 500;
 
@@ -75,14 +179,123 @@ public abstract class AbstractServer implements Runnable
 	/**
 	 * Indicates if the listening thread is ready to stop.
 	 */
-	private boolean readyToStop = false;
+	private volatile boolean readyToStop = false;
+
+	/**
+	 * What the connection listener has done.
+	 */
+	private final AcceptStatistics acceptStatistics = new AcceptStatistics();
+
+	/**
+	 * Where messages are handled in parallel across clients, or null to handle
+	 * them one at a time under the server lock.
+	 */
+	private volatile Executor dispatchExecutor = null;
+
+	/**
+	 * The most messages a connection queues for its socket, 0 for no queue.
+	 */
+	private volatile int outboundQueueCapacity = 0;
+
+	/**
+	 * The codec of the frames exchanged with clients, or null for object
+	 * streams.
+	 */
+	private volatile MessageCodec codec = null;
+
+	/**
+	 * When the object streams to clients are reset.
+	 */
+	private volatile ResetPolicy resetPolicy = ResetPolicy.NEVER;
+
+	/**
+	 * When the bytes sent to clients are written to their sockets.
+	 */
+	private volatile FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+
+	/**
+	 * The value of TCP_NODELAY for accepted sockets.
+	 */
+	private volatile boolean tcpNoDelay = false;
+
+	/**
+	 * Where the last messages sent to every client are kept, or null.
+	 */
+	private volatile BroadcastRing broadcastRing = null;
+
+	/**
+	 * Which messages are deflated for the clients that negotiated it.
+	 */
+	private volatile Compression compression = Compression.NONE;
+
+	/**
+	 * What compressing and inflating messages has cost.
+	 */
+	private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+	/**
+	 * When clients are pinged and given up.
+	 */
+	private volatile HeartbeatPolicy heartbeatPolicy = HeartbeatPolicy.NONE;
+
+	/**
+	 * Times the heartbeats of every client, and how long closing a client
+	 * may wait for its last messages. Its thread only starts with the first
+	 * task.
+	 */
+	private final TimerWheel heartbeatWheel = new TimerWheel("OCSF timers", 100, TimeUnit.MILLISECONDS, 512);
+
+	/**
+	 * Closes clients in the background. Its threads only start with the
+	 * first client to close, and end when idle.
+	 */
+	private final ThreadPoolExecutor closer = newCloser();
+
+	/**
+	 * How many messages every client may send, unless it has a limit of its
+	 * own.
+	 */
+	private volatile RateLimit rateLimit = RateLimit.NONE;
+
+	/**
+	 * How far every client may fall behind, unless it has a policy of its
+	 * own.
+	 */
+	private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.NONE;
+
+	/**
+	 * What the writes to every client cost.
+	 */
+	private final WriteStatistics writeStatistics = new WriteStatistics();
+
+	/**
+	 * The traffic, connections and latencies of the server.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics(this);
+
+	/**
+	 * Indicates if the metrics of every connection are registered as MBeans.
+	 */
+	private volatile boolean connectionMBeans = false;
 
 
 	// CONSTRUCTOR ******************************************************
 
 	public AbstractServer(int port)
+	{
+		this(port, ServerEngine.THREAD_PER_CLIENT);
+	}
+
+	/**
+	 * Constructs a server that services its clients with the given engine.
+	 *
+	 * @param port the port number on which to listen.
+	 * @param engine the way client connections are serviced.
+	 */
+	public AbstractServer(int port, ServerEngine engine)
 	{
 		this.port = port;
+		this.engine = engine;
 		this.clientConnections = new ConcurrentHashMap<>();
 	}
 
@@ -93,12 +306,18 @@ public abstract class AbstractServer implements Runnable
 	{
 		if (!isListening())
 		{
-			if (serverSocket == null)
+			if (serverChannel == null)
+			{
+				openServerChannel();
+			}
+
+			if (engine == ServerEngine.SELECTOR && selectorLoops == null)
 			{
-				serverSocket = new ServerSocket(getPort(), backlog);
+				startSelectorLoops();
 			}
 
-			serverSocket.setSoTimeout(timeout);
+			metrics.register(port);
+
 			readyToStop = false;
 			connectionListener = new Thread(this);
 			connectionListener.start();
@@ -108,44 +327,109 @@ public abstract class AbstractServer implements Runnable
 	final public void stopListening()
 	{
 		readyToStop = true;
+
+		Selector selector = acceptSelector;
+		if (selector != null)
+			selector.wakeup(); // The listener stops at once
 	}
 
-	final synchronized public void close() throws IOException
+	final public void close() throws IOException
 	{
-		if (serverSocket == null)
-			return;
-		stopListening();
+		ServerSocketChannel channel;
+		Selector selector;
+		synchronized(this)
+		{
+			if (serverChannel == null)
+				return;
+			stopListening();
+			channel = serverChannel;
+			selector = acceptSelector;
+			serverChannel = null;
+			acceptSelector = null;
+		}
+
 		try
 		{
-			serverSocket.close();
+			try
+			{
+				channel.close();
+			}
+			finally
+			{
+				selector.close();
+			}
 		}
 		finally
 		{
-			// Close the client sockets of the already connected clients
-			for (ConnectionToClient client : clientConnections.values())
+			// Close the client sockets of the already connected clients,
+			// outside the server lock since their last messages are written
+			closeClients();
+			synchronized(this)
 			{
-				try
-				{
-					client.close();
-				}
-				catch(Exception ex) {}
+				stopSelectorLoops();
+				metrics.unregister();
+				serverClosed();
 			}
-			clientConnections.clear();
-			serverSocket = null;
-			serverClosed();
 		}
 	}
 
+	/**
+	 * Sends a message to every connected client. The message is serialized
+	 * once, whatever the number of clients, and the same bytes are written to
+	 * every connection; if it is deflated, it is deflated once too. If the
+	 * server has a broadcast ring, the message is kept in it.
+	 *
+	 * @param msg the message to send.
+	 */
 	public void sendToAllClients(Object msg)
 	{
-		for (ConnectionToClient client : clientConnections.values())
+		broadcastToClients(msg, clientConnections.values());
+	}
+
+	/**
+	 * Sends a message meant for everyone to the clients listening to what is
+	 * said to everyone, such as those logged in. As with
+	 * <code> sendToAllClients </code>, the message is serialized once, and it
+	 * is kept in the broadcast ring if the server has one.
+	 *
+	 * @param msg the message to send.
+	 * @param clients the clients to send it to.
+	 */
+	public void broadcastToClients(Object msg, Iterable<? extends ConnectionToClient> clients)
+	{
+		EncodedMessage encoded = new EncodedMessage(msg, compression, compressionStatistics);
+		BroadcastRing ring = broadcastRing;
+		if (ring != null)
+			ring.add(encoded);
+		sendEncoded(encoded, clients);
+	}
+
+	/**
+	 * Sends a message to some of the clients, such as the members of a group.
+	 * As with <code> sendToAllClients </code>, the message is serialized once
+	 * and the cost depends only on the number of clients given. A client that
+	 * cannot be written to is skipped.
+	 *
+	 * @param msg the message to send.
+	 * @param clients the clients to send it to.
+	 */
+	public void sendToClients(Object msg, Iterable<? extends ConnectionToClient> clients)
+	{
+		sendEncoded(new EncodedMessage(msg, compression, compressionStatistics), clients);
+	}
+
+	private void sendEncoded(EncodedMessage encoded, Iterable<? extends ConnectionToClient> clients)
+	{
+		long start = System.nanoTime();
+		for (ConnectionToClient client : clients)
 		{
 			try
 			{
-				client.sendToClient(msg);
+				client.sendEncoded(encoded);
 			}
 			catch (Exception ex) {}
 		}
+		metrics.recordBroadcast(System.nanoTime() - start);
 	}
 
 
@@ -176,6 +460,15 @@ public abstract class AbstractServer implements Runnable
 		this.port = port;
 	}
 
+	/**
+	 * Used to set how often the connection listener checked if the server was
+	 * stopping. The listener now waits for connections and for the server to
+	 * stop at the same time, so this has no effect.
+	 *
+	 * @param timeout the former polling period, in milliseconds.
+	 * @deprecated the connection listener no longer polls.
+	 */
+	@Deprecated
 	final public void setTimeout(int timeout)
 	{
 		this.timeout = timeout;
@@ -186,6 +479,364 @@ public abstract class AbstractServer implements Runnable
 		this.backlog = backlog;
 	}
 
+	/**
+	 * Sets where messages from clients are handled. With an executor, the
+	 * messages of different clients are handled in parallel and the messages
+	 * of one client in arrival order, without any server-wide lock; with null
+	 * (the default), every message is handled under the server lock. Should be
+	 * called before the server starts listening.
+	 *
+	 * @param executor the executor running the handlers, or null.
+	 */
+	final public void setDispatchExecutor(Executor executor)
+	{
+		this.dispatchExecutor = executor;
+	}
+
+	/**
+	 * @return the executor handling messages in parallel, or null if messages
+	 *         are handled one at a time.
+	 */
+	final public Executor getDispatchExecutor()
+	{
+		return dispatchExecutor;
+	}
+
+	/**
+	 * Sets how many messages each connection may hold that have not been
+	 * written to its socket yet. With a positive capacity,
+	 * <code> sendToClient </code> and <code> sendToAllClients </code> return
+	 * as soon as the message is queued, and a message sent to a client whose
+	 * queue is full is refused with an <code> IOException </code>. With 0 (the
+	 * default), the thread-per-client engines write on the sending thread,
+	 * unless a slow consumer policy is set, and the selector engine queues
+	 * without limit. Should be called before the server starts listening.
+	 *
+	 * @param capacity the queue capacity in messages, 0 for none.
+	 * @see ocsf.server.ConnectionToClient#getOutboundQueueDepth()
+	 */
+	final public void setOutboundQueueCapacity(int capacity)
+	{
+		this.outboundQueueCapacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * @return the capacity of the outbound queue of each connection, 0 if
+	 *         there is none or it is unbounded.
+	 */
+	final public int getOutboundQueueCapacity()
+	{
+		return outboundQueueCapacity;
+	}
+
+	/**
+	 * Sets the codec used to exchange messages with clients, which must use
+	 * the same one. With null, the default, the thread-per-client engines
+	 * exchange continuous object streams and the selector engine uses
+	 * Java-serialized frames. Only affects clients connecting afterwards.
+	 *
+	 * @param codec the codec, or null.
+	 * @see ocsf.client.AbstractClient#setCodec(MessageCodec)
+	 */
+	final public void setCodec(MessageCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	/**
+	 * @return the codec used with clients, or null if there is none.
+	 */
+	final public MessageCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * Sets when the object stream to each client is reset. Until it is reset,
+	 * a stream keeps every object sent through it, so a long-lived connection
+	 * sending distinct objects grows without bound, and an object sent again
+	 * after being modified arrives unchanged. The default,
+	 * <code> ResetPolicy.NEVER </code>, is the behaviour of the original
+	 * framework. Broadcasts always leave the streams reset. Takes effect
+	 * immediately; has no effect on connections exchanging frames.
+	 *
+	 * @param resetPolicy the policy.
+	 * @see ocsf.server.ConnectionToClient#getHandleTableSize()
+	 * @see ocsf.client.AbstractClient#setResetPolicy(ResetPolicy)
+	 */
+	final public void setResetPolicy(ResetPolicy resetPolicy)
+	{
+		if (resetPolicy == null)
+			throw new NullPointerException("resetPolicy");
+		this.resetPolicy = resetPolicy;
+	}
+
+	/**
+	 * @return when the object streams to clients are reset.
+	 */
+	final public ResetPolicy getResetPolicy()
+	{
+		return resetPolicy;
+	}
+
+	/**
+	 * Sets when the bytes sent to clients are written to their sockets.
+	 * <code> FlushPolicy.IMMEDIATE </code>, the default, writes every message
+	 * at once; a coalescing policy trades a bounded delay for fewer system
+	 * calls. Only affects clients connecting afterwards.
+	 *
+	 * @param flushPolicy the policy.
+	 * @see #getWriteStatistics()
+	 */
+	final public void setFlushPolicy(FlushPolicy flushPolicy)
+	{
+		if (flushPolicy == null)
+			throw new NullPointerException("flushPolicy");
+		this.flushPolicy = flushPolicy;
+	}
+
+	/**
+	 * @return when the bytes sent to clients are written to their sockets.
+	 */
+	final public FlushPolicy getFlushPolicy()
+	{
+		return flushPolicy;
+	}
+
+	/**
+	 * Sets TCP_NODELAY on the sockets of clients connecting afterwards,
+	 * whatever the engine. When it is set, the operating system sends what it
+	 * is given at once instead of waiting to fill a packet, which matters for
+	 * small messages written one at a time; it is not set by default.
+	 *
+	 * @param tcpNoDelay true to disable the operating system's coalescing.
+	 */
+	final public void setTcpNoDelay(boolean tcpNoDelay)
+	{
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return true if TCP_NODELAY is set on client sockets.
+	 */
+	final public boolean getTcpNoDelay()
+	{
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Keeps the messages sent with <code> sendToAllClients </code> in a ring,
+	 * from now on, in the form they were sent in, so that a client joining
+	 * late can be sent the last of them at little cost.
+	 *
+	 * @param broadcastRing the ring, or null to keep nothing.
+	 * @see ocsf.server.BroadcastRing#replay(ConnectionToClient, int)
+	 */
+	final public void setBroadcastRing(BroadcastRing broadcastRing)
+	{
+		this.broadcastRing = broadcastRing;
+	}
+
+	/**
+	 * @return where the last messages sent to every client are kept, or null.
+	 */
+	final public BroadcastRing getBroadcastRing()
+	{
+		return broadcastRing;
+	}
+
+	/**
+	 * Sets which messages are deflated before being sent. Only the clients
+	 * that announced they can inflate when connecting are sent deflated
+	 * messages; the others are sent every message as it is. Whatever arrives
+	 * deflated is inflated regardless. The default,
+	 * <code> Compression.NONE </code>, deflates nothing. Takes effect
+	 * immediately.
+	 *
+	 * @param compression the compression.
+	 * @see ocsf.client.AbstractClient#setCompression(Compression)
+	 */
+	final public void setCompression(Compression compression)
+	{
+		if (compression == null)
+			throw new NullPointerException("compression");
+		this.compression = compression;
+	}
+
+	/**
+	 * @return which messages are deflated for the clients that can inflate.
+	 */
+	final public Compression getCompression()
+	{
+		return compression;
+	}
+
+	/**
+	 * Returns what compression has cost since the server was created:
+	 * messages deflated, once per broadcast, the bytes they saved, messages
+	 * inflated, and the time spent on both.
+	 *
+	 * @return the statistics, updated as messages are exchanged.
+	 */
+	final public CompressionStatistics getCompressionStatistics()
+	{
+		return compressionStatistics;
+	}
+
+	/**
+	 * Sets when clients that have gone silent are pinged, and when they are
+	 * given up: their connection is then closed and
+	 * <code> clientDisconnected </code> called, as when a client closes its
+	 * connection. A client answers pings by itself, whatever its own policy.
+	 * The default, <code> HeartbeatPolicy.NONE </code>, watches nothing.
+	 * Takes effect for the clients connecting afterwards.
+	 *
+	 * @param heartbeatPolicy the policy.
+	 * @see ocsf.client.AbstractClient#setHeartbeatPolicy(HeartbeatPolicy)
+	 */
+	final public void setHeartbeatPolicy(HeartbeatPolicy heartbeatPolicy)
+	{
+		if (heartbeatPolicy == null)
+			throw new NullPointerException("heartbeatPolicy");
+		this.heartbeatPolicy = heartbeatPolicy;
+	}
+
+	/**
+	 * @return when clients are pinged and given up.
+	 */
+	final public HeartbeatPolicy getHeartbeatPolicy()
+	{
+		return heartbeatPolicy;
+	}
+
+	/**
+	 * Sets how many messages every client may send, unless it was given a
+	 * limit of its own. Each connection has its own bucket, checked by the
+	 * thread reading it before a message is decoded or handled; messages
+	 * over the limit are dropped, delayed, or disconnect the client, as the
+	 * limit says. The default, <code> RateLimit.NONE </code>, limits
+	 * nothing. Takes effect immediately.
+	 *
+	 * @param rateLimit the limit.
+	 * @see ocsf.server.ConnectionToClient#setRateLimit(RateLimit)
+	 */
+	final public void setRateLimit(RateLimit rateLimit)
+	{
+		if (rateLimit == null)
+			throw new NullPointerException("rateLimit");
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * @return how many messages a client without a limit of its own may send.
+	 */
+	final public RateLimit getRateLimit()
+	{
+		return rateLimit;
+	}
+
+	/**
+	 * Sets how far every client may fall behind what is sent to it, unless
+	 * it was given a policy of its own. The policy is checked as messages are
+	 * queued for a client, so the thread-per-client engines queue with it
+	 * even without an outbound queue capacity. The default,
+	 * <code> SlowConsumerPolicy.NONE </code>, bounds nothing. Applies from the
+	 * next message sent.
+	 *
+	 * @param slowConsumerPolicy the policy.
+	 * @see ocsf.server.ConnectionToClient#setSlowConsumerPolicy(SlowConsumerPolicy)
+	 */
+	final public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy)
+	{
+		if (slowConsumerPolicy == null)
+			throw new NullPointerException("slowConsumerPolicy");
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * @return how far a client without a policy of its own may fall behind.
+	 */
+	final public SlowConsumerPolicy getSlowConsumerPolicy()
+	{
+		return slowConsumerPolicy;
+	}
+
+	/**
+	 * Returns what writing to clients has cost since the server was created:
+	 * messages, system calls, and the delay added by the flush policy.
+	 *
+	 * @return the statistics, updated as clients are written to.
+	 */
+	final public WriteStatistics getWriteStatistics()
+	{
+		return writeStatistics;
+	}
+
+	/**
+	 * @return what the connection listener has done since the server was
+	 *         created: connections accepted, in how many bursts, and how
+	 *         often the accept queue was full.
+	 */
+	final public AcceptStatistics getAcceptStatistics()
+	{
+		return acceptStatistics;
+	}
+
+	/**
+	 * Returns the metrics of the server: messages and bytes exchanged,
+	 * current and peak connections, and how long handlers and broadcasts
+	 * take. While the server listens they are also registered with the
+	 * platform MBean server, under
+	 * <code> ocsf:type=Server,port=&lt;port&gt; </code>.
+	 *
+	 * @return the metrics, updated as the server runs.
+	 */
+	final public ServerMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Sets whether the metrics of every client connecting afterwards are
+	 * registered with the platform MBean server, next to those of the server.
+	 * They are not by default, since a server may have many thousands of
+	 * clients; <code> ConnectionToClient.getMetrics </code> gives them
+	 * either way.
+	 *
+	 * @param connectionMBeans true to register the connections.
+	 */
+	final public void setConnectionMBeans(boolean connectionMBeans)
+	{
+		this.connectionMBeans = connectionMBeans;
+	}
+
+	/**
+	 * @return true if the metrics of connections are registered as MBeans.
+	 */
+	final public boolean getConnectionMBeans()
+	{
+		return connectionMBeans;
+	}
+
+	/**
+	 * @return the engine servicing the client connections.
+	 */
+	final public ServerEngine getEngine()
+	{
+		return engine;
+	}
+
+	/**
+	 * Sets the number of I/O threads of the selector engine. Only takes
+	 * effect the next time the server starts listening after being closed.
+	 *
+	 * @param selectorThreads the number of threads, at least one.
+	 */
+	final public void setSelectorThreads(int selectorThreads)
+	{
+		this.selectorThreads = Math.max(1, selectorThreads);
+	}
+
 
 	// RUN METHOD -------------------------------------------------------
 
@@ -193,30 +844,23 @@ public abstract class AbstractServer implements Runnable
 	{
 		serverStarted();
 
+		// close() forgets the channel and selector, possibly while this
+		// thread uses them
+		ServerSocketChannel server = serverChannel;
+		Selector selector = acceptSelector;
 		try
 		{
 			while(!readyToStop)
 			{
-				try
-				{
-					Socket clientSocket = serverSocket.accept();
-
-					synchronized(this)
-					{
-						ConnectionToClient client = new ConnectionToClient(clientSocket, this);
-						long id = ++clientIdCounter;
-						clientConnections.put(id, client);
-					}
-				}
-				catch (InterruptedIOException exception)
-				{
-					// timeout occurred
-				}
+				// Sleep until clients are waiting or the server stops
+				selector.select();
+				selector.selectedKeys().clear();
+				acceptBurst(server);
 			}
 
 			serverStopped();
 		}
-		catch (IOException exception)
+		catch (IOException | ClosedSelectorException exception)
 		{
 			if (!readyToStop)
 			{
@@ -237,15 +881,72 @@ public abstract class AbstractServer implements Runnable
 
 	// METHODS DESIGNED TO BE OVERRIDDEN --------------------------------
 
+	/**
+	 * Hook method called when a client connects, before any of its messages is
+	 * handled. Without a dispatch executor it is called under the server
+	 * lock, like the handlers. With one, it runs on the executor in order with
+	 * the messages of the client, and may run concurrently with the handling
+	 * of other clients.
+	 *
+	 * @param client the connection connected to the client.
+	 */
 	protected void clientConnected(ConnectionToClient client) {}
 
-	synchronized protected void clientDisconnected(ConnectionToClient client) {
-		// Since we don't track which ID belongs to this client directly,
-		// remove by value.
-		clientConnections.values().remove(client);
-	}
+	/**
+	 * Hook method called when a client connection is closed with
+	 * <code> ConnectionToClient.close() </code>, on the thread that closed it,
+	 * or when the heartbeat policy gives the client up, on a thread of its
+	 * own. It is called once per client at most, and not for a client
+	 * <code> clientException </code> was called for.
+	 * The connection has already been removed from the server. Without a
+	 * dispatch executor it is called under the server lock; with one, it may
+	 * run concurrently with any other hook or handler, including those of the
+	 * same client, and must be thread-safe.
+	 *
+	 * @param client the connection with the client.
+	 */
+	protected void clientDisconnected(ConnectionToClient client) {}
+
+	/**
+	 * Hook method called when the connection with a client fails. The
+	 * connection has already been closed and removed from the server. Without
+	 * a dispatch executor it is called under the server lock; with one, it
+	 * runs on the executor after every message received from the client has
+	 * been handled.
+	 *
+	 * @param client the client that raised the exception.
+	 * @param exception the exception thrown.
+	 */
+	protected void clientException(ConnectionToClient client, Throwable exception) {}
+
+	/**
+	 * Hook method called when a client goes over a rate limit that
+	 * disconnects, before its connection is closed: a message sent to the
+	 * client here, to say why, is written before closing. Nothing more is
+	 * read from the client. Called as a handler of the client would be,
+	 * after the messages read before; <code> clientDisconnected </code>
+	 * follows.
+	 *
+	 * @param client the connection with the client.
+	 */
+	protected void clientRateLimited(ConnectionToClient client) {}
 
-	synchronized protected void clientException(ConnectionToClient client, Throwable exception) {}
+	/**
+	 * Hook method returning what a slow client is sent in place of messages
+	 * dropped by its slow consumer policy, such as a notice telling it to
+	 * fetch what it missed. The default sends nothing. Called on the thread
+	 * sending or writing to the client, possibly holding a lock of the
+	 * connection: it must be quick, thread-safe, and must not send to the
+	 * client itself.
+	 *
+	 * @param client the connection with the client.
+	 * @param dropped the number of messages dropped.
+	 * @return the message sent in their place, or null for none.
+	 */
+	protected Object gapMarker(ConnectionToClient client, int dropped)
+	{
+		return null;
+	}
 
 	protected void listeningException(Throwable exception) {}
 
@@ -260,9 +961,322 @@ public abstract class AbstractServer implements Runnable
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
-	final synchronized void receiveMessageFromClient(Object msg, ConnectionToClient client)
+	/**
+	 * Closes every client on the closer threads. The deadlines of their last
+	 * messages all start now, so that clients slow to take them hold up the
+	 * others no longer than one of them, however many there are. Called
+	 * holding the server lock, as by a handler, this method does not wait
+	 * for them.
+	 */
+	private void closeClients()
+	{
+		List<ConnectionToClient> clients = new ArrayList<ConnectionToClient>(clientConnections.values());
+		CountDownLatch closed = new CountDownLatch(clients.size());
+		for (ConnectionToClient client : clients)
+			client.closeInBackground(closed::countDown);
+		if (Thread.holdsLock(this))
+			return;
+
+		try
+		{
+			closed.await();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs the closing of a client on a closer thread.
+	 */
+	final void executeClose(Runnable close)
+	{
+		closer.execute(close);
+	}
+
+	/**
+	 * Platform threads: a virtual one could wait for a carrier that a writer
+	 * blocked under a lock holds.
+	 */
+	private static ThreadPoolExecutor newCloser()
+	{
+		ThreadPoolExecutor closer = new ThreadPoolExecutor(CLOSE_THREADS, CLOSE_THREADS, 1, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), task -> {
+				Thread thread = new Thread(task, "OCSF closer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		closer.allowCoreThreadTimeOut(true);
+		return closer;
+	}
+
+	/**
+	 * @return the wheel timing the heartbeats of every client, and how long
+	 *         closing clients may take.
+	 */
+	final TimerWheel getTimerWheel()
+	{
+		return heartbeatWheel;
+	}
+
+	/**
+	 * Opens the server socket and the selector of the connection listener.
+	 */
+	private void openServerChannel() throws IOException
+	{
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try
+		{
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(getPort()), backlog);
+			acceptSelector = Selector.open();
+			channel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException ex)
+		{
+			channel.close();
+			if (acceptSelector != null)
+				acceptSelector.close();
+			acceptSelector = null;
+			throw ex;
+		}
+		serverChannel = channel;
+	}
+
+	/**
+	 * Accepts every client waiting, until none is left or the server stops
+	 * listening. A client whose connection cannot be set up is closed and
+	 * does not stop the listener.
+	 *
+	 * @param server the channel of the server.
+	 */
+	private void acceptBurst(ServerSocketChannel server) throws IOException
 	{
-		this.handleMessageFromClient(msg, client);
+		int burst = 0;
+		SocketChannel channel;
+		while (!readyToStop && (channel = server.accept()) != null)
+		{
+			burst++;
+			boolean setUp = false;
+			try
+			{
+				// Accepted channels block, as plain sockets do, unless
+				// the engine says otherwise
+				synchronized(this)
+				{
+					ConnectionToClient client = newConnection(channel.socket());
+					long id = ++clientIdCounter;
+					client.setConnectionId(id);
+					clientConnections.put(id, client);
+					metrics.recordConnection(clientConnections.size());
+					if (connectionMBeans)
+						metrics.register(client);
+					client.start();
+					HeartbeatPolicy heartbeats = heartbeatPolicy;
+					if (heartbeats.isEnabled())
+						client.startHeartbeats(heartbeats, heartbeatWheel);
+				}
+				setUp = true;
+			}
+			catch (IOException exception)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch (IOException ex) {}
+			}
+			acceptStatistics.recordAccept(setUp);
+		}
+
+		if (burst > 0)
+			acceptStatistics.recordBurst(burst, backlog);
+	}
+
+	/**
+	 * Creates the connection matching the engine of the server. The
+	 * connection is not started.
+	 */
+	private ConnectionToClient newConnection(Socket clientSocket) throws IOException
+	{
+		clientSocket.setTcpNoDelay(tcpNoDelay);
+		if (engine == ServerEngine.SELECTOR)
+		{
+			SelectorLoop loop = selectorLoops[nextSelectorLoop];
+			nextSelectorLoop = (nextSelectorLoop + 1) % selectorLoops.length;
+			return new ChannelConnectionToClient(clientSocket.getChannel(), this, loop);
+		}
+		return new SocketConnectionToClient(clientSocket, this);
+	}
+
+	private void startSelectorLoops() throws IOException
+	{
+		SelectorLoop[] loops = new SelectorLoop[selectorThreads];
+		try
+		{
+			for (int i = 0; i < loops.length; i++)
+			{
+				loops[i] = new SelectorLoop("OCSF selector " + port + "-" + i);
+			}
+		}
+		catch (IOException ex)
+		{
+			for (SelectorLoop loop : loops)
+			{
+				if (loop != null) loop.shutdown();
+			}
+			throw ex;
+		}
+
+		for (SelectorLoop loop : loops)
+		{
+			loop.start();
+		}
+		nextSelectorLoop = 0;
+		selectorLoops = loops;
+	}
+
+	private void stopSelectorLoops()
+	{
+		if (selectorLoops == null)
+			return;
+		for (SelectorLoop loop : selectorLoops)
+		{
+			loop.shutdown();
+		}
+		selectorLoops = null;
+	}
+
+	/**
+	 * Hands a message read from a client to the handler, either at once under
+	 * the server lock or through the ordered queue of the client. Heartbeats
+	 * are answered here and go no further.
+	 */
+	final void receiveMessageFromClient(Object msg, ConnectionToClient client)
+	{
+		if (msg instanceof Heartbeat)
+		{
+			client.heartbeatReceived((Heartbeat) msg);
+			return;
+		}
+		client.messageReceived();
+		client.getMetrics().recordMessageIn();
+
+		Executor executor = dispatchExecutor;
+		if (executor == null)
+		{
+			synchronized(this)
+			{
+				handle(msg, client);
+			}
+		}
+		else
+		{
+			client.dispatch(() -> handle(msg, client), executor);
+		}
+	}
+
+	/**
+	 * Calls the handler, timing it.
+	 */
+	private void handle(Object msg, ConnectionToClient client)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			this.handleMessageFromClient(msg, client);
+		}
+		finally
+		{
+			metrics.recordHandler(System.nanoTime() - start);
+		}
+	}
+
+	final void notifyClientConnected(ConnectionToClient client)
+	{
+		Executor executor = dispatchExecutor;
+		if (executor == null)
+		{
+			synchronized(this)
+			{
+				clientConnected(client);
+			}
+		}
+		else
+		{
+			client.dispatch(() -> clientConnected(client), executor);
+		}
+	}
+
+	final void notifyClientDisconnected(ConnectionToClient client)
+	{
+		// Closing, a failure and the heartbeats may all end the connection:
+		// only the one that removes it reports it
+		if (!clientConnections.remove(client.getConnectionId(), client))
+			return;
+
+		metrics.unregister(client);
+		if (dispatchExecutor == null)
+		{
+			synchronized(this)
+			{
+				clientDisconnected(client);
+			}
+		}
+		else
+		{
+			clientDisconnected(client);
+		}
+	}
+
+	final void notifyClientRateLimited(ConnectionToClient client)
+	{
+		Runnable work = () -> {
+			try
+			{
+				clientRateLimited(client);
+			}
+			finally
+			{
+				try
+				{
+					client.close();
+				}
+				catch (IOException ex) {}
+			}
+		};
+
+		Executor executor = dispatchExecutor;
+		if (executor == null)
+		{
+			synchronized(this)
+			{
+				work.run();
+			}
+		}
+		else
+		{
+			client.dispatch(work, executor);
+		}
+	}
+
+	final void notifyClientException(ConnectionToClient client, Throwable exception)
+	{
+		clientConnections.remove(client.getConnectionId(), client);
+		metrics.unregister(client);
+		Executor executor = dispatchExecutor;
+		if (executor == null)
+		{
+			synchronized(this)
+			{
+				clientException(client, exception);
+			}
+		}
+		else
+		{
+			client.dispatch(() -> clientException(client, exception), executor);
+		}
 	}
 }
 // End of AbstractServer Class
@@ -0,0 +1,143 @@
+package ocsf.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts what the connection listener of a server does. The listener sleeps
+ * until connections are waiting, then accepts every waiting connection in one
+ * burst. A burst at least as large as the backlog means the queue of the
+ * operating system was full, and connection attempts may have been refused
+ * while it was.
+ * <p>
+ * Updated by the connection listener only; read by anyone.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getAcceptStatistics()
+ */
+public final class AcceptStatistics {
+	// CLASS VARIABLES **************************************************
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private long accepted = 0;
+
+	private long failed = 0;
+
+	private long bursts = 0;
+
+	private int largestBurst = 0;
+
+	private long saturatedBursts = 0;
+
+	/**
+	 * The second being counted, in nanoseconds since an arbitrary origin
+	 * divided by one billion.
+	 */
+	private long currentSecond = 0;
+
+	private long acceptedThisSecond = 0;
+
+	private long acceptedLastSecond = 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	AcceptStatistics() {
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the number of connections accepted.
+	 */
+	public synchronized long getAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return the number of connections accepted that could not be set up,
+	 *         and were closed at once.
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the number of times the listener woke up to accept connections.
+	 */
+	public synchronized long getBursts() {
+		return bursts;
+	}
+
+	/**
+	 * @return the most connections accepted in one burst.
+	 */
+	public synchronized int getLargestBurst() {
+		return largestBurst;
+	}
+
+	/**
+	 * @return the number of bursts that emptied a full accept queue.
+	 */
+	public synchronized long getSaturatedBursts() {
+		return saturatedBursts;
+	}
+
+	/**
+	 * @return the number of connections accepted during the last complete
+	 *         second.
+	 */
+	public synchronized long getAcceptRate() {
+		long second = System.nanoTime() / SECOND;
+		if (second == currentSecond)
+			return acceptedLastSecond;
+		return second == currentSecond + 1 ? acceptedThisSecond : 0;
+	}
+
+	public String toString() {
+		return "accepted=" + getAccepted() + " failed=" + getFailed() + " bursts=" + getBursts()
+				+ " largestBurst=" + getLargestBurst() + " saturatedBursts=" + getSaturatedBursts()
+				+ " acceptsPerSec=" + getAcceptRate();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Records one connection accepted.
+	 *
+	 * @param setUp
+	 *            false if the connection could not be set up.
+	 */
+	synchronized void recordAccept(boolean setUp) {
+		accepted++;
+		if (!setUp)
+			failed++;
+
+		long second = System.nanoTime() / SECOND;
+		if (second != currentSecond) {
+			acceptedLastSecond = second == currentSecond + 1 ? acceptedThisSecond : 0;
+			acceptedThisSecond = 0;
+			currentSecond = second;
+		}
+		acceptedThisSecond++;
+	}
+
+	/**
+	 * Records the end of a burst.
+	 *
+	 * @param size
+	 *            the number of connections accepted in the burst.
+	 * @param backlog
+	 *            the length of the accept queue.
+	 */
+	synchronized void recordBurst(int size, int backlog) {
+		bursts++;
+		largestBurst = Math.max(largestBurst, size);
+		if (size >= backlog)
+			saturatedBursts++;
+	}
+}
+// End of AcceptStatistics class
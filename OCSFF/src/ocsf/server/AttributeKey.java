@@ -0,0 +1,75 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The key of a typed attribute of a connection. Every key gets an index when
+ * it is created, and a connection keeps the values of the first keys in an
+ * array at those indexes: reading or writing an attribute is an array access,
+ * with no hashing and no cast at the call site. Keys are meant to be created
+ * once, as constants; those created after the first few dozen are kept in a
+ * map instead.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @param <T>
+ *            the type of the value.
+ * @see ocsf.server.ConnectionToClient#getAttribute(AttributeKey)
+ */
+public final class AttributeKey<T> {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The number of keys created.
+	 */
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The name of the key, for reading only.
+	 */
+	private final String name;
+
+	/**
+	 * The index of the value in the attributes of a connection.
+	 */
+	final int index;
+
+	// CONSTRUCTORS *****************************************************
+
+	private AttributeKey(String name, int index) {
+		this.name = name;
+		this.index = index;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Creates a key, distinct from every other even if they share its name.
+	 *
+	 * @param name
+	 *            the name of the key.
+	 * @return the key.
+	 */
+	public static <T> AttributeKey<T> newKey(String name) {
+		if (name == null)
+			throw new NullPointerException("name");
+		return new AttributeKey<T>(name, COUNT.getAndIncrement());
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the name of the key.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String toString() {
+		return name;
+	}
+}
+// End of AttributeKey class
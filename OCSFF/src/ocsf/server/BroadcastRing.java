@@ -0,0 +1,145 @@
+package ocsf.server;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last messages sent to every client, kept as they were encoded for the
+ * broadcast so they can be sent again to a client that joins late. Replaying
+ * them costs one write of bytes that already exist, however many messages
+ * there are: nothing is serialized again.
+ * <p>
+ * Neither adding nor replaying takes a lock. A broadcast claims the next
+ * sequence number and publishes its message in the slot of that number; a
+ * replay reads the slots of the numbers it wants and skips any slot that
+ * already holds a newer message, or not yet the one it expects. A replay
+ * racing with broadcasts may therefore miss the oldest or newest of the
+ * messages, never send one twice or out of order.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setBroadcastRing(BroadcastRing)
+ */
+public final class BroadcastRing {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The messages, each in the slot of its sequence number modulo the
+	 * capacity.
+	 */
+	private final AtomicReferenceArray<Slot> slots;
+
+	/**
+	 * The sequence number of the next message added.
+	 */
+	private final AtomicLong next = new AtomicLong();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * @param capacity
+	 *            the number of messages kept.
+	 */
+	public BroadcastRing(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		slots = new AtomicReferenceArray<Slot>(capacity);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Sends a client the last messages, oldest first, as one write.
+	 *
+	 * @param client
+	 *            the client.
+	 * @param max
+	 *            the most messages sent.
+	 * @return the number of messages sent.
+	 * @exception IOException
+	 *                if the messages cannot be sent.
+	 */
+	public int replay(ConnectionToClient client, int max) throws IOException {
+		if (max <= 0)
+			return 0;
+
+		long end = next.get();
+		long start = Math.max(0, end - Math.min(max, getCapacity()));
+		EncodedMessage[] messages = new EncodedMessage[(int) (end - start)];
+		int count = 0;
+		for (long sequence = start; sequence < end; sequence++) {
+			Slot slot = slots.get(index(sequence));
+			if (slot != null && slot.sequence == sequence)
+				messages[count++] = slot.message;
+		}
+
+		if (count == 0)
+			return 0;
+		if (!client.isConnected())
+			throw new SocketException("socket does not exist");
+		client.sendEncoded(count == 1 ? messages[0] : EncodedMessage.batch(messages, count));
+		return count;
+	}
+
+	/**
+	 * Forgets every message.
+	 */
+	public void clear() {
+		for (int i = 0; i < slots.length(); i++)
+			slots.set(i, null);
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the number of messages kept.
+	 */
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * @return the number of messages added since the ring was created.
+	 */
+	public long getAdded() {
+		return next.get();
+	}
+
+	public String toString() {
+		return "last " + getCapacity() + " broadcasts, " + getAdded() + " added";
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Keeps a message that is being sent to every client.
+	 */
+	void add(EncodedMessage msg) {
+		long sequence = next.getAndIncrement();
+		slots.set(index(sequence), new Slot(sequence, msg));
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence % slots.length());
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A message and its sequence number, published together.
+	 */
+	private static final class Slot {
+		final long sequence;
+
+		final EncodedMessage message;
+
+		Slot(long sequence, EncodedMessage message) {
+			this.sequence = sequence;
+			this.message = message;
+		}
+	}
+}
+// End of BroadcastRing class
@@ -0,0 +1,622 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import ocsf.common.Compression;
+import ocsf.common.FlushPolicy;
+import ocsf.common.Frames;
+import ocsf.common.MessageCodec;
+import ocsf.common.WriteStatistics;
+
+/**
+ * The connection used by the <code> SELECTOR </code> engine. It has no thread
+ * of its own: a <code> SelectorLoop </code> tells it when its non-blocking
+ * channel can be read or written. Messages travel as length-prefixed frames,
+ * encoded with the codec of the server, or with Java serialization if the
+ * server has none.
+ * <p>
+ * Writes are attempted directly from the sending thread. Whatever the socket
+ * does not accept immediately is queued, within the outbound queue capacity of
+ * the server, and written by the loop when the channel becomes writable again,
+ * so a sender is never blocked by a slow client. Queued frames are written
+ * together, many per system call. With a coalescing flush policy, frames are
+ * always queued and held back until the policy releases them.
+ * <p>
+ * The slow consumer policy is applied as frames are queued. Frames are
+ * dropped from the front of the queue, but for the first, which may be half
+ * written, and those held back. Frames are spilled as they are, and read
+ * back by the loop thread when the queue empties.
+ * <p>
+ * When the client goes over a rate limit that delays, the loop stops reading
+ * the channel, and leaves the frame in the read buffer, until the limit lets
+ * it through; the selector thread itself never waits.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ServerEngine#SELECTOR
+ * @see ocsf.common.Frames
+ */
+final class ChannelConnectionToClient extends ConnectionToClient {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The initial size of the read buffer. It grows when a larger frame
+	 * arrives.
+	 */
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * The most frames handed to the socket in one system call.
+	 */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * The most bytes read back from the spill file at once.
+	 */
+	private static final int SPILL_CHUNK = 64 * 1024;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The channel to the client.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The loop servicing the channel.
+	 */
+	private final SelectorLoop loop;
+
+	/**
+	 * The codec of the frames exchanged.
+	 */
+	private final MessageCodec codec;
+
+	/**
+	 * The registration of the channel. Only used by the loop thread.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Bytes read but not yet dispatched. Only used by the loop thread.
+	 */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/**
+	 * Indicates if the first bytes were checked for the compression preamble.
+	 * Only used by the loop thread.
+	 */
+	private boolean preambleChecked = false;
+
+	/**
+	 * Indicates if reading is paused by the rate limit. Only used by the loop
+	 * thread.
+	 */
+	private boolean readPaused = false;
+
+	/**
+	 * Frames waiting for the channel to become writable. Also used as the lock
+	 * serializing every write to the channel.
+	 */
+	private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The frames handed to the socket in one system call. Only used holding
+	 * the lock of the queue.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	/**
+	 * When queued frames are written.
+	 */
+	private final FlushPolicy flushPolicy;
+
+	/**
+	 * Where writes and delays are counted.
+	 */
+	private final WriteStatistics statistics;
+
+	/**
+	 * The number of frames, at the end of the queue, held back by the flush
+	 * policy, and their bytes. Only used holding the lock of the queue.
+	 */
+	private int held = 0;
+	private long heldBytes = 0;
+
+	/**
+	 * The times the held frames were queued, added up. Only used holding the
+	 * lock of the queue.
+	 */
+	private long heldSince = 0;
+
+	/**
+	 * Indicates if the loop will release the held frames. Only used holding
+	 * the lock of the queue.
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * What the slow consumer policy spilled and the loop has not read back
+	 * yet, or null before anything is spilled. Only used holding the lock of
+	 * the queue.
+	 */
+	private SpillFile spill = null;
+
+	/**
+	 * The gap marker queued and not written yet, or null, and the number of
+	 * messages it stands for. A later drop replaces it with one for them all.
+	 * Only used holding the lock of the queue.
+	 */
+	private ByteBuffer gapFrame = null;
+	private int gapCount = 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a new connection to a client.
+	 *
+	 * @param channel
+	 *            the accepted channel.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 * @param loop
+	 *            the loop that will service the channel.
+	 * @exception IOException
+	 *                if the channel cannot be made non-blocking.
+	 */
+	ChannelConnectionToClient(SocketChannel channel, AbstractServer server, SelectorLoop loop)
+			throws IOException {
+		super(channel.socket(), server);
+		this.channel = channel;
+		this.loop = loop;
+		this.codec = server.getCodec() != null ? server.getCodec() : MessageCodec.SERIALIZATION;
+		this.flushPolicy = server.getFlushPolicy();
+		this.statistics = server.getWriteStatistics();
+
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException ex) {
+			try {
+				closeAll();
+			} catch (Exception exc) {
+			}
+
+			throw ex; // Rethrow the exception.
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	@Override
+	void start() {
+		loop.execute(this::register);
+	}
+
+	@Override
+	void writeMessage(Object msg) throws IOException {
+		writeFrame(ByteBuffer.wrap(Frames.encode(msg, codec, outboundCompression(),
+				getServer().getCompressionStatistics())), 1);
+	}
+
+	/**
+	 * Writes a read-only duplicate of the frame shared by every recipient,
+	 * deflated if this client can inflate it.
+	 */
+	@Override
+	void writeEncoded(EncodedMessage msg) throws IOException {
+		writeFrame(msg.frame(codec, outboundCompression().isEnabled()), msg.count());
+	}
+
+	/**
+	 * Writes a frame, or the frames of a batch of messages back to back, or
+	 * queues what the socket does not accept immediately, as the slow
+	 * consumer policy allows.
+	 */
+	private void writeFrame(ByteBuffer frame, int messages) throws IOException {
+		statistics.recordMessages(messages);
+		SlowConsumerPolicy policy = getSlowConsumerPolicy();
+		IOException failure = null;
+
+		synchronized (pendingWrites) {
+			boolean backlogged = isBacklogged(policy, 1, frame.remaining());
+			// Once something is spilled, everything is until it is read back
+			if (spill != null && !spill.isEmpty()
+					|| backlogged && policy.getAction() == SlowConsumerAction.SPILL) {
+				try {
+					spillFrame(frame, policy);
+					return;
+				} catch (IOException ex) {
+					failure = ex;
+				}
+			} else if (!backlogged || policy.getAction() != SlowConsumerAction.DISCONNECT) {
+				queueFrame(frame);
+				if (backlogged && policy.getAction() == SlowConsumerAction.DROP_OLDEST)
+					dropOldest(policy);
+				return;
+			}
+		}
+
+		// Disconnecting tells the server, which must not wait for the lock
+		if (failure == null)
+			throw disconnectSlowConsumer(policy);
+		connectionFailed(failure);
+		throw failure;
+	}
+
+	/**
+	 * Writes a frame, or queues it. Must be called holding the lock of the
+	 * queue.
+	 */
+	private void queueFrame(ByteBuffer frame) throws IOException {
+		if (!flushPolicy.isImmediate()) {
+			holdFrame(frame);
+			return;
+		}
+
+		// Nothing is queued: try to hand the frame to the socket right away
+		if (pendingWrites.isEmpty()) {
+			getMetrics().recordBytesOut(channel.write(frame));
+			statistics.recordWrite();
+			if (!frame.hasRemaining())
+				return;
+
+			reserveOutbound(frame.remaining());
+			loop.execute(this::enableWrite);
+		} else {
+			reserveOutbound(frame.remaining());
+		}
+		pendingWrites.add(frame);
+	}
+
+	/**
+	 * Queues a frame until the flush policy releases it: once enough bytes are
+	 * held, or when the loop runs the flush scheduled by the first of them.
+	 * Must be called holding the lock of the queue.
+	 */
+	private void holdFrame(ByteBuffer frame) throws IOException {
+		reserveOutbound(frame.remaining());
+		pendingWrites.add(frame);
+		held++;
+		heldBytes += frame.remaining();
+		heldSince += System.nanoTime();
+
+		if (heldBytes >= flushPolicy.getMaxBytes()) {
+			if (!writePending())
+				loop.execute(this::enableWrite);
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			loop.schedule(this::flushHeld, flushPolicy.getMaxDelayNanos());
+		}
+	}
+
+	/**
+	 * Discards the oldest frames while the client is beyond the policy, and
+	 * queues the gap marker of the server in their place. Must be called
+	 * holding the lock of the queue.
+	 */
+	private void dropOldest(SlowConsumerPolicy policy) throws IOException {
+		// The first frame may be half written, and the held ones are the
+		// flush policy's
+		int droppable = pendingWrites.size() - held - 1;
+		if (droppable <= 0 || !isBacklogged(policy, 0, 0))
+			return;
+
+		ByteBuffer first = pendingWrites.poll();
+		try {
+			int count = 0;
+			int missed = 0;
+			for (int i = 0; i < droppable && isBacklogged(policy, 0, 0); i++) {
+				ByteBuffer frame = pendingWrites.poll();
+				releaseOutbound(1, frame.remaining());
+				if (frame == gapFrame)
+					missed += gapCount;
+				else
+					count++;
+			}
+			outboundDropped(count);
+			missed += count;
+
+			gapFrame = null;
+			gapCount = 0;
+			Object marker = getServer().gapMarker(this, missed);
+			if (marker != null) {
+				ByteBuffer frame = ByteBuffer.wrap(Frames.encode(marker, codec, outboundCompression(),
+						getServer().getCompressionStatistics()));
+				reserveOutbound(frame.remaining());
+				pendingWrites.addFirst(frame);
+				gapFrame = frame;
+				gapCount = missed;
+			}
+		} finally {
+			pendingWrites.addFirst(first);
+		}
+	}
+
+	/**
+	 * Appends a frame to the spill file, created with the first. Must be
+	 * called holding the lock of the queue.
+	 */
+	private void spillFrame(ByteBuffer frame, SlowConsumerPolicy policy) throws IOException {
+		if (readyToStop.get())
+			throw new ClosedChannelException();
+
+		if (spill == null)
+			spill = new SpillFile(policy.getSpillDirectory());
+		int bytes = frame.remaining();
+		spill.append(frame);
+		outboundSpilled(bytes);
+	}
+
+	/**
+	 * Deletes the spill file, and what it holds. Must be called holding the
+	 * lock of the queue.
+	 */
+	private void closeSpill() {
+		try {
+			if (spill != null)
+				spill.close();
+		} catch (IOException ex) {
+		}
+		spill = null;
+	}
+
+	/**
+	 * Queues the oldest spilled bytes. Must be called holding the lock of the
+	 * queue, once it is empty.
+	 * 
+	 * @return true if bytes were queued.
+	 */
+	private boolean readSpilled() throws IOException {
+		if (spill == null || spill.isEmpty())
+			return false;
+
+		ByteBuffer chunk = spill.read(SPILL_CHUNK);
+		reserveOutbound(chunk.remaining());
+		pendingWrites.add(chunk);
+		return true;
+	}
+
+	/**
+	 * Writes what the socket accepts without blocking; frames still queued
+	 * when the connection closes are lost, and so is what was spilled.
+	 */
+	@Override
+	void flushOutbound() throws IOException {
+		synchronized (pendingWrites) {
+			closeSpill();
+			writePending();
+		}
+	}
+
+	@Override
+	void closeStreams() throws IOException {
+		synchronized (pendingWrites) {
+			long bytes = 0;
+			for (ByteBuffer frame : pendingWrites)
+				bytes += frame.remaining();
+			releaseOutbound(pendingWrites.size(), bytes);
+			pendingWrites.clear();
+			held = 0;
+			heldBytes = 0;
+			closeSpill();
+		}
+		channel.close(); // Also cancels the registration
+	}
+
+	// METHODS CALLED BY THE LOOP THREAD --------------------------------
+
+	/**
+	 * Registers the channel with the selector of the loop and tells the server
+	 * that the client is connected.
+	 */
+	private void register() {
+		try {
+			key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+		} catch (IOException ex) {
+			connectionFailed(ex);
+			return;
+		}
+
+		getServer().notifyClientConnected(this);
+		enableWrite();
+	}
+
+	/**
+	 * Asks the selector to report when the channel becomes writable, if there
+	 * is something to write.
+	 */
+	private void enableWrite() {
+		if (key == null || !key.isValid())
+			return;
+
+		synchronized (pendingWrites) {
+			if (!pendingWrites.isEmpty())
+				key.interestOpsOr(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads what is available from the channel and dispatches every complete
+	 * frame to the server.
+	 */
+	void handleRead() {
+		try {
+			int count = channel.read(readBuffer);
+			if (count < 0)
+				throw new EOFException();
+			getMetrics().recordBytesIn(count);
+
+			readBuffer.flip();
+			dispatchFrames();
+		} catch (Exception exception) {
+			connectionFailed(exception);
+		}
+	}
+
+	/**
+	 * Dispatches every complete frame of the read buffer, which is flipped
+	 * for reading, and leaves the buffer ready for the next read.
+	 */
+	private void dispatchFrames() throws IOException, ClassNotFoundException {
+		int needed = 0;
+
+		// Every frame is at least as long as the preamble
+		if (!preambleChecked && readBuffer.remaining() >= Compression.PREAMBLE_LENGTH) {
+			preambleChecked = true;
+			if (Compression.isPreamble(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position())) {
+				setPeerInflates();
+				readBuffer.position(readBuffer.position() + Compression.PREAMBLE_LENGTH);
+			}
+		}
+
+		while (!readyToStop.get() && preambleChecked && readBuffer.remaining() >= Frames.HEADER_LENGTH) {
+			int header = readBuffer.getInt(readBuffer.position());
+			if (Frames.isControl(header)) {
+				readBuffer.position(readBuffer.position() + Frames.HEADER_LENGTH);
+				getServer().receiveMessageFromClient(Frames.heartbeat(header), this);
+				continue;
+			}
+			int length = Frames.payloadLength(header);
+			if (readBuffer.remaining() < Frames.HEADER_LENGTH + length) {
+				needed = Frames.HEADER_LENGTH + length;
+				break;
+			}
+
+			int start = readBuffer.position() + Frames.HEADER_LENGTH;
+			long wait = admitMessage();
+			if (wait > 0) {
+				pauseReading(wait);
+				break;
+			}
+			if (wait < 0) {
+				readBuffer.position(start + length); // Not even decoded
+				continue;
+			}
+
+			Object msg = Frames.decode(readBuffer.array(), readBuffer.arrayOffset() + start, length,
+					Frames.isDeflated(header), codec, getServer().getCompressionStatistics());
+			readBuffer.position(start + length);
+
+			getServer().receiveMessageFromClient(msg, this);
+		}
+
+		readBuffer.compact();
+
+		// Make room for a frame larger than the buffer
+		if (needed > readBuffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(needed);
+			readBuffer.flip();
+			larger.put(readBuffer);
+			readBuffer = larger;
+		}
+	}
+
+	/**
+	 * Stops reading the channel until the rate limit lets the next frame
+	 * through.
+	 */
+	private void pauseReading(long delayNanos) {
+		readPaused = true;
+		if (key != null && key.isValid())
+			key.interestOpsAnd(~SelectionKey.OP_READ);
+		loop.schedule(this::resumeReading, delayNanos);
+	}
+
+	/**
+	 * Dispatches the frames left in the read buffer, and reads the channel
+	 * again unless the rate limit pauses it anew.
+	 */
+	private void resumeReading() {
+		if (!readPaused || key == null || !key.isValid())
+			return;
+		readPaused = false;
+
+		try {
+			readBuffer.flip();
+			dispatchFrames();
+			if (!readPaused && key.isValid())
+				key.interestOpsOr(SelectionKey.OP_READ);
+		} catch (Exception exception) {
+			connectionFailed(exception);
+		}
+	}
+
+	/**
+	 * Writes the frames held back by the flush policy, once the oldest has
+	 * waited long enough.
+	 */
+	private void flushHeld() {
+		try {
+			synchronized (pendingWrites) {
+				flushScheduled = false;
+				if (held > 0 && !writePending() && key != null && key.isValid())
+					key.interestOpsOr(SelectionKey.OP_WRITE);
+			}
+		} catch (IOException exception) {
+			connectionFailed(exception);
+		}
+	}
+
+	/**
+	 * Writes the queued frames until the queue is empty or the socket stops
+	 * accepting data.
+	 */
+	void handleWrite() {
+		try {
+			synchronized (pendingWrites) {
+				if (writePending())
+					key.interestOpsAnd(~SelectionKey.OP_WRITE);
+			}
+		} catch (IOException exception) {
+			connectionFailed(exception);
+		}
+	}
+
+	/**
+	 * Writes queued frames, held ones included, then what was spilled, until
+	 * nothing is left or the socket stops accepting data. Must be called
+	 * holding the lock of the queue.
+	 * 
+	 * @return true if the queue was emptied.
+	 */
+	private boolean writePending() throws IOException {
+		if (held > 0) {
+			statistics.recordDelay(held, held * System.nanoTime() - heldSince);
+			held = 0;
+			heldBytes = 0;
+			heldSince = 0;
+		}
+
+		while (!pendingWrites.isEmpty() || readSpilled()) {
+			int count = 0;
+			for (ByteBuffer frame : pendingWrites) {
+				gather[count++] = frame;
+				if (count == MAX_GATHER)
+					break;
+			}
+
+			long bytes = channel.write(gather, 0, count);
+			getMetrics().recordBytesOut(bytes);
+			statistics.recordWrite();
+			Arrays.fill(gather, 0, count, null);
+
+			int written = 0;
+			while (!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining()) {
+				if (pendingWrites.poll() == gapFrame)
+					gapFrame = null;
+				written++;
+			}
+			releaseOutbound(written, bytes);
+
+			if (written < count)
+				return false; // Wait until the channel is writable again
+		}
+		return true;
+	}
+}
+// End of ChannelConnectionToClient class
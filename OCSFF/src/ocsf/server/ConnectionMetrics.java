@@ -0,0 +1,131 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the traffic of one client connection. Every count is also added to
+ * the metrics of the server. Counters are striped so that the threads
+ * sending to the client do not contend on them, and recording never locks.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ConnectionToClient#getMetrics()
+ */
+public final class ConnectionMetrics implements ConnectionMetricsMXBean {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The metrics of the server, which sum those of its connections.
+	 */
+	private final ServerMetrics server;
+
+	private final String remoteAddress;
+
+	private final long connectedSince = System.currentTimeMillis();
+
+	private volatile long lastActivityTime = connectedSince;
+
+	private final LongAdder messagesIn = new LongAdder();
+
+	private final LongAdder messagesOut = new LongAdder();
+
+	private final LongAdder bytesIn = new LongAdder();
+
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Indicates if these metrics are registered with the MBean server.
+	 */
+	volatile boolean registered = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	ConnectionMetrics(ServerMetrics server, String remoteAddress) {
+		this.server = server;
+		this.remoteAddress = remoteAddress;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	@Override
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	@Override
+	public long getConnectedSince() {
+		return connectedSince;
+	}
+
+	@Override
+	public long getLastActivityTime() {
+		return lastActivityTime;
+	}
+
+	@Override
+	public long getIdleMillis() {
+		return Math.max(0, System.currentTimeMillis() - lastActivityTime);
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public String toString() {
+		return "in=" + getMessagesIn() + " msgs/" + getBytesIn() + " B out=" + getMessagesOut() + " msgs/"
+				+ getBytesOut() + " B idle=" + getIdleMillis() + " ms";
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	void recordMessageIn() {
+		messagesIn.increment();
+		server.messagesIn.increment();
+	}
+
+	void recordMessageOut() {
+		messagesOut.increment();
+		server.messagesOut.increment();
+	}
+
+	void recordMessagesOut(int count) {
+		messagesOut.add(count);
+		server.messagesOut.add(count);
+	}
+
+	/**
+	 * Records bytes read from the socket, which is activity.
+	 */
+	void recordBytesIn(long count) {
+		bytesIn.add(count);
+		server.bytesIn.add(count);
+		lastActivityTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records bytes written to the socket, which is activity.
+	 */
+	void recordBytesOut(long count) {
+		bytesOut.add(count);
+		server.bytesOut.add(count);
+		lastActivityTime = System.currentTimeMillis();
+	}
+}
+// End of ConnectionMetrics class
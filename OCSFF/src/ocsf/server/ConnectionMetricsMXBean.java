@@ -0,0 +1,54 @@
+package ocsf.server;
+
+/**
+ * The metrics of one client connection as seen through JMX, under the name
+ * <code> ocsf:type=Connection,port=&lt;port&gt;,id=&lt;id&gt; </code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ConnectionMetrics
+ */
+public interface ConnectionMetricsMXBean {
+	/**
+	 * @return the address and port of the client.
+	 */
+	String getRemoteAddress();
+
+	/**
+	 * @return when the client connected, in milliseconds since the epoch.
+	 */
+	long getConnectedSince();
+
+	/**
+	 * @return when bytes were last read from or written to the client, in
+	 *         milliseconds since the epoch.
+	 */
+	long getLastActivityTime();
+
+	/**
+	 * @return the number of milliseconds since the last activity.
+	 */
+	long getIdleMillis();
+
+	/**
+	 * @return the number of messages received from the client.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * @return the number of messages sent to the client.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return the number of bytes read from the client's socket.
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return the number of bytes written to the client's socket.
+	 */
+	long getBytesOut();
+}
+// End of ConnectionMetricsMXBean interface
@@ -5,7 +5,21 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ocsf.common.Compression;
+import ocsf.common.Heartbeat;
+import ocsf.common.HeartbeatMonitor;
+import ocsf.common.HeartbeatPolicy;
+import ocsf.common.TimerWheel;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -14,6 +28,31 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * How the bytes reach the client depends on the engine of the server: a
+ * connection either owns a reader thread (see
+ * <code> SocketConnectionToClient </code>) or is driven by a selector thread
+ * shared with many other connections (see
+ * <code> ChannelConnectionToClient </code>).
+ * <p>
+ * What the server keeps about a client, such as its login id, is read and
+ * written by the threads of other clients too. Typed attributes, named by an
+ * <code> AttributeKey </code>, are kept in an array of atomic slots and need
+ * no lock.
+ * <p>
+ * With a <code> HeartbeatPolicy </code>, a connection that stops hearing
+ * from its client pings it, and is closed once the client has been silent
+ * for too long, as if it had closed the connection itself.
+ * <p>
+ * Messages read are counted against a <code> RateLimit </code>, the one of
+ * the server unless the connection is given its own, before they are handed
+ * to the server.
+ * <p>
+ * What was sent to the client and not yet written to its socket is watched
+ * by a <code> SlowConsumerPolicy </code>, again the one of the server unless
+ * the connection has its own. A client that falls too far behind loses its
+ * oldest messages, is disconnected, or has the excess spilled to a file
+ * until it catches up.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -23,7 +62,27 @@ import java.util.HashMap;
  * @author Paul Holden
  * @version September 2025 (2.15)
  */
-public class ConnectionToClient extends Thread {
+public abstract class ConnectionToClient {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The most work items run by one dispatch task before it hands the
+	 * executor thread over to other clients.
+	 */
+	private static final int DISPATCH_BATCH = 64;
+
+	/**
+	 * The number of attributes kept in the slot array. The attributes of
+	 * later keys are kept in a map.
+	 */
+	private static final int ATTRIBUTE_SLOTS = 16;
+
+	/**
+	 * How long closing a connection waits for its last messages to be
+	 * written, in milliseconds, before closing the socket regardless.
+	 */
+	private static final long CLOSE_FLUSH_MILLIS = 2000;
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -40,28 +99,89 @@ public class ConnectionToClient extends Thread {
 	private Socket clientSocket;
 
 	/**
-	 * Stream used to read from the client.
+	 * Indicates if the connection is ready to stop. Set to true when closing of
+	 * the connection is initiated; whoever sets it first reports how it ended.
 	 */
-	private ObjectInputStream input;
+	final AtomicBoolean readyToStop = new AtomicBoolean(false);
 
 	/**
-	 * Stream used to write to the client.
+	 * Map to save information about the client such as its login ID. The
+	 * initial size of the map is small since it is not expected that concrete
+	 * servers will want to store many different types of information about each
+	 * client. Used by the setInfo and getInfo methods.
 	 */
-	private ObjectOutputStream output;
+	private final ConcurrentHashMap<String, Object> savedInfo = new ConcurrentHashMap<String, Object>(4);
 
 	/**
-	 * Indicates if the thread is ready to stop. Set to true when closing of the
-	 * connection is initiated.
+	 * The typed attributes of the first keys, at the index of their key.
 	 */
-	private boolean readyToStop;
+	private final AtomicReferenceArray<Object> attributes = new AtomicReferenceArray<Object>(ATTRIBUTE_SLOTS);
 
 	/**
-	 * Map to save information about the client such as its login ID. The
-	 * initial size of the map is small since it is not expected that concrete
-	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * The typed attributes of the other keys, created when the first is set.
+	 */
+	private final AtomicReference<ConcurrentHashMap<AttributeKey<?>, Object>> moreAttributes =
+			new AtomicReference<ConcurrentHashMap<AttributeKey<?>, Object>>();
+
+	/**
+	 * The key of this connection in the map of the server.
 	 */
-	private HashMap<String, Object> savedInfo	= new HashMap <String, Object>	(10);
+	private long connectionId;
+
+	/**
+	 * Messages and events of this client waiting for the dispatch executor,
+	 * in arrival order.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> dispatchQueue = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Indicates if a task draining the dispatch queue is submitted or running.
+	 * At most one is, which is what keeps the handling of this client ordered.
+	 */
+	private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+
+	/**
+	 * The number of messages sent to this client and not yet written to its
+	 * socket.
+	 */
+	private final AtomicInteger outboundDepth = new AtomicInteger(0);
+
+	/**
+	 * The bytes of the messages sent to this client and not yet written to
+	 * its socket, as far as they are known when queued.
+	 */
+	private final AtomicLong outboundBytes = new AtomicLong(0);
+
+	/**
+	 * The traffic of this client.
+	 */
+	private final ConnectionMetrics metrics;
+
+	/**
+	 * Indicates if the client announced it can inflate messages.
+	 */
+	private volatile boolean peerInflates = false;
+
+	/**
+	 * What watches the client as the heartbeat policy says, or null.
+	 */
+	private volatile HeartbeatMonitor heartbeatMonitor;
+
+	/**
+	 * The rate limit of this client, or null for the one of the server.
+	 */
+	private volatile RateLimit rateLimit = null;
+
+	/**
+	 * The state of the token bucket of the rate limit: when it is full again.
+	 */
+	private final AtomicLong rateBucket = new AtomicLong(System.nanoTime());
+
+	/**
+	 * The slow consumer policy of this client, or null for the one of the
+	 * server.
+	 */
+	private volatile SlowConsumerPolicy slowConsumerPolicy = null;
 
 	// CONSTRUCTORS *****************************************************
 
@@ -72,69 +192,160 @@ public class ConnectionToClient extends Thread {
 	 *            contains the client's socket.
 	 * @param server
 	 *            a reference to the server that created this instance
-	 * @exception IOException
-	 *                if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(Socket clientSocket, AbstractServer server) throws IOException {
+	ConnectionToClient(Socket clientSocket, AbstractServer server) {
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
-
-
-		// Initialize the objects streams
-		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-		} catch (IOException ex) {
-			try {
-				closeAll();
-			} catch (Exception exc) {
-			}
-
-			throw ex; // Rethrow the exception.
-		}
-
-		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+		this.metrics = new ConnectionMetrics(server.getMetrics(),
+				String.valueOf(clientSocket.getRemoteSocketAddress()));
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. If the server has an outbound queue
+	 * capacity, the object is queued and this method returns without waiting
+	 * for it to be written.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
 	 * @exception IOException
-	 *                if an I/O error occur when sending the message.
+	 *                if an I/O error occur when sending the message, if the
+	 *                outbound queue of the client is full, or if the client
+	 *                is disconnected for falling behind.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		if (clientSocket == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		writeMessage(msg);
+		metrics.recordMessageOut();
 	}
 
 
+	/**
+	 * Sends a message encoded once for several clients.
+	 * 
+	 * @param msg
+	 *            the encoded message.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message, or if the
+	 *                outbound queue of the client is full.
+	 */
+	final void sendEncoded(EncodedMessage msg) throws IOException {
+		if (clientSocket == null)
+			throw new SocketException("socket does not exist");
+
+		writeEncoded(msg);
+		metrics.recordMessagesOut(msg.count());
+	}
+
 	/**
 	 * Closes the client. If the connection is already closed, this call has no
-	 * effect.
+	 * effect. Messages still in the outbound queue or held back by the flush
+	 * policy are written first, so a final message sent just before closing
+	 * reaches the client; what was spilled to disk is not. A client that
+	 * does not take them within two seconds has its socket closed
+	 * regardless. Called holding the server lock, as handlers are without a
+	 * dispatch executor, this method does not wait: the messages are written
+	 * and the socket closed by a closer thread of the server, and
+	 * <code> clientDisconnected </code> is called once it is closed.
 	 * 
 	 * @exception IOException
 	 *                if an error occurs when closing the socket.
 	 */
 	final public void close() throws IOException {
-		readyToStop = true; // Set the flag that tells the thread to stop
+		if (clientSocket != null && Thread.holdsLock(server)) {
+			// Every handler waits for that lock: a client that does not
+			// read must not hold it
+			closeInBackground(() -> {
+			});
+			return;
+		}
+
+		readyToStop.set(true); // Set the flag that tells the reader to stop
+		finishClose(scheduleCloseDeadline());
+	}
+
+	/**
+	 * Closes the connection on a closer thread of the server. The deadline
+	 * of its last messages starts now, however long the closer threads take
+	 * to get to it.
+	 * 
+	 * @param then
+	 *            run on the closer thread once the connection is closed.
+	 */
+	final void closeInBackground(Runnable then) {
+		readyToStop.set(true); // Set the flag that tells the reader to stop
+		TimerWheel.Timeout deadline = scheduleCloseDeadline();
+		server.executeClose(() -> {
+			try {
+				finishClose(deadline);
+			} catch (IOException ex) {
+			} finally {
+				then.run();
+			}
+		});
+	}
 
+	/**
+	 * Schedules the closing of the socket, which fails the writes in
+	 * progress, for when the last messages have taken too long.
+	 * 
+	 * @return the deadline, or null if there is no socket.
+	 */
+	private TimerWheel.Timeout scheduleCloseDeadline() {
+		Socket socket = clientSocket;
+		if (socket == null)
+			return null;
+
+		return server.getTimerWheel().schedule(() -> {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+		}, CLOSE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the last messages of a connection being closed, closes it, and
+	 * then tells the server.
+	 * 
+	 * @param deadline
+	 *            the deadline of the last messages, or null if there is no
+	 *            socket to write them to.
+	 */
+	private void finishClose(TimerWheel.Timeout deadline) throws IOException {
 		try {
+			if (deadline != null) {
+				try {
+					flushOutbound();
+				} catch (IOException ex) {
+					// The client is going away anyway
+				} finally {
+					deadline.cancel();
+				}
+			}
 			closeAll();
 		} finally {
-			server.clientDisconnected(this);
+			server.notifyClientDisconnected(this);
 		}
 	}
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * Tells if the connection is still open. It is no longer open as soon as
+	 * closing starts or the connection fails, before the server hooks are
+	 * called.
+	 * 
+	 * @return true if the client is connected.
+	 */
+	final public boolean isConnected() {
+		return !readyToStop.get() && clientSocket != null;
+	}
+
 	/**
 	 * Returns the address of the client.
 	 * 
@@ -156,20 +367,25 @@ public class ConnectionToClient extends Thread {
 
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a concurrent hash map;
+	 * typed attributes are cheaper.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
 	 * @param info
-	 *            the information itself.
+	 *            the information itself, or null to forget it.
+	 * @see #setAttribute(AttributeKey, Object)
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		if (info == null)
+			savedInfo.remove(infoType);
+		else
+			savedInfo.put(infoType, info);
 	}
 
 	/**
-	 * Returns information about the client saved using setInfo. Based on a hash
-	 * map.
+	 * Returns information about the client saved using setInfo. Based on a
+	 * concurrent hash map.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
@@ -178,68 +394,535 @@ public class ConnectionToClient extends Thread {
 		return savedInfo.get(infoType);
 	}
 
-	// RUN METHOD -------------------------------------------------------
+	/**
+	 * Returns a typed attribute of this client. Safe to call from any thread;
+	 * sees the last value set.
+	 * 
+	 * @param key
+	 *            the key of the attribute.
+	 * @return the value, or null if none is set.
+	 */
+	@SuppressWarnings("unchecked")
+	final public <T> T getAttribute(AttributeKey<T> key) {
+		if (key.index < ATTRIBUTE_SLOTS)
+			return (T) attributes.get(key.index);
+		ConcurrentHashMap<AttributeKey<?>, Object> more = moreAttributes.get();
+		return more == null ? null : (T) more.get(key);
+	}
 
 	/**
-	 * Constantly reads the client's input stream. Sends all objects that are
-	 * read to the server. Not to be called.
+	 * Sets a typed attribute of this client. Safe to call from any thread.
+	 * 
+	 * @param key
+	 *            the key of the attribute.
+	 * @param value
+	 *            the value, or null to forget it.
 	 */
-	final public void run() {
-		server.clientConnected(this);
+	final public <T> void setAttribute(AttributeKey<T> key, T value) {
+		if (key.index < ATTRIBUTE_SLOTS)
+			attributes.set(key.index, value);
+		else if (value == null)
+			moreAttributes().remove(key);
+		else
+			moreAttributes().put(key, value);
+	}
 
-		// This loop reads the input stream and responds to messages
-		// from clients
-		try {
-			// The message from the client
-			Object msg;
-
-			while (!readyToStop) {
-				// This block waits until it reads a message from the client
-				// and then sends it for handling by the server
-				msg = input.readObject();
-				server.receiveMessageFromClient(msg, this);
+	/**
+	 * Sets a typed attribute of this client unless it is already set, in one
+	 * atomic step, so that threads racing to create a value agree on one.
+	 * 
+	 * @param key
+	 *            the key of the attribute.
+	 * @param value
+	 *            the value.
+	 * @return the value already set, or null if it is now the given one.
+	 */
+	@SuppressWarnings("unchecked")
+	final public <T> T setAttributeIfAbsent(AttributeKey<T> key, T value) {
+		if (value == null)
+			throw new NullPointerException("value");
+		if (key.index >= ATTRIBUTE_SLOTS)
+			return (T) moreAttributes().putIfAbsent(key, value);
+		while (true) {
+			Object existing = attributes.get(key.index);
+			if (existing != null)
+				return (T) existing;
+			if (attributes.compareAndSet(key.index, null, value))
+				return null;
+		}
+	}
+
+	private ConcurrentHashMap<AttributeKey<?>, Object> moreAttributes() {
+		ConcurrentHashMap<AttributeKey<?>, Object> more = moreAttributes.get();
+		if (more == null) {
+			moreAttributes.compareAndSet(null, new ConcurrentHashMap<AttributeKey<?>, Object>(4));
+			more = moreAttributes.get();
+		}
+		return more;
+	}
+
+	/**
+	 * Returns the number of messages sent to this client that have not been
+	 * written to its socket yet.
+	 * 
+	 * @return the depth of the outbound queue.
+	 * @see ocsf.server.AbstractServer#setOutboundQueueCapacity(int)
+	 */
+	final public int getOutboundQueueDepth() {
+		return outboundDepth.get();
+	}
+
+	/**
+	 * Returns the bytes of the messages sent to this client that have not
+	 * been written to its socket yet. Messages sent to this client alone over
+	 * an object stream are only serialized when written, and are not
+	 * counted.
+	 * 
+	 * @return the bytes of the outbound queue.
+	 * @see ocsf.server.SlowConsumerPolicy
+	 */
+	final public long getOutboundQueueBytes() {
+		return outboundBytes.get();
+	}
+
+	/**
+	 * Returns the number of objects and class descriptors the object stream
+	 * to this client keeps until its next reset: what the stream holds on to,
+	 * beyond its buffers. Always 0 for connections exchanging frames.
+	 * 
+	 * @return the size of the handle table of the outgoing stream.
+	 * @see ocsf.server.AbstractServer#setResetPolicy(ocsf.common.ResetPolicy)
+	 */
+	final public int getHandleTableSize() {
+		return handleTableSize();
+	}
+
+	/**
+	 * Returns the traffic of this client: messages and bytes each way, and
+	 * when it was last active.
+	 * 
+	 * @return the metrics, updated as the client is read and written.
+	 * @see ocsf.server.AbstractServer#setConnectionMBeans(boolean)
+	 */
+	final public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets how many messages this client may send, in place of the limit of
+	 * the server, for instance once the client is known to be trusted or
+	 * abusive. Takes effect immediately; safe to call from any thread.
+	 * 
+	 * @param rateLimit
+	 *            the limit, or null for the one of the server.
+	 * @see ocsf.server.AbstractServer#setRateLimit(RateLimit)
+	 */
+	final public void setRateLimit(RateLimit rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * @return the rate limit applied to this client, its own or the one of
+	 *         the server.
+	 */
+	final public RateLimit getRateLimit() {
+		RateLimit limit = rateLimit;
+		return limit != null ? limit : server.getRateLimit();
+	}
+
+	/**
+	 * Sets how far this client may fall behind, in place of the policy of
+	 * the server. Applies from the next message sent; safe to call from any
+	 * thread.
+	 * 
+	 * @param slowConsumerPolicy
+	 *            the policy, or null for the one of the server.
+	 * @see ocsf.server.AbstractServer#setSlowConsumerPolicy(SlowConsumerPolicy)
+	 */
+	final public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * @return the slow consumer policy applied to this client, its own or
+	 *         the one of the server.
+	 */
+	final public SlowConsumerPolicy getSlowConsumerPolicy() {
+		SlowConsumerPolicy policy = slowConsumerPolicy;
+		return policy != null ? policy : server.getSlowConsumerPolicy();
+	}
+
+	/**
+	 * Tells if messages sent to this client may be deflated: it announced it
+	 * can inflate them when connecting, and the server has a compression.
+	 * 
+	 * @return true if large messages are sent deflated.
+	 * @see ocsf.server.AbstractServer#setCompression(ocsf.common.Compression)
+	 */
+	final public boolean isDeflating() {
+		return peerInflates && server.getCompression().isEnabled();
+	}
+
+	/**
+	 * Records that the client announced it can inflate messages.
+	 */
+	final void setPeerInflates() {
+		peerInflates = true;
+	}
+
+	/**
+	 * Returns the compression of the messages sent to this client.
+	 */
+	final Compression outboundCompression() {
+		return peerInflates ? server.getCompression() : Compression.NONE;
+	}
+
+	/**
+	 * Returns the server that created this instance.
+	 */
+	final AbstractServer getServer() {
+		return server;
+	}
+
+	final long getConnectionId() {
+		return connectionId;
+	}
+
+	final void setConnectionId(long connectionId) {
+		this.connectionId = connectionId;
+	}
+
+	/**
+	 * Starts watching the client as a heartbeat policy says.
+	 * 
+	 * @param policy
+	 *            the policy, enabled.
+	 * @param wheel
+	 *            the wheel of the server.
+	 */
+	final void startHeartbeats(HeartbeatPolicy policy, TimerWheel wheel) {
+		HeartbeatMonitor monitor = new HeartbeatMonitor(policy, wheel, new HeartbeatMonitor.Peer() {
+			public void ping() throws IOException {
+				if (isConnected())
+					writeMessage(Heartbeat.PING);
 			}
-		} catch (Exception exception) {
-			if (!readyToStop) {
-				try {
-					closeAll();
-				} catch (Exception ex) {
-				}
 
-				server.clientException(this, exception);
+			public void expire(SocketTimeoutException reason) {
+				reap();
+			}
+		});
+		heartbeatMonitor = monitor;
+		monitor.start();
+		if (readyToStop.get()) // Closed meanwhile
+			monitor.stop();
+	}
+
+	/**
+	 * Answers a heartbeat of the client. Heartbeats are not messages: they
+	 * are neither counted nor handled.
+	 * 
+	 * @param heartbeat
+	 *            the heartbeat read.
+	 */
+	final void heartbeatReceived(Heartbeat heartbeat) {
+		HeartbeatMonitor monitor = heartbeatMonitor;
+		if (monitor != null)
+			monitor.heartbeatReceived();
+		if (heartbeat == Heartbeat.PING) {
+			try {
+				writeMessage(Heartbeat.PONG);
+			} catch (IOException ex) {
+				// The client pings again, or reading fails
 			}
 		}
 	}
 
+	/**
+	 * Counts a message read from the client against its rate limit, before
+	 * the message is decoded or handed to the server. Heartbeats are not
+	 * counted.
+	 * 
+	 * @return 0 if the message goes on to the server, -1 if it does not,
+	 *         being dropped or the client being disconnected, or else how
+	 *         long to wait, in nanoseconds, before asking again.
+	 */
+	final long admitMessage() {
+		RateLimit limit = getRateLimit();
+		if (!limit.isEnabled())
+			return 0;
+
+		long wait = limit.tryAcquire(rateBucket, System.nanoTime());
+		if (wait == 0)
+			return 0;
+
+		switch (limit.getPolicy()) {
+		case DELAY:
+			server.getMetrics().messagesDelayed.increment();
+			return wait;
+		case DROP:
+			server.getMetrics().messagesDropped.increment();
+			return -1;
+		default:
+			if (readyToStop.compareAndSet(false, true)) { // Read nothing more
+				server.getMetrics().rateLimitDisconnects.increment();
+				server.notifyClientRateLimited(this);
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Records that a message of the client arrived, for the heartbeat policy.
+	 */
+	final void messageReceived() {
+		HeartbeatMonitor monitor = heartbeatMonitor;
+		if (monitor != null)
+			monitor.messageReceived();
+	}
+
+	/**
+	 * Closes a connection whose client stopped answering. Unlike
+	 * <code> close </code>, nothing queued is written first, since writing
+	 * to a client that is gone may block until the operating system gives
+	 * up; the server is told as when a client disconnects.
+	 */
+	final void reap() {
+		if (!readyToStop.compareAndSet(false, true))
+			return;
+
+		try {
+			closeAll();
+		} catch (IOException ex) {
+		} finally {
+			server.notifyClientDisconnected(this);
+		}
+	}
+
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Starts servicing the connection once it has been registered with the
+	 * server.
+	 */
+	abstract void start();
+
+	/**
+	 * Writes one message using the transport of the concrete connection.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	abstract void writeMessage(Object msg) throws IOException;
+
+	/**
+	 * Writes a message whose encoding is shared with other connections.
+	 * 
+	 * @param msg
+	 *            the encoded message.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message.
+	 */
+	abstract void writeEncoded(EncodedMessage msg) throws IOException;
+
+	/**
+	 * Writes the messages of the outbound queue, and what the flush policy
+	 * holds back, before the connection is closed.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when writing.
+	 */
+	abstract void flushOutbound() throws IOException;
+
+	/**
+	 * Releases whatever the concrete connection holds besides the socket.
+	 * Called by <code> closeAll </code> after the socket has been closed.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when closing.
+	 */
+	abstract void closeStreams() throws IOException;
+
+	/**
+	 * @return the size of the handle table of the outgoing object stream, 0
+	 *         if there is none.
+	 */
+	int handleTableSize() {
+		return 0;
+	}
+
+	/**
+	 * Handles a failure of the transport: the connection is closed and the
+	 * server is told about the exception, unless closing was already
+	 * initiated.
+	 * 
+	 * @param exception
+	 *            the exception raised.
+	 */
+	final void connectionFailed(Exception exception) {
+		if (readyToStop.compareAndSet(false, true)) { // Report the failure only once
+
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			server.notifyClientException(this, exception);
+		}
+	}
+
+	/**
+	 * Accounts for one more message in the outbound queue, refusing it if the
+	 * queue is full.
+	 * 
+	 * @param bytes
+	 *            the bytes of the message, 0 if they are not known yet.
+	 * @exception IOException
+	 *                if the outbound queue is full.
+	 */
+	final void reserveOutbound(long bytes) throws IOException {
+		int capacity = server.getOutboundQueueCapacity();
+		if (outboundDepth.incrementAndGet() > capacity && capacity > 0) {
+			outboundDepth.decrementAndGet();
+			throw new IOException("outbound queue full (" + capacity + " messages)");
+		}
+		outboundBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Accounts for messages leaving the outbound queue.
+	 * 
+	 * @param count
+	 *            the number of messages written or discarded.
+	 * @param bytes
+	 *            the bytes written or discarded, as they were reserved.
+	 */
+	final void releaseOutbound(int count, long bytes) {
+		outboundDepth.addAndGet(-count);
+		outboundBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Tells if the outbound queue would be beyond a slow consumer policy
+	 * with some more in it.
+	 * 
+	 * @param policy
+	 *            the policy of the client.
+	 * @param moreMessages
+	 *            the messages about to be queued.
+	 * @param moreBytes
+	 *            their bytes.
+	 * @return true if the action of the policy applies.
+	 */
+	final boolean isBacklogged(SlowConsumerPolicy policy, int moreMessages, long moreBytes) {
+		return policy.isExceeded(outboundDepth.get() + moreMessages, outboundBytes.get() + moreBytes);
+	}
+
+	/**
+	 * Counts the messages discarded by a policy dropping the oldest.
+	 * 
+	 * @param count
+	 *            the number of messages discarded.
+	 */
+	final void outboundDropped(int count) {
+		server.getMetrics().slowConsumerDrops.add(count);
+	}
+
+	/**
+	 * Counts a message spilled to disk.
+	 * 
+	 * @param bytes
+	 *            the bytes spilled.
+	 */
+	final void outboundSpilled(long bytes) {
+		server.getMetrics().messagesSpilled.increment();
+		server.getMetrics().bytesSpilled.add(bytes);
+	}
+
+	/**
+	 * Disconnects a client beyond a policy that disconnects. Must not be
+	 * called holding a lock of the connection.
+	 * 
+	 * @param policy
+	 *            the policy of the client.
+	 * @return the exception <code> clientException </code> was called with,
+	 *         for the sender to throw.
+	 */
+	final IOException disconnectSlowConsumer(SlowConsumerPolicy policy) {
+		IOException exception = new IOException("slow consumer: " + outboundDepth.get() + " messages, "
+				+ outboundBytes.get() + " bytes waiting (" + policy + ")");
+		if (!readyToStop.get())
+			server.getMetrics().slowConsumerDisconnects.increment();
+		connectionFailed(exception);
+		return exception;
+	}
+
+	/**
+	 * Queues a message or event of this client for the dispatch executor. The
+	 * queue is drained by at most one task at a time, so the work of this
+	 * client runs in order while other clients are handled in parallel.
+	 * 
+	 * @param work
+	 *            the handler call.
+	 * @param executor
+	 *            the dispatch executor of the server.
+	 */
+	final void dispatch(Runnable work, Executor executor) {
+		dispatchQueue.add(work);
+		schedule(executor);
+	}
+
+	private void schedule(Executor executor) {
+		if (dispatchScheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(() -> drainDispatchQueue(executor));
+			} catch (RuntimeException ex) {
+				dispatchScheduled.set(false);
+				throw ex;
+			}
+		}
+	}
+
+	private void drainDispatchQueue(Executor executor) {
+		Runnable work;
+		for (int i = 0; i < DISPATCH_BATCH && (work = dispatchQueue.poll()) != null; i++) {
+			try {
+				work.run();
+			} catch (RuntimeException exception) {
+				// A failing handler closes the client, like on a reader thread
+				connectionFailed(exception);
+			}
+		}
+
+		dispatchScheduled.set(false);
+
+		// Work queued after the last poll, or left over by a full batch
+		if (!dispatchQueue.isEmpty())
+			schedule(executor);
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
 	 * @exception IOException
 	 *                if an I/O error occur when closing the connection.
 	 */
-	private void closeAll() throws IOException {
+	final void closeAll() throws IOException {
 		try {
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
 
-			// Close the output stream
-			if (output != null)
-				output.close();
-
-			// Close the input stream
-			if (input != null)
-				input.close();
+			// Close the streams, buffers or channel registrations
+			closeStreams();
 		} finally {
-			// Set the streams and the sockets to NULL no matter what
-			// Doing so allows, but does not require, any finalizers
-			// of these objects to reclaim system resources if and
-			// when they are garbage collected.
-			output = null;
-			input = null;
+			// Set the sockets to NULL no matter what
 			clientSocket = null;
+
+			HeartbeatMonitor monitor = heartbeatMonitor;
+			if (monitor != null)
+				monitor.stop();
 		}
 	}
 
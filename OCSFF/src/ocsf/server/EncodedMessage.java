@@ -0,0 +1,249 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ocsf.common.Compression;
+import ocsf.common.CompressionStatistics;
+import ocsf.common.DeflatedMessage;
+import ocsf.common.Frames;
+import ocsf.common.MessageCodec;
+
+/**
+ * A message sent to many clients at once. It is encoded at most once per
+ * wire format, however many connections it is written to, and the encoded
+ * bytes are never modified afterwards so every connection can share them.
+ * <p>
+ * Connections exchanging frames share one frame: the selector engine writes
+ * a read-only duplicate of it, the other engines its bytes. Connections
+ * exchanging an object stream write bytes produced by a
+ * fresh <code> ObjectOutputStream </code>, preceded by a reset marker: once
+ * the handle tables of both ends are cleared, those bytes are exactly what
+ * <code> writeObject </code> would have produced on any of the streams.
+ * <p>
+ * Clients that negotiated compression are sent a deflated variant, deflated
+ * once too. Messages below the compression threshold, or that deflating does
+ * not shorten, have the same bytes in both variants.
+ * <p>
+ * A batch is several encoded messages written as one: its bytes are theirs,
+ * back to back, which the client reads as the messages one after the other.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#sendToAllClients(Object)
+ */
+final class EncodedMessage {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The length of the header starting every object stream.
+	 */
+	private static final int STREAM_HEADER_LENGTH = 4;
+
+	/**
+	 * The reset marker of the object stream protocol.
+	 */
+	private static final byte TC_RESET = ObjectStreamConstants.TC_RESET;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The message itself.
+	 */
+	private final Object msg;
+
+	/**
+	 * The messages of a batch, or null for a single message.
+	 */
+	private final EncodedMessage[] parts;
+
+	/**
+	 * The compression of the deflated variant.
+	 */
+	private final Compression compression;
+
+	/**
+	 * Where deflating is counted, or null.
+	 */
+	private final CompressionStatistics statistics;
+
+	/**
+	 * The codec of the encoded frames.
+	 */
+	private MessageCodec frameCodec;
+
+	/**
+	 * The message as a frame, once encoded, plain then deflated.
+	 */
+	private final byte[][] frameBytes = new byte[2][];
+
+	/**
+	 * Read-only views of the frames.
+	 */
+	private final ByteBuffer[] frames = new ByteBuffer[2];
+
+	/**
+	 * The message as object stream content, once encoded, plain then
+	 * deflated.
+	 */
+	private final byte[][] streamBytes = new byte[2][];
+
+	// CONSTRUCTORS *****************************************************
+
+	EncodedMessage(Object msg) {
+		this(msg, Compression.NONE, null);
+	}
+
+	/**
+	 * @param msg
+	 *            the message.
+	 * @param compression
+	 *            the compression of the clients that negotiated it.
+	 * @param statistics
+	 *            where deflating is counted, or null.
+	 */
+	EncodedMessage(Object msg, Compression compression, CompressionStatistics statistics) {
+		this.msg = msg;
+		this.parts = null;
+		this.compression = compression;
+		this.statistics = statistics;
+	}
+
+	private EncodedMessage(EncodedMessage[] parts) {
+		this.msg = null;
+		this.parts = parts;
+		this.compression = Compression.NONE;
+		this.statistics = null;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the first messages of an array as one batch.
+	 *
+	 * @param messages
+	 *            the messages, in the order they are sent.
+	 * @param count
+	 *            the number of messages in the batch.
+	 */
+	static EncodedMessage batch(EncodedMessage[] messages, int count) {
+		EncodedMessage[] parts = new EncodedMessage[count];
+		System.arraycopy(messages, 0, parts, 0, count);
+		return new EncodedMessage(parts);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the message that is encoded.
+	 */
+	Object message() {
+		return msg;
+	}
+
+	/**
+	 * @return the number of messages written with these bytes.
+	 */
+	int count() {
+		return parts == null ? 1 : parts.length;
+	}
+
+	/**
+	 * Returns the message as a frame. The array is shared and must not be
+	 * modified.
+	 *
+	 * @param codec
+	 *            the codec of the frame.
+	 * @param deflated
+	 *            true for the variant of clients that negotiated compression.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	synchronized byte[] frameBytes(MessageCodec codec, boolean deflated) throws IOException {
+		if (frameCodec != codec) {
+			Arrays.fill(frameBytes, null);
+			Arrays.fill(frames, null);
+			frameCodec = codec;
+		}
+
+		int variant = deflated ? 1 : 0;
+		if (frameBytes[variant] == null) {
+			byte[] bytes;
+			if (parts != null) {
+				ByteArrayOutputStream batch = new ByteArrayOutputStream();
+				for (EncodedMessage part : parts)
+					batch.write(part.frameBytes(codec, deflated));
+				bytes = batch.toByteArray();
+			} else if (deflated) {
+				bytes = Frames.deflate(frameBytes(codec, false), compression, statistics);
+			} else {
+				bytes = Frames.encode(msg, codec);
+			}
+			frameBytes[variant] = bytes;
+			frames[variant] = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+		return frameBytes[variant];
+	}
+
+	/**
+	 * Returns the message as a frame. Every call returns a new read-only view
+	 * with its own position over the same bytes.
+	 *
+	 * @param codec
+	 *            the codec of the frame.
+	 * @param deflated
+	 *            true for the variant of clients that negotiated compression.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	synchronized ByteBuffer frame(MessageCodec codec, boolean deflated) throws IOException {
+		frameBytes(codec, deflated);
+		return frames[deflated ? 1 : 0].duplicate();
+	}
+
+	/**
+	 * Returns the message as object stream content: a reset marker followed by
+	 * the serialized object. The sender must reset its own stream right after
+	 * writing these bytes, so both handle tables agree again.
+	 *
+	 * @param deflated
+	 *            true for the variant of clients that negotiated compression.
+	 * @exception IOException
+	 *                if the message cannot be serialized.
+	 */
+	synchronized byte[] streamBytes(boolean deflated) throws IOException {
+		int variant = deflated ? 1 : 0;
+		if (streamBytes[variant] == null && parts != null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (EncodedMessage part : parts)
+				bytes.write(part.streamBytes(deflated)); // Each part resets the handle table
+			streamBytes[variant] = bytes.toByteArray();
+		} else if (streamBytes[variant] == null && deflated) {
+			Object wrapped = DeflatedMessage.wrap(msg, compression, statistics);
+			streamBytes[variant] = wrapped == msg ? streamBytes(false) : serialize(wrapped);
+		} else if (streamBytes[variant] == null) {
+			streamBytes[variant] = serialize(msg);
+		}
+		return streamBytes[variant];
+	}
+
+	/**
+	 * Serializes an object into object stream content, preceded by a reset
+	 * marker.
+	 */
+	private static byte[] serialize(Object obj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+			output.writeObject(obj);
+		}
+
+		byte[] serialized = bytes.toByteArray();
+		byte[] content = new byte[serialized.length - STREAM_HEADER_LENGTH + 1];
+		content[0] = TC_RESET;
+		System.arraycopy(serialized, STREAM_HEADER_LENGTH, content, 1, content.length - 1);
+		return content;
+	}
+}
+// End of EncodedMessage class
@@ -0,0 +1,743 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only journal of messages kept on disk, such as the history of a
+ * chat. Every message gets the next sequence number, starting at 1, and the
+ * time it was appended.
+ * <p>
+ * The journal is a directory of segments, each named after the sequence
+ * number of its first message. The segment being written is memory-mapped,
+ * so appending copies the message into memory and never waits for the disk.
+ * A background thread forces what was appended to the disk every sync
+ * interval, all at once: many appends share one sync, and a caller that
+ * needs a message on disk waits with <code> awaitDurable </code> for the
+ * sync that covers it. A segment that cannot take the next message is
+ * closed, trimmed to what it holds, and a new one is started; closed segments
+ * are deleted as the retention policy says.
+ * <p>
+ * Every message on disk is checked with a CRC when the journal opens, and a
+ * partly written message at the end, left by a crash, is discarded with
+ * everything after it.
+ * <p>
+ * Appending and reading are thread-safe; reads never block appends.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.RetentionPolicy
+ */
+public final class MessageJournal implements Closeable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The default size of a segment.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The bytes in front of every message: the length of the record, its
+	 * CRC, its sequence number and its time.
+	 */
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 8;
+
+	private static final int CRC_OFFSET = 4;
+
+	private static final int SEQUENCE_OFFSET = 8;
+
+	private static final int TIME_OFFSET = 16;
+
+	private static final String SUFFIX = ".journal";
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final Path directory;
+
+	private final int segmentSize;
+
+	/**
+	 * The segments, oldest first, the one being written last. Copied on
+	 * every change, so readers take a stable snapshot.
+	 */
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+	/**
+	 * The segment being written.
+	 */
+	private Segment active;
+
+	/**
+	 * The sequence number of the next message.
+	 */
+	private long nextSequence;
+
+	private volatile RetentionPolicy retention;
+
+	private volatile long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * Guards the sync requests, the durable sequence number and the end of
+	 * the sync thread.
+	 */
+	private final Object syncLock = new Object();
+
+	/**
+	 * The sequence number of the last message forced to the disk.
+	 */
+	private long durableSequence;
+
+	private boolean syncRequested = false;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * The failure of the last sync, thrown to the next caller.
+	 */
+	private volatile IOException syncError;
+
+	private final Thread syncThread;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Opens the journal in a directory, creating both if needed, with
+	 * segments of the default size kept forever.
+	 *
+	 * @param directory
+	 *            the directory of the segments.
+	 * @exception IOException
+	 *                if the journal cannot be opened.
+	 */
+	public MessageJournal(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, RetentionPolicy.KEEP_ALL);
+	}
+
+	/**
+	 * Opens the journal in a directory, creating both if needed.
+	 *
+	 * @param directory
+	 *            the directory of the segments.
+	 * @param segmentSize
+	 *            the size of a segment, which bounds the size of a message.
+	 * @param retention
+	 *            which closed segments are kept.
+	 * @exception IOException
+	 *                if the journal cannot be opened.
+	 */
+	public MessageJournal(Path directory, int segmentSize, RetentionPolicy retention) throws IOException {
+		if (segmentSize <= HEADER_LENGTH)
+			throw new IllegalArgumentException("segment size too small: " + segmentSize);
+		if (retention == null)
+			throw new NullPointerException("retention");
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.retention = retention;
+
+		Files.createDirectories(directory);
+		open();
+		durableSequence = nextSequence - 1;
+
+		syncThread = new Thread(this::syncLoop, "OCSF journal sync " + directory.getFileName());
+		syncThread.setDaemon(true);
+		syncThread.start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Appends a message. It is in the journal, and read back by anyone, once
+	 * this method returns; it is on disk after the next sync.
+	 *
+	 * @param payload
+	 *            the message.
+	 * @return the sequence number of the message.
+	 * @exception IOException
+	 *                if the journal is closed, a previous sync failed, or the
+	 *                message does not fit in a segment.
+	 */
+	public long append(byte[] payload) throws IOException {
+		int length = HEADER_LENGTH + payload.length;
+		if (length > segmentSize)
+			throw new IOException("message of " + payload.length + " bytes larger than a journal segment");
+
+		IOException error = syncError;
+		if (error != null)
+			throw error;
+
+		synchronized (this) {
+			if (closed)
+				throw new IOException("journal closed");
+			if ((long) active.writePosition + length > active.capacity())
+				roll();
+
+			long sequence = nextSequence++;
+			active.write(sequence, System.currentTimeMillis(), payload);
+			return sequence;
+		}
+	}
+
+	/**
+	 * Returns messages in the order they were appended.
+	 *
+	 * @param fromSequence
+	 *            the sequence number of the first message returned; older
+	 *            messages that were deleted are skipped.
+	 * @param maxEntries
+	 *            the most messages returned.
+	 * @return the messages, possibly none.
+	 */
+	public List<Entry> read(long fromSequence, int maxEntries) {
+		List<Entry> entries = new ArrayList<Entry>(Math.min(Math.max(maxEntries, 0), 1024));
+		Segment[] current = segments.toArray(new Segment[0]);
+		for (int i = 0; i < current.length && entries.size() < maxEntries; i++) {
+			if (i + 1 < current.length && current[i + 1].firstSequence <= fromSequence)
+				continue; // Every message wanted is in a later segment
+			current[i].read(fromSequence, maxEntries, entries);
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the last messages appended.
+	 *
+	 * @param count
+	 *            the most messages returned.
+	 * @return the messages, oldest first.
+	 */
+	public List<Entry> readLast(int count) {
+		return read(getLastSequence() - count + 1, count);
+	}
+
+	/**
+	 * Forces every message appended so far to the disk, waiting until they
+	 * are. Messages appended meanwhile by other threads may be forced by the
+	 * same sync.
+	 *
+	 * @exception IOException
+	 *                if the journal is closed or the sync fails.
+	 */
+	public void sync() throws IOException, InterruptedException {
+		long sequence;
+		synchronized (this) {
+			sequence = nextSequence - 1;
+		}
+		awaitDurable(sequence);
+	}
+
+	/**
+	 * Waits until a message is on disk, asking for a sync at once rather than
+	 * at the end of the sync interval. Every thread waiting is released by the
+	 * same sync.
+	 *
+	 * @param sequence
+	 *            the sequence number of the message.
+	 * @exception IOException
+	 *                if the journal is closed or the sync fails.
+	 */
+	public void awaitDurable(long sequence) throws IOException, InterruptedException {
+		synchronized (syncLock) {
+			while (durableSequence < sequence) {
+				IOException error = syncError;
+				if (error != null)
+					throw error;
+				if (closed)
+					throw new IOException("journal closed");
+
+				if (!syncRequested) {
+					syncRequested = true; // The first waiter wakes the sync thread
+					syncLock.notifyAll();
+				}
+				syncLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Closes the journal, forcing every message to the disk first.
+	 *
+	 * @exception IOException
+	 *                if the last sync fails.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+
+		synchronized (syncLock) {
+			syncLock.notifyAll();
+		}
+		try {
+			syncThread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			forceDirty();
+		} finally {
+			for (Segment segment : segments)
+				segment.close();
+			synchronized (syncLock) {
+				syncLock.notifyAll(); // Waiters find the journal closed
+			}
+		}
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the sequence number of the last message appended, 0 if none.
+	 */
+	public synchronized long getLastSequence() {
+		return nextSequence - 1;
+	}
+
+	/**
+	 * @return the sequence number of the oldest message kept, or the next
+	 *         sequence number when the journal is empty.
+	 */
+	public long getFirstSequence() {
+		return segments.get(0).firstSequence;
+	}
+
+	/**
+	 * @return the sequence number of the last message known to be on disk.
+	 */
+	public long getDurableSequence() {
+		synchronized (syncLock) {
+			return durableSequence;
+		}
+	}
+
+	/**
+	 * @return the number of segments on disk, the one being written included.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Sets how often what was appended is forced to the disk. The longer the
+	 * interval, the more messages share a sync, and the more may be lost if
+	 * the machine fails; a crash of the program alone loses nothing.
+	 *
+	 * @param interval
+	 *            the interval, positive.
+	 * @param unit
+	 *            the unit of the interval.
+	 */
+	public void setSyncInterval(long interval, TimeUnit unit) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("sync interval must be positive");
+		syncIntervalNanos = unit.toNanos(interval);
+	}
+
+	/**
+	 * Sets which closed segments are kept. Applied at the next sync.
+	 *
+	 * @param retention
+	 *            the policy.
+	 */
+	public void setRetentionPolicy(RetentionPolicy retention) {
+		if (retention == null)
+			throw new NullPointerException("retention");
+		this.retention = retention;
+	}
+
+	/**
+	 * @return which closed segments are kept.
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retention;
+	}
+
+	/**
+	 * @return the directory of the segments.
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	// METHODS USED WHILE OPENING OR WRITING -----------------------------
+
+	/**
+	 * Maps the segments on disk, checking their messages, or starts the
+	 * first segment.
+	 */
+	private void open() throws IOException {
+		List<Long> firstSequences = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					firstSequences.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+				} catch (NumberFormatException ex) {
+					// Not a segment
+				}
+			}
+		}
+		Collections.sort(firstSequences);
+
+		List<Segment> opened = new ArrayList<Segment>();
+		try {
+			for (int i = 0; i < firstSequences.size(); i++) {
+				boolean last = i == firstSequences.size() - 1;
+				opened.add(Segment.open(segmentPath(firstSequences.get(i)), firstSequences.get(i), segmentSize, last));
+			}
+			if (opened.isEmpty())
+				opened.add(Segment.create(segmentPath(1), 1, segmentSize));
+		} catch (IOException ex) {
+			for (Segment segment : opened)
+				segment.close();
+			throw ex;
+		}
+
+		segments.addAll(opened);
+		active = opened.get(opened.size() - 1);
+		nextSequence = active.lastSequence + 1;
+	}
+
+	/**
+	 * Closes the segment being written and starts the next one. Must be
+	 * called holding the lock of the journal.
+	 */
+	private void roll() throws IOException {
+		Segment next = Segment.create(segmentPath(nextSequence), nextSequence, segmentSize);
+		active.seal();
+		active = next;
+		segments.add(next);
+	}
+
+	private Path segmentPath(long firstSequence) {
+		return directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+	}
+
+	// METHODS CALLED BY THE SYNC THREAD --------------------------------
+
+	private void syncLoop() {
+		while (!closed) {
+			synchronized (syncLock) {
+				if (!syncRequested && !closed) {
+					try {
+						TimeUnit.NANOSECONDS.timedWait(syncLock, syncIntervalNanos);
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				syncRequested = false;
+			}
+
+			try {
+				forceDirty();
+				deleteExpiredSegments();
+			} catch (IOException ex) {
+				syncError = ex;
+				synchronized (syncLock) {
+					syncLock.notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forces what was written since the last sync to the disk, outside the
+	 * lock of the journal so appending goes on meanwhile.
+	 */
+	private void forceDirty() throws IOException {
+		long sequence;
+		List<Segment> dirty = new ArrayList<Segment>(2);
+		List<Integer> limits = new ArrayList<Integer>(2);
+		synchronized (this) {
+			sequence = nextSequence - 1;
+			for (Segment segment : segments) {
+				if (segment.syncedPosition < segment.writePosition) {
+					dirty.add(segment);
+					limits.add(segment.writePosition);
+				}
+			}
+		}
+
+		for (int i = 0; i < dirty.size(); i++)
+			dirty.get(i).force(limits.get(i));
+
+		synchronized (syncLock) {
+			if (sequence > durableSequence)
+				durableSequence = sequence;
+			syncLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments while the retention policy says so; the
+	 * segment being written is never deleted.
+	 */
+	private void deleteExpiredSegments() {
+		List<Segment> expired = new ArrayList<Segment>();
+		synchronized (this) {
+			long bytes = 0;
+			for (Segment segment : segments)
+				bytes += segment.writePosition;
+
+			long now = System.currentTimeMillis();
+			RetentionPolicy retention = this.retention;
+			while (segments.size() > 1) {
+				Segment oldest = segments.get(0);
+				if (!retention.deletesOldest(segments.size(), bytes, oldest.lastTimestamp, now))
+					break;
+				segments.remove(0);
+				bytes -= oldest.writePosition;
+				expired.add(oldest);
+			}
+		}
+
+		for (Segment segment : expired)
+			segment.delete();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A message read from the journal.
+	 */
+	public static final class Entry {
+		private final long sequence;
+
+		private final long timestamp;
+
+		private final byte[] payload;
+
+		Entry(long sequence, long timestamp, byte[] payload) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.payload = payload;
+		}
+
+		/**
+		 * @return the sequence number of the message.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return when the message was appended, in milliseconds since the
+		 *         epoch.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return the message, a copy owned by the caller.
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+	}
+
+	/**
+	 * One file of the journal, mapped in memory. Written under the lock of
+	 * the journal; read by anyone up to the write position.
+	 */
+	private static final class Segment {
+		final Path path;
+
+		final long firstSequence;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer buffer;
+
+		/**
+		 * The end of the last complete message. Written after the message,
+		 * so readers never see a partial one.
+		 */
+		volatile int writePosition = 0;
+
+		volatile long lastSequence;
+
+		volatile long lastTimestamp;
+
+		/**
+		 * The end of what was forced to the disk.
+		 */
+		int syncedPosition = 0;
+
+		private final CRC32C crc = new CRC32C();
+
+		private Segment(Path path, long firstSequence, FileChannel channel, MappedByteBuffer buffer) {
+			this.path = path;
+			this.firstSequence = firstSequence;
+			this.channel = channel;
+			this.buffer = buffer;
+			this.lastSequence = firstSequence - 1;
+			this.lastTimestamp = System.currentTimeMillis();
+		}
+
+		static Segment create(Path path, long firstSequence, int size) throws IOException {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			try {
+				return new Segment(path, firstSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * Maps an existing segment and finds its last valid message. The last
+		 * segment is mapped for writing, and whatever follows its last valid
+		 * message is cleared.
+		 */
+		static Segment open(Path path, long firstSequence, int size, boolean writable) throws IOException {
+			FileChannel channel = writable
+					? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+					: FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				long fileSize = channel.size();
+				MappedByteBuffer buffer = writable
+						? channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(fileSize, size))
+						: channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+				Segment segment = new Segment(path, firstSequence, channel, buffer);
+				segment.recover(writable);
+				return segment;
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+		}
+
+		int capacity() {
+			return buffer.capacity();
+		}
+
+		/**
+		 * Writes a message after the last one. The length goes last, so a
+		 * torn record reads as the end of the segment.
+		 */
+		void write(long sequence, long timestamp, byte[] payload) {
+			int position = writePosition;
+			int length = HEADER_LENGTH + payload.length;
+			buffer.putLong(position + SEQUENCE_OFFSET, sequence);
+			buffer.putLong(position + TIME_OFFSET, timestamp);
+			buffer.put(position + HEADER_LENGTH, payload);
+			buffer.putInt(position + CRC_OFFSET, checksum(position, length));
+			buffer.putInt(position, length);
+
+			lastSequence = sequence;
+			lastTimestamp = timestamp;
+			writePosition = position + length;
+		}
+
+		/**
+		 * Adds the messages from a sequence number on, up to a count.
+		 */
+		void read(long fromSequence, int maxEntries, List<Entry> entries) {
+			ByteBuffer view = buffer.duplicate(); // Absolute reads only, but keep ours apart
+			int end = writePosition;
+			int position = 0;
+			while (position < end && entries.size() < maxEntries) {
+				int length = view.getInt(position);
+				long sequence = view.getLong(position + SEQUENCE_OFFSET);
+				if (sequence >= fromSequence) {
+					byte[] payload = new byte[length - HEADER_LENGTH];
+					view.get(position + HEADER_LENGTH, payload);
+					entries.add(new Entry(sequence, view.getLong(position + TIME_OFFSET), payload));
+				}
+				position += length;
+			}
+		}
+
+		/**
+		 * Finds the end of the valid messages.
+		 */
+		private void recover(boolean writable) {
+			int limit = buffer.capacity();
+			int position = 0;
+			long expected = firstSequence;
+			while (position + HEADER_LENGTH <= limit) {
+				int length = buffer.getInt(position);
+				if (length < HEADER_LENGTH || length > limit - position
+						|| buffer.getLong(position + SEQUENCE_OFFSET) != expected
+						|| buffer.getInt(position + CRC_OFFSET) != checksum(position, length))
+					break;
+
+				lastSequence = expected++;
+				lastTimestamp = buffer.getLong(position + TIME_OFFSET);
+				position += length;
+			}
+			writePosition = position;
+			syncedPosition = position;
+
+			// Clear a torn message, so nothing after the end looks valid
+			if (writable) {
+				for (int i = position; i < limit && i < position + HEADER_LENGTH; i++)
+					buffer.put(i, (byte) 0);
+			}
+		}
+
+		private int checksum(int position, int length) {
+			crc.reset();
+			crc.update(buffer.slice(position + SEQUENCE_OFFSET, length - SEQUENCE_OFFSET));
+			return (int) crc.getValue();
+		}
+
+		/**
+		 * Forces the bytes up to a position to the disk. Called by one
+		 * thread at a time.
+		 */
+		void force(int limit) {
+			if (limit > syncedPosition) {
+				buffer.force(syncedPosition, limit - syncedPosition);
+				syncedPosition = limit;
+			}
+		}
+
+		/**
+		 * Trims the file of a segment that is no longer written to what it
+		 * holds. Some systems cannot shrink a mapped file; the segment then
+		 * keeps its size.
+		 */
+		void seal() {
+			try {
+				channel.truncate(writePosition);
+			} catch (IOException ex) {
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+		}
+
+		/**
+		 * Deletes the file. Readers still holding the mapping may finish;
+		 * the memory is released once they are done.
+		 */
+		void delete() {
+			close();
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException ex) {
+				// Still mapped on systems that forbid it; retried at the next open
+			}
+		}
+	}
+}
+// End of MessageJournal class
@@ -0,0 +1,32 @@
+package ocsf.server;
+
+/**
+ * What happens to a message of a client that is over its
+ * <code> RateLimit </code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.RateLimit
+ */
+public enum OverLimitPolicy {
+	/**
+	 * The message is discarded without being handled, and counted.
+	 */
+	DROP,
+
+	/**
+	 * Reading from the client pauses until the message is within the limit:
+	 * nothing is lost, and the client is slowed down by its own socket
+	 * filling up.
+	 */
+	DELAY,
+
+	/**
+	 * The message is discarded, <code> clientRateLimited </code> is called so
+	 * that the server can tell the client why, and the client is
+	 * disconnected.
+	 */
+	DISCONNECT
+}
+// End of OverLimitPolicy enum
@@ -0,0 +1,149 @@
+package ocsf.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How many messages a client may send: a sustained rate, and a burst above
+ * it. The limit is a token bucket holding as many tokens as the burst,
+ * refilled at the rate, every message taking one. It is kept as the time at
+ * which the bucket would be full again, a single number that a message
+ * moves forward with one compare-and-set, so checking it never locks.
+ * <p>
+ * A limit is immutable; the state of the bucket belongs to the connection.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimit(RateLimit)
+ * @see ocsf.server.ConnectionToClient#setRateLimit(RateLimit)
+ */
+public final class RateLimit {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * No limit: the behaviour of the original framework.
+	 */
+	public static final RateLimit NONE = new RateLimit(0, 0, OverLimitPolicy.DROP);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The messages allowed per second, 0 for no limit.
+	 */
+	private final long messagesPerSecond;
+
+	/**
+	 * The messages allowed at once, on top of the rate.
+	 */
+	private final int burst;
+
+	/**
+	 * What happens to a message over the limit.
+	 */
+	private final OverLimitPolicy policy;
+
+	/**
+	 * The time one token takes to come back.
+	 */
+	private final long intervalNanos;
+
+	/**
+	 * How far ahead of now the bucket may be full again: the time the burst
+	 * takes to come back.
+	 */
+	private final long toleranceNanos;
+
+	// CONSTRUCTORS *****************************************************
+
+	private RateLimit(long messagesPerSecond, int burst, OverLimitPolicy policy) {
+		this.messagesPerSecond = messagesPerSecond;
+		this.burst = burst;
+		this.policy = policy;
+		this.intervalNanos = messagesPerSecond == 0 ? 0 : Math.max(1, TimeUnit.SECONDS.toNanos(1) / messagesPerSecond);
+		this.toleranceNanos = intervalNanos * burst;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns a limit.
+	 *
+	 * @param messagesPerSecond
+	 *            the sustained rate, positive.
+	 * @param burst
+	 *            the messages allowed at once, at least one.
+	 * @param policy
+	 *            what happens to a message over the limit.
+	 * @return the limit.
+	 */
+	public static RateLimit perSecond(long messagesPerSecond, int burst, OverLimitPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("policy");
+		if (messagesPerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("the rate and the burst must be positive");
+		return new RateLimit(messagesPerSecond, burst, policy);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if messages are limited at all.
+	 */
+	public boolean isEnabled() {
+		return messagesPerSecond > 0;
+	}
+
+	/**
+	 * @return the messages allowed per second, 0 for no limit.
+	 */
+	public long getMessagesPerSecond() {
+		return messagesPerSecond;
+	}
+
+	/**
+	 * @return the messages allowed at once, on top of the rate.
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * @return what happens to a message over the limit.
+	 */
+	public OverLimitPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Takes a token from a bucket, if it has one.
+	 *
+	 * @param bucket
+	 *            the time at which the bucket is full again, moved forward
+	 *            if a token is taken.
+	 * @param now
+	 *            the current time, from <code> System.nanoTime </code>.
+	 * @return 0 if a token was taken, or else how long until one is back,
+	 *         in nanoseconds.
+	 */
+	long tryAcquire(AtomicLong bucket, long now) {
+		while (true) {
+			long full = bucket.get();
+			// A bucket full long ago is just full
+			long next = (full - now < 0 ? now : full) + intervalNanos;
+			long ahead = next - now;
+			if (ahead > toleranceNanos)
+				return ahead - toleranceNanos;
+			if (bucket.compareAndSet(full, next))
+				return 0;
+		}
+	}
+
+	public String toString() {
+		if (!isEnabled())
+			return "none";
+		return messagesPerSecond + " msgs/s, bursts of " + burst + ", " + policy.name().toLowerCase()
+				+ " beyond";
+	}
+}
+// End of RateLimit class
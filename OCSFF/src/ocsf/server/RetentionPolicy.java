@@ -0,0 +1,152 @@
+package ocsf.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which closed segments a <code> MessageJournal </code> keeps. Segments are
+ * deleted oldest first, whole, and the segment being written is always kept.
+ * A policy may limit the number of segments, the bytes they take on disk, and
+ * the age of their newest message; a segment is deleted as soon as any limit
+ * is exceeded.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.MessageJournal
+ */
+public final class RetentionPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Keeps every segment forever.
+	 */
+	public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0, 0);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The most segments kept, 0 for no limit.
+	 */
+	private final int maxSegments;
+
+	/**
+	 * The most bytes kept, 0 for no limit.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * How long a segment is kept after its last message, in milliseconds, 0
+	 * for no limit.
+	 */
+	private final long maxAgeMillis;
+
+	// CONSTRUCTORS *****************************************************
+
+	private RetentionPolicy(int maxSegments, long maxBytes, long maxAgeMillis) {
+		this.maxSegments = maxSegments;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @param maxSegments
+	 *            the most segments kept, the one being written included.
+	 * @return a policy keeping the newest segments only.
+	 */
+	public static RetentionPolicy keepSegments(int maxSegments) {
+		return of(maxSegments, 0, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the most bytes the segments take on disk.
+	 * @return a policy keeping the newest segments within a disk budget.
+	 */
+	public static RetentionPolicy keepBytes(long maxBytes) {
+		return of(0, maxBytes, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxAge
+	 *            how long a segment is kept after its last message.
+	 * @param unit
+	 *            the unit of the age.
+	 * @return a policy keeping recent segments only.
+	 */
+	public static RetentionPolicy keepFor(long maxAge, TimeUnit unit) {
+		return of(0, 0, maxAge, unit);
+	}
+
+	/**
+	 * Returns a policy combining limits. A limit of 0 is no limit.
+	 *
+	 * @param maxSegments
+	 *            the most segments kept, the one being written included.
+	 * @param maxBytes
+	 *            the most bytes the segments take on disk.
+	 * @param maxAge
+	 *            how long a segment is kept after its last message.
+	 * @param unit
+	 *            the unit of the age.
+	 * @return the policy.
+	 */
+	public static RetentionPolicy of(int maxSegments, long maxBytes, long maxAge, TimeUnit unit) {
+		if (maxSegments < 0 || maxBytes < 0 || maxAge < 0)
+			throw new IllegalArgumentException("retention limits cannot be negative");
+		return new RetentionPolicy(maxSegments, maxBytes, unit.toMillis(maxAge));
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Tells if the oldest segment is deleted.
+	 *
+	 * @param segments
+	 *            the number of segments, the oldest included.
+	 * @param bytes
+	 *            the bytes they take on disk.
+	 * @param oldestLastWrite
+	 *            when the last message of the oldest segment was written, in
+	 *            milliseconds since the epoch.
+	 * @param now
+	 *            the current time, in milliseconds since the epoch.
+	 * @return true if the oldest segment exceeds a limit.
+	 */
+	public boolean deletesOldest(int segments, long bytes, long oldestLastWrite, long now) {
+		return (maxSegments > 0 && segments > maxSegments) || (maxBytes > 0 && bytes > maxBytes)
+				|| (maxAgeMillis > 0 && now - oldestLastWrite > maxAgeMillis);
+	}
+
+	/**
+	 * @return the most segments kept, 0 for no limit.
+	 */
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	/**
+	 * @return the most bytes kept, 0 for no limit.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return how long a segment is kept after its last message, in
+	 *         milliseconds, 0 for no limit.
+	 */
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public String toString() {
+		if (maxSegments == 0 && maxBytes == 0 && maxAgeMillis == 0)
+			return "keep all";
+		return "keep at most " + (maxSegments == 0 ? "any" : maxSegments) + " segments, "
+				+ (maxBytes == 0 ? "any" : maxBytes) + " bytes, "
+				+ (maxAgeMillis == 0 ? "any age" : maxAgeMillis + " ms after the last message");
+	}
+}
+// End of RetentionPolicy class
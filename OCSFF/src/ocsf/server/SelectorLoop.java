@@ -0,0 +1,191 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One I/O thread of the <code> SELECTOR </code> engine. Each loop owns a
+ * selector and services every channel registered with it: reading and
+ * dispatching frames, and writing whatever could not be written immediately.
+ * All changes to the selector are made from the loop thread itself, through
+ * tasks handed to <code> execute </code>. Tasks can also be delayed with
+ * <code> schedule </code>, to the nearest millisecond.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ChannelConnectionToClient
+ */
+final class SelectorLoop implements Runnable {
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The selector multiplexing the channels of this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Work submitted by other threads, run by the loop between selections.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Delayed work, earliest first. Only used by the loop thread.
+	 */
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(
+			(a, b) -> Long.compare(a.deadline - b.deadline, 0));
+
+	/**
+	 * The thread running the loop.
+	 */
+	private final Thread loopThread;
+
+	/**
+	 * Indicates if the loop is ready to stop.
+	 */
+	private volatile boolean readyToStop = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Opens the selector of a new loop. The loop does not run until
+	 * <code> start </code> is called.
+	 *
+	 * @param name
+	 *            the name of the loop thread.
+	 * @exception IOException
+	 *                if the selector cannot be opened.
+	 */
+	SelectorLoop(String name) throws IOException {
+		selector = Selector.open();
+		loopThread = new Thread(this, name);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Starts the loop thread.
+	 */
+	void start() {
+		loopThread.start();
+	}
+
+	/**
+	 * Asks the loop to stop. Channels still registered are not closed.
+	 */
+	void shutdown() {
+		readyToStop = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop thread, as soon as the current selection is over.
+	 *
+	 * @param task
+	 *            the work to do.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop thread once a delay has passed.
+	 *
+	 * @param task
+	 *            the work to do.
+	 * @param delayNanos
+	 *            the delay, in nanoseconds.
+	 */
+	void schedule(Runnable task, long delayNanos) {
+		Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+		execute(() -> timers.add(timer));
+	}
+
+	/**
+	 * @return the selector of this loop.
+	 */
+	Selector selector() {
+		return selector;
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Selects ready channels and services them until the loop is shut down.
+	 * Not to be called.
+	 */
+	public void run() {
+		try {
+			while (!readyToStop) {
+				selector.select(runTimers());
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					ChannelConnectionToClient client = (ChannelConnectionToClient) key.attachment();
+					try {
+						if (key.isReadable())
+							client.handleRead();
+						if (key.isValid() && key.isWritable())
+							client.handleWrite();
+					} catch (CancelledKeyException ex) {
+						// The client was closed while being serviced
+					}
+				}
+			}
+		} catch (IOException ex) {
+			// The selector itself failed, nothing more can be serviced
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * Runs the delayed tasks that are due.
+	 *
+	 * @return how long the next selection may block, in milliseconds: until
+	 *         the next delayed task is due, or 0 for as long as needed.
+	 */
+	private long runTimers() {
+		long now = System.nanoTime();
+		Timer timer;
+		while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+			timers.poll();
+			timer.task.run();
+		}
+
+		if (timer == null)
+			return 0;
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timer.deadline - now + 999_999));
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A task waiting for its deadline.
+	 */
+	private static final class Timer {
+		final long deadline;
+		final Runnable task;
+
+		Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+}
+// End of SelectorLoop class
@@ -0,0 +1,39 @@
+package ocsf.server;
+
+/**
+ * The ways an <code> AbstractServer </code> can service its client
+ * connections. The engine is chosen when the server is constructed and
+ * cannot be changed afterwards.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#AbstractServer(int, ServerEngine)
+ */
+public enum ServerEngine {
+	/**
+	 * The classic engine: every client gets its own thread blocked reading a
+	 * continuous object stream. Compatible with every OCSF client.
+	 */
+	THREAD_PER_CLIENT,
+
+	/**
+	 * Like <code> THREAD_PER_CLIENT </code>, but every client gets a virtual
+	 * thread. Same wire format, a small fraction of the memory per idle
+	 * client.
+	 *
+	 * @see ocsf.common.ThreadMode#VIRTUAL
+	 */
+	VIRTUAL_THREAD_PER_CLIENT,
+
+	/**
+	 * A small, fixed number of threads multiplex all the clients with
+	 * <code> java.nio </code> selectors. Clients must exchange length-prefixed
+	 * frames, with the codec of the server or Java serialization.
+	 *
+	 * @see ocsf.common.Frames
+	 * @see ocsf.client.AbstractClient#setCodec(ocsf.common.MessageCodec)
+	 */
+	SELECTOR
+}
+// End of ServerEngine enum
@@ -0,0 +1,277 @@
+package ocsf.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ocsf.common.CompressionStatistics;
+import ocsf.common.LatencyHistogram;
+
+/**
+ * The metrics of a server: messages and bytes exchanged with its clients,
+ * connections, and how long handlers and broadcasts take. They are kept
+ * whether or not anyone looks, so every counter is striped and recording
+ * never locks.
+ * <p>
+ * While the server listens, its metrics are registered with the platform
+ * MBean server, and so are those of every connection if the server asks for
+ * it. The name of the server carries its port, followed by an instance number
+ * when another server registered the same port first.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getMetrics()
+ * @see ocsf.server.ConnectionMetrics
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+	// CLASS VARIABLES **************************************************
+
+	private static final String DOMAIN = "ocsf";
+
+	// INSTANCE VARIABLES ***********************************************
+
+	private final AbstractServer server;
+
+	final LongAdder messagesIn = new LongAdder();
+
+	final LongAdder messagesOut = new LongAdder();
+
+	final LongAdder bytesIn = new LongAdder();
+
+	final LongAdder bytesOut = new LongAdder();
+
+	final LongAdder messagesDropped = new LongAdder();
+
+	final LongAdder messagesDelayed = new LongAdder();
+
+	final LongAdder rateLimitDisconnects = new LongAdder();
+
+	final LongAdder slowConsumerDrops = new LongAdder();
+
+	final LongAdder slowConsumerDisconnects = new LongAdder();
+
+	final LongAdder messagesSpilled = new LongAdder();
+
+	final LongAdder bytesSpilled = new LongAdder();
+
+	private final AtomicInteger peakConnections = new AtomicInteger();
+
+	private final LatencyHistogram handlerLatency = new LatencyHistogram();
+
+	private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+
+	/**
+	 * The properties naming the server while registered, such as
+	 * <code> port=5555 </code>, or null.
+	 */
+	private volatile String registeredAs;
+
+	// CONSTRUCTORS *****************************************************
+
+	ServerMetrics(AbstractServer server) {
+		this.server = server;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getMessagesDropped() {
+		return messagesDropped.sum();
+	}
+
+	@Override
+	public long getMessagesDelayed() {
+		return messagesDelayed.sum();
+	}
+
+	@Override
+	public long getRateLimitDisconnects() {
+		return rateLimitDisconnects.sum();
+	}
+
+	@Override
+	public long getSlowConsumerDrops() {
+		return slowConsumerDrops.sum();
+	}
+
+	@Override
+	public long getSlowConsumerDisconnects() {
+		return slowConsumerDisconnects.sum();
+	}
+
+	@Override
+	public long getMessagesSpilled() {
+		return messagesSpilled.sum();
+	}
+
+	@Override
+	public long getBytesSpilled() {
+		return bytesSpilled.sum();
+	}
+
+	@Override
+	public int getCurrentConnections() {
+		return server.getNumberOfClients();
+	}
+
+	@Override
+	public int getPeakConnections() {
+		return peakConnections.get();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return server.getAcceptStatistics().getAccepted();
+	}
+
+	@Override
+	public long getAcceptRate() {
+		return server.getAcceptStatistics().getAcceptRate();
+	}
+
+	@Override
+	public LatencyHistogram getHandlerLatency() {
+		return handlerLatency;
+	}
+
+	@Override
+	public LatencyHistogram getBroadcastLatency() {
+		return broadcastLatency;
+	}
+
+	@Override
+	public CompressionStatistics getCompression() {
+		return server.getCompressionStatistics();
+	}
+
+	public String toString() {
+		return "in=" + getMessagesIn() + " msgs/" + getBytesIn() + " B out=" + getMessagesOut() + " msgs/"
+				+ getBytesOut() + " B connections=" + getCurrentConnections() + " peak=" + getPeakConnections()
+				+ " handler[" + handlerLatency + "] broadcast[" + broadcastLatency + "] over limit[dropped="
+				+ getMessagesDropped() + " delayed=" + getMessagesDelayed() + " disconnected="
+				+ getRateLimitDisconnects() + "] slow consumers[dropped=" + getSlowConsumerDrops() + " disconnected="
+				+ getSlowConsumerDisconnects() + " spilled=" + getMessagesSpilled() + " msgs/" + getBytesSpilled()
+				+ " B]";
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Records that a client connected, leaving the given number connected.
+	 */
+	void recordConnection(int current) {
+		int peak;
+		while (current > (peak = peakConnections.get()) && !peakConnections.compareAndSet(peak, current))
+			;
+	}
+
+	void recordHandler(long nanos) {
+		handlerLatency.record(nanos);
+	}
+
+	void recordBroadcast(long nanos) {
+		broadcastLatency.record(nanos);
+	}
+
+	/**
+	 * Registers the metrics of the server, unless they already are. A failure
+	 * leaves them unregistered; the server works the same without them.
+	 *
+	 * @param port
+	 *            the port the server listens on.
+	 */
+	synchronized void register(int port) {
+		if (registeredAs != null)
+			return;
+
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		String properties = "port=" + port;
+		try {
+			for (int instance = 2; mbeans.isRegistered(name("Server", properties)); instance++)
+				properties = "port=" + port + ",instance=" + instance;
+			mbeans.registerMBean(this, name("Server", properties));
+			registeredAs = properties;
+		} catch (JMException ex) {
+		}
+	}
+
+	/**
+	 * Unregisters the metrics of the server, if they are registered.
+	 */
+	synchronized void unregister() {
+		String properties = registeredAs;
+		if (properties == null)
+			return;
+
+		registeredAs = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name("Server", properties));
+		} catch (JMException ex) {
+		}
+	}
+
+	/**
+	 * Registers the metrics of a connection next to those of the server, if
+	 * these are registered.
+	 */
+	void register(ConnectionToClient client) {
+		String properties = registeredAs;
+		if (properties == null)
+			return;
+
+		ConnectionMetrics metrics = client.getMetrics();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+					name("Connection", properties + ",id=" + client.getConnectionId()));
+			metrics.registered = true;
+		} catch (JMException ex) {
+		}
+	}
+
+	/**
+	 * Unregisters the metrics of a connection, if they are registered.
+	 */
+	void unregister(ConnectionToClient client) {
+		String properties = registeredAs;
+		ConnectionMetrics metrics = client.getMetrics();
+		if (properties == null || !metrics.registered)
+			return;
+
+		metrics.registered = false;
+		try {
+			ManagementFactory.getPlatformMBeanServer()
+					.unregisterMBean(name("Connection", properties + ",id=" + client.getConnectionId()));
+		} catch (JMException ex) {
+		}
+	}
+
+	private static ObjectName name(String type, String properties) throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + type + "," + properties);
+	}
+}
+// End of ServerMetrics class
@@ -0,0 +1,117 @@
+package ocsf.server;
+
+import ocsf.common.CompressionStatistics;
+import ocsf.common.LatencyHistogram;
+
+/**
+ * The metrics of a server as seen through JMX, under the name
+ * <code> ocsf:type=Server,port=&lt;port&gt; </code>. Every attribute counts
+ * from the creation of the server.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+	/**
+	 * @return the number of messages received from clients.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * @return the number of messages sent to clients, a broadcast counting
+	 *         once per client.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return the number of bytes read from client sockets.
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return the number of bytes written to client sockets.
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return the number of messages from clients dropped for being over
+	 *         their rate limit.
+	 */
+	long getMessagesDropped();
+
+	/**
+	 * @return the number of times reading from a client paused for its rate
+	 *         limit.
+	 */
+	long getMessagesDelayed();
+
+	/**
+	 * @return the number of clients disconnected for being over their rate
+	 *         limit.
+	 */
+	long getRateLimitDisconnects();
+
+	/**
+	 * @return the number of messages to slow clients dropped to keep them
+	 *         within their slow consumer policy.
+	 */
+	long getSlowConsumerDrops();
+
+	/**
+	 * @return the number of clients disconnected for falling behind their
+	 *         slow consumer policy.
+	 */
+	long getSlowConsumerDisconnects();
+
+	/**
+	 * @return the number of messages to slow clients spilled to disk.
+	 */
+	long getMessagesSpilled();
+
+	/**
+	 * @return the number of bytes spilled to disk.
+	 */
+	long getBytesSpilled();
+
+	/**
+	 * @return the number of clients connected.
+	 */
+	int getCurrentConnections();
+
+	/**
+	 * @return the largest number of clients connected at once.
+	 */
+	int getPeakConnections();
+
+	/**
+	 * @return the number of connections accepted.
+	 */
+	long getAcceptedConnections();
+
+	/**
+	 * @return the number of connections accepted during the last complete
+	 *         second.
+	 */
+	long getAcceptRate();
+
+	/**
+	 * @return how long <code> handleMessageFromClient </code> takes.
+	 */
+	LatencyHistogram getHandlerLatency();
+
+	/**
+	 * @return how long <code> sendToAllClients </code> and
+	 *         <code> sendToClients </code> take to hand a message to every
+	 *         connection.
+	 */
+	LatencyHistogram getBroadcastLatency();
+
+	/**
+	 * @return the messages deflated and inflated, the compression ratio, and
+	 *         the time spent on both.
+	 */
+	CompressionStatistics getCompression();
+}
+// End of ServerMetricsMXBean interface
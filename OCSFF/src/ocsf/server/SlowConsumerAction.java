@@ -0,0 +1,36 @@
+package ocsf.server;
+
+/**
+ * What happens when a client falls behind its
+ * <code> SlowConsumerPolicy </code>: more has been sent to it than it has
+ * read.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.SlowConsumerPolicy
+ */
+public enum SlowConsumerAction {
+	/**
+	 * The oldest messages not yet written are discarded, and counted, until
+	 * the client is back within the policy. In their place the client is
+	 * sent the gap marker of the server, if it has one, so it knows what it
+	 * missed.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The client is disconnected, and <code> clientException </code> is
+	 * called with an <code> IOException </code> saying how far behind it
+	 * was. The message that went over is not sent.
+	 */
+	DISCONNECT,
+
+	/**
+	 * What goes over is written to a file of its own, and read back when the
+	 * client has caught up: nothing is lost, and memory holds no more than
+	 * the policy allows.
+	 */
+	SPILL
+}
+// End of SlowConsumerAction enum
@@ -0,0 +1,176 @@
+package ocsf.server;
+
+import java.nio.file.Path;
+
+/**
+ * How far a client may fall behind what is sent to it: the messages and
+ * bytes waiting to be written to its socket, and what happens beyond. A
+ * client that reads slowly otherwise makes the server hold everything sent
+ * to it, or, without an outbound queue, blocks the threads that send to it.
+ * <p>
+ * The bytes of a message are known when it is queued if it travels as a
+ * frame, or was encoded once for a broadcast. Messages sent to one client
+ * over an object stream are only serialized when written, and count toward
+ * the messages only. A message on its own is always let through, however
+ * large.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setSlowConsumerPolicy(SlowConsumerPolicy)
+ * @see ocsf.server.ConnectionToClient#setSlowConsumerPolicy(SlowConsumerPolicy)
+ */
+public final class SlowConsumerPolicy {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * No limit: the behaviour of the original framework.
+	 */
+	public static final SlowConsumerPolicy NONE = new SlowConsumerPolicy(SlowConsumerAction.DISCONNECT, 0, 0, null);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * What happens to a client beyond the policy.
+	 */
+	private final SlowConsumerAction action;
+
+	/**
+	 * The most messages waiting, 0 for no limit.
+	 */
+	private final int maxMessages;
+
+	/**
+	 * The most bytes waiting, 0 for no limit.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Where messages are spilled, or null.
+	 */
+	private final Path spillDirectory;
+
+	// CONSTRUCTORS *****************************************************
+
+	private SlowConsumerPolicy(SlowConsumerAction action, int maxMessages, long maxBytes, Path spillDirectory) {
+		this.action = action;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.spillDirectory = spillDirectory;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns a policy discarding the oldest messages of a client beyond it.
+	 *
+	 * @param maxMessages
+	 *            the most messages waiting, 0 for no limit.
+	 * @param maxBytes
+	 *            the most bytes waiting, 0 for no limit.
+	 * @return the policy.
+	 * @see ocsf.server.AbstractServer#gapMarker(ConnectionToClient, int)
+	 */
+	public static SlowConsumerPolicy dropOldest(int maxMessages, long maxBytes) {
+		return of(SlowConsumerAction.DROP_OLDEST, maxMessages, maxBytes, null);
+	}
+
+	/**
+	 * Returns a policy disconnecting a client beyond it.
+	 *
+	 * @param maxMessages
+	 *            the most messages waiting, 0 for no limit.
+	 * @param maxBytes
+	 *            the most bytes waiting, 0 for no limit.
+	 * @return the policy.
+	 */
+	public static SlowConsumerPolicy disconnect(int maxMessages, long maxBytes) {
+		return of(SlowConsumerAction.DISCONNECT, maxMessages, maxBytes, null);
+	}
+
+	/**
+	 * Returns a policy spilling what goes beyond it to a file, one per
+	 * client, deleted when the client disconnects.
+	 *
+	 * @param maxMessages
+	 *            the most messages waiting in memory, 0 for no limit.
+	 * @param maxBytes
+	 *            the most bytes waiting in memory, 0 for no limit.
+	 * @param directory
+	 *            where the files are created.
+	 * @return the policy.
+	 */
+	public static SlowConsumerPolicy spill(int maxMessages, long maxBytes, Path directory) {
+		if (directory == null)
+			throw new NullPointerException("directory");
+		return of(SlowConsumerAction.SPILL, maxMessages, maxBytes, directory);
+	}
+
+	private static SlowConsumerPolicy of(SlowConsumerAction action, int maxMessages, long maxBytes,
+			Path spillDirectory) {
+		if (maxMessages < 0 || maxBytes < 0 || maxMessages == 0 && maxBytes == 0)
+			throw new IllegalArgumentException("the limits cannot be negative, and one must be positive");
+		return new SlowConsumerPolicy(action, maxMessages, maxBytes, spillDirectory);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if clients are watched at all.
+	 */
+	public boolean isEnabled() {
+		return maxMessages > 0 || maxBytes > 0;
+	}
+
+	/**
+	 * @return what happens to a client beyond the policy.
+	 */
+	public SlowConsumerAction getAction() {
+		return action;
+	}
+
+	/**
+	 * @return the most messages waiting, 0 for no limit.
+	 */
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	/**
+	 * @return the most bytes waiting, 0 for no limit.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return where messages are spilled, or null if they are not.
+	 */
+	public Path getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Tells if a client with so much waiting is beyond the policy.
+	 *
+	 * @param messages
+	 *            the messages waiting.
+	 * @param bytes
+	 *            their bytes.
+	 * @return true if the action of the policy applies.
+	 */
+	public boolean isExceeded(int messages, long bytes) {
+		return messages > 1 && (maxMessages > 0 && messages > maxMessages || maxBytes > 0 && bytes > maxBytes);
+	}
+
+	public String toString() {
+		if (!isEnabled())
+			return "none";
+		String limits = maxMessages == 0 ? maxBytes + " B"
+				: maxBytes == 0 ? maxMessages + " msgs" : maxMessages + " msgs or " + maxBytes + " B";
+		String beyond = action == SlowConsumerAction.SPILL ? "spill to " + spillDirectory
+				: action.name().toLowerCase().replace('_', ' ');
+		return "at most " + limits + " waiting, " + beyond + " beyond";
+	}
+}
+// End of SlowConsumerPolicy class
@@ -0,0 +1,601 @@
+package ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.CoalescingOutputStream;
+import ocsf.common.Compression;
+import ocsf.common.CountingObjectOutputStream;
+import ocsf.common.DeflatedMessage;
+import ocsf.common.Frames;
+import ocsf.common.Heartbeat;
+import ocsf.common.MessageCodec;
+import ocsf.common.ThreadMode;
+
+/**
+ * The connection used by the <code> THREAD_PER_CLIENT </code> and
+ * <code> VIRTUAL_THREAD_PER_CLIENT </code> engines. It owns a thread, platform
+ * or virtual, that waits for data from the socket. Messages are exchanged as a
+ * continuous object stream, or as frames over buffered streams when the
+ * server has a codec.
+ * <p>
+ * When the server has an outbound queue capacity, sent messages are queued and
+ * written by a virtual thread started whenever the queue stops being empty,
+ * so no writer thread exists while the client is idle. Messages are queued
+ * too when the server has a slow consumer policy, which is applied as they
+ * are. Frames and broadcast messages are encoded before being queued, so
+ * their bytes are known; other messages to an object stream are serialized
+ * when written, since their encoding depends on what the stream wrote
+ * before, unless they are spilled.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ServerEngine#THREAD_PER_CLIENT
+ * @see ocsf.server.ServerEngine#VIRTUAL_THREAD_PER_CLIENT
+ */
+final class SocketConnectionToClient extends ConnectionToClient implements Runnable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The most bytes read back from the spill file at once.
+	 */
+	private static final int SPILL_CHUNK = 64 * 1024;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The codec of the frames exchanged, or null for an object stream.
+	 */
+	private final MessageCodec codec;
+
+	/**
+	 * Stream used to read from the client, without a codec.
+	 */
+	private ObjectInputStream input;
+
+	/**
+	 * The buffered stream of the socket under the input streams. The reader
+	 * thread looks for the compression preamble in it, and creates the object
+	 * stream since it waits for the header of the client.
+	 */
+	private InputStream socketInput;
+
+	/**
+	 * Stream used to write to the client, without a codec.
+	 */
+	private CountingObjectOutputStream output;
+
+	/**
+	 * Stream used to read frames from the client, with a codec.
+	 */
+	private DataInputStream frameInput;
+
+	/**
+	 * The stream bytes are written to, which writes them to the socket as the
+	 * flush policy of the server says: the one under the object stream, where
+	 * broadcast messages encoded once for all the clients are written
+	 * directly, or the one receiving frames.
+	 */
+	private CoalescingOutputStream rawOutput;
+
+	/**
+	 * Serializes the writes of the threads sending to this client.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Messages waiting to be written, when the server has an outbound queue
+	 * capacity or a slow consumer policy.
+	 */
+	private final ConcurrentLinkedQueue<Object> outbound = new ConcurrentLinkedQueue<Object>();
+
+	/**
+	 * The messages dropped by the slow consumer policy since the writer last
+	 * sent a gap marker.
+	 */
+	private final AtomicInteger dropped = new AtomicInteger(0);
+
+	/**
+	 * What the slow consumer policy spilled and the writer has not read back
+	 * yet, or null before anything is spilled. Only used holding the spill
+	 * lock.
+	 */
+	private SpillFile spill = null;
+
+	/**
+	 * Serializes spilling with reading back, so that nothing is queued ahead
+	 * of what was spilled before it.
+	 */
+	private final Object spillLock = new Object();
+
+	/**
+	 * Indicates if a writer thread is draining the outbound queue.
+	 */
+	private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a new connection to a client.
+	 *
+	 * @param clientSocket
+	 *            contains the client's socket.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 * @exception IOException
+	 *                if an I/O error occur when creating the connection.
+	 */
+	SocketConnectionToClient(Socket clientSocket, AbstractServer server) throws IOException {
+		super(clientSocket, server);
+		codec = server.getCodec();
+
+		// Initialize the streams
+		try {
+			rawOutput = new CoalescingOutputStream(new MeteredOutputStream(clientSocket.getOutputStream()),
+					server.getFlushPolicy(), server.getWriteStatistics());
+			socketInput = new BufferedInputStream(new MeteredInputStream(clientSocket.getInputStream()));
+			if (codec == null) {
+				output = new CountingObjectOutputStream(rawOutput);
+				rawOutput.flush(); // The client waits for the stream header
+			} else {
+				frameInput = new DataInputStream(socketInput);
+			}
+		} catch (IOException ex) {
+			try {
+				closeAll();
+			} catch (Exception exc) {
+			}
+
+			throw ex; // Rethrow the exception.
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	@Override
+	void start() {
+		ThreadMode mode = getServer().getEngine() == ServerEngine.VIRTUAL_THREAD_PER_CLIENT
+				? ThreadMode.VIRTUAL : ThreadMode.PLATFORM;
+		mode.newThread(this).start(); // Start the thread waits for data from the socket
+	}
+
+	@Override
+	void writeMessage(Object msg) throws IOException {
+		SlowConsumerPolicy policy = getSlowConsumerPolicy();
+		if (getServer().getOutboundQueueCapacity() == 0 && !policy.isEnabled()) {
+			writeNow(msg);
+			return;
+		}
+
+		Object item = encodeQueued(msg);
+		if (policy.getAction() == SlowConsumerAction.SPILL) {
+			queueOrSpill(item, policy);
+		} else if (policy.getAction() == SlowConsumerAction.DISCONNECT && isBacklogged(policy, 1, sizeOf(item))) {
+			throw disconnectSlowConsumer(policy);
+		} else {
+			reserveOutbound(sizeOf(item));
+			outbound.add(item);
+			if (policy.getAction() == SlowConsumerAction.DROP_OLDEST)
+				dropOldest(policy);
+		}
+		scheduleWriter();
+	}
+
+	/**
+	 * The encoded message goes through the same queue as other messages; it is
+	 * told apart when written.
+	 */
+	@Override
+	void writeEncoded(EncodedMessage msg) throws IOException {
+		writeMessage(msg);
+	}
+
+	/**
+	 * Encodes a message about to be queued, unless it is a message for the
+	 * object stream alone.
+	 */
+	private Object encodeQueued(Object msg) throws IOException {
+		Compression compression = outboundCompression();
+		boolean deflating = compression.isEnabled();
+		if (msg instanceof EncodedMessage) {
+			EncodedMessage encoded = (EncodedMessage) msg;
+			return codec != null ? new Encoded(encoded.frameBytes(codec, deflating), false)
+					: new Encoded(encoded.streamBytes(deflating), true);
+		}
+		if (codec != null)
+			return new Encoded(Frames.encode(msg, codec, compression, getServer().getCompressionStatistics()), false);
+		return msg;
+	}
+
+	/**
+	 * @return the bytes of a queued message, 0 if they are not known.
+	 */
+	private static int sizeOf(Object item) {
+		return item instanceof Encoded ? ((Encoded) item).bytes.length : 0;
+	}
+
+	/**
+	 * Queues a message, or spills it if something is spilled already or the
+	 * queue would go beyond the policy.
+	 */
+	private void queueOrSpill(Object item, SlowConsumerPolicy policy) throws IOException {
+		IOException failure;
+		synchronized (spillLock) {
+			if ((spill == null || spill.isEmpty()) && !isBacklogged(policy, 1, sizeOf(item))) {
+				reserveOutbound(sizeOf(item));
+				outbound.add(item);
+				return;
+			}
+
+			try {
+				spillItem(item, policy);
+				return;
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+
+		// The client can no longer be kept up with
+		connectionFailed(failure);
+		throw failure;
+	}
+
+	/**
+	 * Appends a message to the spill file, created with the first. Must be
+	 * called holding the spill lock.
+	 */
+	private void spillItem(Object item, SlowConsumerPolicy policy) throws IOException {
+		if (readyToStop.get())
+			throw new SocketException("socket does not exist");
+
+		// Read back, the bytes are written as they are, so a message for the
+		// object stream is serialized on its own, like a broadcast message
+		byte[] bytes = item instanceof Encoded ? ((Encoded) item).bytes
+				: new EncodedMessage(item, outboundCompression(), getServer().getCompressionStatistics())
+						.streamBytes(outboundCompression().isEnabled());
+		if (spill == null)
+			spill = new SpillFile(policy.getSpillDirectory());
+		spill.append(ByteBuffer.wrap(bytes));
+		outboundSpilled(bytes.length);
+	}
+
+	/**
+	 * Discards the oldest queued messages while the client is beyond the
+	 * policy. The writer sends the gap marker before the next message.
+	 */
+	private void dropOldest(SlowConsumerPolicy policy) {
+		int count = 0;
+		Object item;
+		while (isBacklogged(policy, 0, 0) && (item = outbound.poll()) != null) {
+			releaseOutbound(1, sizeOf(item));
+			count++;
+		}
+		if (count > 0) {
+			outboundDropped(count);
+			dropped.addAndGet(count);
+		}
+	}
+
+	/**
+	 * Queues the oldest spilled bytes, once the queue is empty.
+	 * 
+	 * @return true if bytes were queued.
+	 */
+	private boolean readSpilled() throws IOException {
+		synchronized (spillLock) {
+			if (spill == null || spill.isEmpty() || !outbound.isEmpty())
+				return false;
+
+			ByteBuffer chunk = spill.read(SPILL_CHUNK);
+			reserveOutbound(chunk.remaining());
+			// The last bytes end a message that reset the handle table
+			outbound.add(new Encoded(chunk.array(), codec == null && spill.isEmpty()));
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if something is left for the writer.
+	 */
+	private boolean hasBacklog() {
+		if (!outbound.isEmpty() || dropped.get() > 0)
+			return true;
+		synchronized (spillLock) {
+			return spill != null && !spill.isEmpty();
+		}
+	}
+
+	/**
+	 * Writes a message to the object stream on the calling thread.
+	 */
+	private void writeNow(Object msg) throws IOException {
+		// Handlers of different clients may send to this one concurrently
+		synchronized (writeLock) {
+			writeItem(msg, false);
+		}
+	}
+
+	/**
+	 * Writes a message, or the shared bytes of a broadcast message. Must be
+	 * called holding the write lock.
+	 * 
+	 * @param more
+	 *            true if another message will be written right after this one.
+	 */
+	private void writeItem(Object msg, boolean more) throws IOException {
+		CoalescingOutputStream rawOutput = this.rawOutput;
+		if (rawOutput == null)
+			throw new SocketException("socket does not exist");
+
+		Compression compression = outboundCompression();
+		boolean deflating = compression.isEnabled();
+		if (msg instanceof Encoded) {
+			Encoded encoded = (Encoded) msg;
+			rawOutput.write(encoded.bytes);
+			if (encoded.reset)
+				output.reset();
+		} else if (codec != null) {
+			rawOutput.write(msg instanceof EncodedMessage ? ((EncodedMessage) msg).frameBytes(codec, deflating)
+					: Frames.encode(msg, codec, compression, getServer().getCompressionStatistics()));
+		} else if (msg instanceof EncodedMessage) {
+			// The bytes start by resetting the client's handle table;
+			// resetting ours afterwards puts both ends back in step
+			rawOutput.write(((EncodedMessage) msg).streamBytes(deflating));
+			output.reset();
+		} else {
+			output.writeMessage(DeflatedMessage.wrap(msg, compression, getServer().getCompressionStatistics()),
+					getServer().getResetPolicy());
+		}
+		rawOutput.endMessage(more);
+	}
+
+	@Override
+	int handleTableSize() {
+		CountingObjectOutputStream output = this.output;
+		return output == null ? 0 : output.getHandleCount();
+	}
+
+	private void scheduleWriter() {
+		if (writerScheduled.compareAndSet(false, true))
+			ThreadMode.VIRTUAL.newThread(this::drainOutbound).start();
+	}
+
+	/**
+	 * Writes the queued messages until the queue is empty. Runs on the writer
+	 * thread.
+	 */
+	private void drainOutbound() {
+		try {
+			do {
+				writeQueued();
+			} while (readSpilled());
+		} catch (IOException exception) {
+			connectionFailed(exception);
+		} finally {
+			writerScheduled.set(false);
+		}
+
+		// Messages queued, dropped or spilled after the last poll
+		if (hasBacklog() && rawOutput != null)
+			scheduleWriter();
+	}
+
+	/**
+	 * Writes the queued messages, leaving the last ones to the flush policy,
+	 * and the gap marker of the messages dropped before the next one.
+	 */
+	private void writeQueued() throws IOException {
+		// Polling under the write lock keeps the queue order on the wire
+		synchronized (writeLock) {
+			while (true) {
+				int count = dropped.getAndSet(0);
+				Object marker = count > 0 ? getServer().gapMarker(this, count) : null;
+				if (marker != null)
+					writeItem(marker, !outbound.isEmpty());
+
+				Object msg = outbound.poll();
+				if (msg == null)
+					return;
+				releaseOutbound(1, sizeOf(msg));
+				writeItem(msg, !outbound.isEmpty());
+			}
+		}
+	}
+
+	/**
+	 * Writes what is queued in memory; what was spilled is left, since it
+	 * may take long to write to a client this far behind.
+	 */
+	@Override
+	void flushOutbound() throws IOException {
+		synchronized (writeLock) {
+			writeQueued();
+			if (rawOutput != null)
+				rawOutput.flush();
+		}
+	}
+
+	@Override
+	void closeStreams() throws IOException {
+		discardOutbound();
+
+		try {
+			// Close the output streams, discarding what the socket can no
+			// longer take before the object stream tries to flush it
+			if (rawOutput != null)
+				rawOutput.close();
+			if (output != null)
+				output.close();
+
+			// Close the input streams
+			if (input != null)
+				input.close();
+			if (frameInput != null)
+				frameInput.close();
+		} finally {
+			// Set the streams to NULL no matter what
+			output = null;
+			rawOutput = null;
+			input = null;
+			socketInput = null;
+			frameInput = null;
+		}
+	}
+
+	/**
+	 * Empties the outbound queue of a closed connection, and deletes its
+	 * spill file.
+	 */
+	private void discardOutbound() {
+		int discarded = 0;
+		long bytes = 0;
+		Object msg;
+		while ((msg = outbound.poll()) != null) {
+			discarded++;
+			bytes += sizeOf(msg);
+		}
+		releaseOutbound(discarded, bytes);
+		dropped.set(0);
+
+		synchronized (spillLock) {
+			try {
+				if (spill != null)
+					spill.close();
+			} catch (IOException ex) {
+			}
+			spill = null;
+		}
+	}
+
+	// RUN METHOD -------------------------------------------------------
+
+	/**
+	 * Constantly reads the client's input stream. Sends all objects that are
+	 * read to the server. Not to be called.
+	 */
+	final public void run() {
+		AbstractServer server = getServer();
+		server.notifyClientConnected(this);
+
+		// This loop reads the input stream and responds to messages
+		// from clients
+		try {
+			readPreamble();
+			if (codec == null)
+				input = new ObjectInputStream(socketInput);
+
+			// The message from the client
+			Object msg;
+
+			while (!readyToStop.get()) {
+				// This block waits until it reads a message from the client
+				// and then sends it for handling by the server
+				msg = codec == null ? DeflatedMessage.unwrap(input.readObject(), server.getCompressionStatistics())
+						: Frames.read(frameInput, codec, server.getCompressionStatistics());
+
+				if (!(msg instanceof Heartbeat)) {
+					// Over a delaying rate limit, stop reading for a while:
+					// the client fills its socket and slows down
+					long wait;
+					while ((wait = admitMessage()) > 0)
+						TimeUnit.NANOSECONDS.sleep(wait);
+					if (wait < 0)
+						continue;
+				}
+				server.receiveMessageFromClient(msg, this);
+			}
+		} catch (Exception exception) {
+			connectionFailed(exception);
+		}
+	}
+
+	/**
+	 * Consumes the compression preamble, if the client starts with one, and
+	 * otherwise leaves the first bytes to the stream or frame they start.
+	 */
+	private void readPreamble() throws IOException {
+		byte[] first = new byte[Compression.PREAMBLE_LENGTH];
+		socketInput.mark(first.length);
+		int count = socketInput.readNBytes(first, 0, first.length);
+		if (count == first.length && Compression.isPreamble(first, 0))
+			setPeerInflates();
+		else
+			socketInput.reset();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Bytes queued ready for the socket: a frame, the stream bytes of a
+	 * broadcast or spilled message, or bytes read back from the spill file.
+	 */
+	private static final class Encoded {
+		final byte[] bytes;
+
+		/**
+		 * Indicates if the object stream is reset once the bytes are written.
+		 * Stream bytes start by resetting the client's handle table;
+		 * resetting ours after the last of them puts both ends back in step.
+		 */
+		final boolean reset;
+
+		Encoded(byte[] bytes, boolean reset) {
+			this.bytes = bytes;
+			this.reset = reset;
+		}
+	}
+
+	/**
+	 * Counts the bytes read from the socket. It sits under the buffer, so it
+	 * counts once per read from the socket rather than once per byte.
+	 */
+	private final class MeteredInputStream extends FilterInputStream {
+		MeteredInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				getMetrics().recordBytesIn(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count > 0)
+				getMetrics().recordBytesIn(count);
+			return count;
+		}
+	}
+
+	/**
+	 * Counts the bytes written to the socket, under the coalescing buffer.
+	 */
+	private final class MeteredOutputStream extends FilterOutputStream {
+		MeteredOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			getMetrics().recordBytesOut(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			getMetrics().recordBytesOut(len);
+		}
+	}
+}
+// End of SocketConnectionToClient class
@@ -0,0 +1,121 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The bytes of a slow client that did not fit in memory, in a temporary file
+ * appended to at the end and read from the front. Once everything written has
+ * been read back, the file is emptied and starts over, so it only grows as
+ * far as the client falls behind. The file is deleted when closed.
+ * <p>
+ * A spill file is not thread-safe: its connection uses it holding a lock.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.SlowConsumerAction#SPILL
+ */
+final class SpillFile implements Closeable {
+	// INSTANCE VARIABLES ***********************************************
+
+	private final FileChannel file;
+
+	/**
+	 * Where the next bytes are read.
+	 */
+	private long readPosition = 0;
+
+	/**
+	 * Where the next bytes are appended.
+	 */
+	private long writePosition = 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Creates an empty spill file.
+	 *
+	 * @param directory
+	 *            the directory of the file.
+	 * @exception IOException
+	 *                if the file cannot be created.
+	 */
+	SpillFile(Path directory) throws IOException {
+		Path path = Files.createTempFile(directory, "ocsf-spill-", ".tmp");
+		try {
+			file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.DELETE_ON_CLOSE);
+		} catch (IOException ex) {
+			Files.deleteIfExists(path);
+			throw ex;
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Appends the remaining bytes of a buffer, consuming them.
+	 *
+	 * @param bytes
+	 *            the bytes to append.
+	 * @exception IOException
+	 *                if the file cannot be written.
+	 */
+	void append(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining())
+			writePosition += file.write(bytes, writePosition);
+	}
+
+	/**
+	 * Reads the oldest bytes not read yet.
+	 *
+	 * @param max
+	 *            the most bytes read.
+	 * @return a buffer of the bytes read, ready to be written.
+	 * @exception IOException
+	 *                if the file cannot be read.
+	 */
+	ByteBuffer read(int max) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(max, size()));
+		while (chunk.hasRemaining()) {
+			if (file.read(chunk, readPosition + chunk.position()) < 0)
+				throw new EOFException("spill file truncated");
+		}
+		chunk.flip();
+		readPosition += chunk.remaining();
+
+		if (readPosition == writePosition) {
+			file.truncate(0);
+			readPosition = 0;
+			writePosition = 0;
+		}
+		return chunk;
+	}
+
+	/**
+	 * @return the bytes appended and not read yet.
+	 */
+	long size() {
+		return writePosition - readPosition;
+	}
+
+	/**
+	 * @return true if every byte appended has been read.
+	 */
+	boolean isEmpty() {
+		return writePosition == readPosition;
+	}
+
+	/**
+	 * Closes and deletes the file.
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+}
+// End of SpillFile class
@@ -0,0 +1,45 @@
+package common;
+
+/**
+ * The opcodes of the commands a chat client sends to the server, which the
+ * client writes in their compact form and the server reads in either form.
+ * Typed commands, from older clients or test scripts, keep working.
+ *
+ * @see CommandTable
+ */
+public final class ChatProtocol
+{
+  //Class variables *************************************************
+
+  /**
+   * #login &lt;loginId&gt; [last &lt;n&gt; | since &lt;sequence&gt;]
+   */
+  final public static int LOGIN = 1;
+
+  /**
+   * #join &lt;room&gt;
+   */
+  final public static int JOIN = 2;
+
+  /**
+   * #leave &lt;room&gt;
+   */
+  final public static int LEAVE = 3;
+
+  /**
+   * #msg &lt;loginId&gt; &lt;text&gt;
+   */
+  final public static int MSG = 4;
+
+  /**
+   * #history since &lt;sequence&gt;, the rest of a history cut short by "#more"
+   */
+  final public static int HISTORY = 5;
+
+  //Constructors ****************************************************
+
+  private ChatProtocol()
+  {
+  }
+}
+//End of ChatProtocol class
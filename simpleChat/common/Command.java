@@ -0,0 +1,183 @@
+package common;
+
+/**
+ * A command line parsed by a CommandTable: the command it names and where
+ * its arguments are in the line. The arguments are not cut out of the line
+ * until asked for, and most of them can be compared or read as numbers
+ * without that.
+ *
+ * Arguments are the words after the command name, separated by spaces, and
+ * numbered from 0.
+ *
+ * @see CommandTable
+ */
+public final class Command
+{
+  //Instance variables **********************************************
+
+  /**
+   * The line the command was parsed from.
+   */
+  private final String line;
+
+  /**
+   * The name of the command, without the #.
+   */
+  private final String name;
+
+  /**
+   * The opcode of the command, or 0 if it has none.
+   */
+  private final int opcode;
+
+  /**
+   * The place of the command in its table.
+   */
+  final int index;
+
+  /**
+   * Where every argument starts and ends in the line, two by two.
+   */
+  private final int[] bounds;
+
+  /**
+   * The number of arguments.
+   */
+  private final int count;
+
+  //Constructors ****************************************************
+
+  Command(String line, String name, int opcode, int index, int[] bounds, int count)
+  {
+    this.line = line;
+    this.name = name;
+    this.opcode = opcode;
+    this.index = index;
+    this.bounds = bounds;
+    this.count = count;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * @return The name of the command, without the #.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return The opcode of the command, or 0 if it has none.
+   */
+  public int getOpcode()
+  {
+    return opcode;
+  }
+
+  /**
+   * @return The number of arguments.
+   */
+  public int argumentCount()
+  {
+    return count;
+  }
+
+  /**
+   * @param i The number of an argument.
+   * @return The argument.
+   */
+  public String argument(int i)
+  {
+    check(i);
+    return line.substring(bounds[2 * i], bounds[2 * i + 1]);
+  }
+
+  /**
+   * @param i The number of an argument.
+   * @return The argument and everything after it, as typed, or "" if there
+   *         are fewer arguments.
+   */
+  public String rest(int i)
+  {
+    return i < count ? line.substring(bounds[2 * i]) : "";
+  }
+
+  /**
+   * @param from The number of the first argument.
+   * @param to The number of the argument after the last one.
+   * @return The arguments from one up to another, as typed, spaces
+   *         included.
+   */
+  public String arguments(int from, int to)
+  {
+    check(from);
+    check(to - 1);
+    return line.substring(bounds[2 * from], bounds[2 * (to - 1) + 1]);
+  }
+
+  /**
+   * Compares an argument to a word, without cutting it out of the line.
+   *
+   * @param i The number of an argument.
+   * @param word The word.
+   * @return true if the argument is that word.
+   */
+  public boolean argumentEquals(int i, String word)
+  {
+    check(i);
+    int start = bounds[2 * i];
+    return bounds[2 * i + 1] - start == word.length() && line.regionMatches(start, word, 0, word.length());
+  }
+
+  /**
+   * Reads an argument as a number, without cutting it out of the line.
+   *
+   * @param i The number of an argument.
+   * @return The number, or -1 if the argument is not a non-negative
+   *         decimal number.
+   */
+  public long argumentAsLong(int i)
+  {
+    check(i);
+    int start = bounds[2 * i];
+    int end = bounds[2 * i + 1];
+    if (end - start > 18)  //more would overflow
+      return -1;
+    long value = 0;
+    for (int j = start; j < end; j++) {
+      char c = line.charAt(j);
+      if (c < '0' || c > '9')
+        return -1;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * @return The command in its compact form: # and the opcode, followed by
+   *         the arguments as typed.
+   */
+  public String toCompact()
+  {
+    if (opcode == 0)
+      throw new IllegalStateException("#" + name + " has no opcode");
+    return CommandTable.compact(opcode, rest(0));
+  }
+
+  /**
+   * @return The command as typed, with its name even if it arrived in its
+   *         compact form.
+   */
+  public String toString()
+  {
+    return count == 0 ? "#" + name : "#" + name + " " + rest(0);
+  }
+
+  private void check(int i)
+  {
+    if (i < 0 || i >= count)
+      throw new IndexOutOfBoundsException("#" + name + " has " + count + " arguments, not " + (i + 1));
+  }
+}
+//End of Command class
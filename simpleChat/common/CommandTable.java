@@ -0,0 +1,274 @@
+package common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The commands a program understands, registered once, and the parsing of
+ * lines into them. A command is typed as # followed by its name and its
+ * arguments, separated by spaces. A command with an opcode may also travel
+ * in a compact form, # followed by the opcode as a single character below
+ * the space, which both ends of a connection agree on and is found without
+ * comparing names.
+ *
+ * Parsing looks the name up in a hash table built at registration, reading
+ * it in place: no regular expression, no split, and nothing allocated
+ * unless the line is a known command, which becomes one Command.
+ * Commands are registered before the table is used; it may then parse on
+ * any number of threads at once.
+ *
+ * @param <C> What the handlers work on, such as the client that sent the
+ *        command.
+ * @see Command
+ * @see ChatProtocol
+ */
+public final class CommandTable<C>
+{
+  //Class variables *************************************************
+
+  /**
+   * The largest opcode, since the compact form uses a character below the
+   * space.
+   */
+  final public static int MAX_OPCODE = ' ' - 1;
+
+  /**
+   * What a command does.
+   *
+   * @param <C> What it works on.
+   */
+  public interface Handler<C>
+  {
+    /**
+     * @param command The command with its arguments.
+     * @param context What it works on.
+     */
+    void execute(Command command, C context) throws IOException;
+  }
+
+  //Instance variables **********************************************
+
+  /**
+   * The names of the commands, in the order they were registered.
+   */
+  private String[] names = new String[8];
+
+  /**
+   * The opcodes of the commands, 0 for none.
+   */
+  private int[] opcodes = new int[8];
+
+  /**
+   * The handlers of the commands.
+   */
+  private Object[] handlers = new Object[8];
+
+  /**
+   * The number of commands.
+   */
+  private int size = 0;
+
+  /**
+   * Open addressing hash table of the names: each slot holds the place of a
+   * command plus one, or 0 if it is free.
+   */
+  private int[] slots = new int[16];
+
+  /**
+   * The place of the command of every opcode plus one, or 0.
+   */
+  private final int[] byOpcode = new int[MAX_OPCODE + 1];
+
+  //Class methods ***************************************************
+
+  /**
+   * Writes a command in its compact form.
+   *
+   * @param opcode The opcode of the command.
+   * @param arguments Its arguments, or "" for none.
+   * @return The line to send.
+   */
+  public static String compact(int opcode, String arguments)
+  {
+    checkOpcode(opcode);
+    char[] op = {'#', (char) opcode};
+    return arguments.isEmpty() ? new String(op) : new String(op) + " " + arguments;
+  }
+
+  private static void checkOpcode(int opcode)
+  {
+    if (opcode < 1 || opcode > MAX_OPCODE)
+      throw new IllegalArgumentException("invalid opcode: " + opcode);
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Registers a command that is only ever typed.
+   *
+   * @param name The name of the command, without the #.
+   * @param handler What it does.
+   * @return This table.
+   */
+  public CommandTable<C> register(String name, Handler<C> handler)
+  {
+    return register(name, 0, handler);
+  }
+
+  /**
+   * Registers a command.
+   *
+   * @param name The name of the command, without the #.
+   * @param opcode The opcode of its compact form, or 0 for none.
+   * @param handler What it does.
+   * @return This table.
+   */
+  public CommandTable<C> register(String name, int opcode, Handler<C> handler)
+  {
+    if (name.isEmpty() || name.indexOf(' ') >= 0 || name.charAt(0) <= MAX_OPCODE)
+      throw new IllegalArgumentException("invalid command name: " + name);
+    if (handler == null)
+      throw new NullPointerException("handler");
+    if (opcode != 0) {
+      checkOpcode(opcode);
+      if (byOpcode[opcode] != 0)
+        throw new IllegalArgumentException("opcode " + opcode + " is already used");
+    }
+    if (find(name, 0, name.length()) >= 0)
+      throw new IllegalArgumentException("#" + name + " is already registered");
+
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      opcodes = Arrays.copyOf(opcodes, size * 2);
+      handlers = Arrays.copyOf(handlers, size * 2);
+    }
+    names[size] = name;
+    opcodes[size] = opcode;
+    handlers[size] = handler;
+    size++;
+    if (opcode != 0)
+      byOpcode[opcode] = size;
+
+    if (size * 2 > slots.length) {  //keep the table at most half full
+      slots = new int[slots.length * 2];
+      for (int i = 0; i < size; i++)
+        insert(i);
+    } else {
+      insert(size - 1);
+    }
+    return this;
+  }
+
+  /**
+   * Parses a line into a command.
+   *
+   * @param line The line.
+   * @return The command, or null if the line is not a registered command.
+   */
+  public Command parse(String line)
+  {
+    int length = line.length();
+    if (length < 2 || line.charAt(0) != '#')
+      return null;
+
+    int index;
+    int end;
+    char first = line.charAt(1);
+    if (first <= MAX_OPCODE) {  //compact form
+      index = byOpcode[first] - 1;
+      end = 2;
+    } else {
+      end = line.indexOf(' ', 1);
+      if (end < 0)
+        end = length;
+      index = find(line, 1, end);
+    }
+    if (index < 0 || (end < length && line.charAt(end) != ' '))
+      return null;
+
+    //Where the words start and end, two by two
+    int[] bounds = new int[8];
+    int count = 0;
+    int i = end;
+    while (true) {
+      while (i < length && line.charAt(i) == ' ')
+        i++;
+      if (i == length)
+        break;
+      int start = i;
+      while (i < length && line.charAt(i) != ' ')
+        i++;
+      if (2 * count + 2 > bounds.length)
+        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+      bounds[2 * count] = start;
+      bounds[2 * count + 1] = i;
+      count++;
+    }
+    return new Command(line, names[index], opcodes[index], index, bounds, count);
+  }
+
+  /**
+   * Runs the handler of a command parsed by this table.
+   *
+   * @param command The command.
+   * @param context What the handler works on.
+   */
+  @SuppressWarnings("unchecked")
+  public void execute(Command command, C context) throws IOException
+  {
+    ((Handler<C>) handlers[command.index]).execute(command, context);
+  }
+
+  /**
+   * Parses a line and runs its handler, if it is a registered command.
+   *
+   * @param line The line.
+   * @param context What the handler works on.
+   * @return true if the line was a registered command.
+   */
+  public boolean dispatch(String line, C context) throws IOException
+  {
+    Command command = parse(line);
+    if (command == null)
+      return false;
+    execute(command, context);
+    return true;
+  }
+
+  /**
+   * Looks up the name found between two places of a string.
+   *
+   * @return The place of its command, or -1.
+   */
+  private int find(String s, int start, int end)
+  {
+    int mask = slots.length - 1;
+    for (int slot = hash(s, start, end) & mask; ; slot = (slot + 1) & mask) {
+      int index = slots[slot] - 1;
+      if (index < 0)
+        return -1;
+      String name = names[index];
+      if (name.length() == end - start && s.regionMatches(start, name, 0, name.length()))
+        return index;
+    }
+  }
+
+  private void insert(int index)
+  {
+    String name = names[index];
+    int mask = slots.length - 1;
+    int slot = hash(name, 0, name.length()) & mask;
+    while (slots[slot] != 0)
+      slot = (slot + 1) & mask;
+    slots[slot] = index + 1;
+  }
+
+  private static int hash(String s, int start, int end)
+  {
+    int h = 0;
+    for (int i = start; i < end; i++)
+      h = 31 * h + s.charAt(i);
+    return h ^ (h >>> 16);
+  }
+}
+//End of CommandTable class
@@ -5,7 +5,16 @@
 package edu.seg2105.client.backend;
 
 import ocsf.client.*;
+import common.ChatProtocol;
+import common.Command;
+import common.CommandTable;
+import ocsf.common.Compression;
+import ocsf.common.HeartbeatPolicy;
+import ocsf.common.MessageCodec;
+import ocsf.common.ResetPolicy;
+import ocsf.common.ThreadMode;
 import java.io.*;
+import java.util.concurrent.TimeUnit;
 
 import common.ChatIF;
 
@@ -18,6 +27,42 @@ import common.ChatIF;
  * @author Fran&ccedil;ois B&eacute;langer
  */
 public class ChatClient extends AbstractClient{
+  //Class variables *************************************************
+  
+  /**
+   * The length from which messages to the server are deflated.
+   */
+  final public static int COMPRESSION_THRESHOLD = 1024;
+  
+  /**
+   * The commands typed by the user. Those handled by the server are sent to
+   * it in their compact form.
+   */
+  private static final CommandTable<ChatClient> COMMANDS = new CommandTable<ChatClient>()
+    //#quit Causes the client to terminate gracefully. Make sure the connection to the server is terminated before exiting the program.
+    .register("quit", (command, client) -> client.quit())
+    //#logoff Causes the client to disconnect from the server, but not quit
+    .register("logoff", (command, client) -> {
+    	try {client.closeConnection(); }
+    	catch(IOException e){client.clientUI.display("Error when trying to disconnect from the server ");}
+    })
+    //#sethost <host> Calls the setHost method in the client. Only allowed if the client is logged off; displays an error message otherwise.
+    .register("sethost", (command, client) -> client.setAddress(command))
+    //#setport <port> Calls the setPort method in the client, with the same constraints as #sethost.
+    .register("setport", (command, client) -> client.setAddress(command))
+    //#login Causes the client to connect to the server. Only allowed if the client is not already connected; displays an error message otherwise.
+    //#login last <n> or #login since <sequence> also asks the server for what was said before.
+    .register("login", ChatProtocol.LOGIN, (command, client) -> client.login(command))
+    //#gethost Displays the current host name
+    .register("gethost", (command, client) -> client.clientUI.display("The current host is: " + client.getHost()))
+    //#getport Displays the current port number.
+    .register("getport", (command, client) -> client.clientUI.display("The current port is: " + client.getPort()))
+    //#join <room> and #leave <room> Join or leave a room on the server, which checks them.
+    .register("join", ChatProtocol.JOIN, (command, client) -> client.sendToServer(command.toCompact()))
+    .register("leave", ChatProtocol.LEAVE, (command, client) -> client.sendToServer(command.toCompact()))
+    //#msg <loginId> <text> Sends the text to that client only.
+    .register("msg", ChatProtocol.MSG, (command, client) -> client.sendToServer(command.toCompact()));
+  
   //Instance variables **********************************************
   
   /**
@@ -29,6 +74,18 @@ public class ChatClient extends AbstractClient{
 
   private boolean isConnected;
   private String loginId;
+  
+  /**
+   * The history asked for at the next login, such as "last 20" or
+   * "since 42", or null for none.
+   */
+  private String historyRequest;
+  
+  /**
+   * The sequence number of the last message to everyone received, or -1.
+   * A client that logs in again asks for what was said since.
+   */
+  private volatile long lastSequence = -1;
   //Constructors ****************************************************
   
   /**
@@ -42,10 +99,48 @@ public class ChatClient extends AbstractClient{
   public ChatClient(String host, int port, ChatIF clientUI,String loginId) 
     throws IOException 
   {
-    super(host, port); //Call the superclass constructor
+    this(host, port, clientUI, loginId, null);
+  }
+
+  /**
+   * Constructs an instance of the chat client.
+   *
+   * @param host The server to connect to.
+   * @param port The port number to connect on.
+   * @param clientUI The interface type variable.
+   * @param loginId The login id sent once connected.
+   * @param codec The codec of the server, or null for object streams.
+   */
+  public ChatClient(String host, int port, ChatIF clientUI, String loginId, MessageCodec codec) 
+    throws IOException 
+  {
+    this(host, port, clientUI, loginId, codec, ThreadMode.PLATFORM);
+  }
+
+  /**
+   * Constructs an instance of the chat client.
+   *
+   * @param host The server to connect to.
+   * @param port The port number to connect on.
+   * @param clientUI The interface type variable.
+   * @param loginId The login id sent once connected.
+   * @param codec The codec of the server, or null for object streams.
+   * @param readerMode The kind of thread waiting for messages, virtual when
+   *        many clients run in one program.
+   */
+  public ChatClient(String host, int port, ChatIF clientUI, String loginId, MessageCodec codec,
+    ThreadMode readerMode) throws IOException 
+  {
+    super(host, port, readerMode); //Call the superclass constructor
     this.clientUI = clientUI;
     this.loginId = loginId;
     this.isConnected = false;
+    setCodec(codec);
+    setResetPolicy(ResetPolicy.ALWAYS); //Lines are never sent twice
+    setTcpNoDelay(true); //Lines are typed one at a time, send each at once
+    setCompression(Compression.deflate(COMPRESSION_THRESHOLD)); //Long history replays shrink, lines do not
+    //A server gone without a word is given up, and reconnected to, after 90 s
+    setHeartbeatPolicy(HeartbeatPolicy.every(30, 90, TimeUnit.SECONDS));
     
     
     openConnection();
@@ -63,86 +158,92 @@ public class ChatClient extends AbstractClient{
    */
   public void handleMessageFromServer(Object msg) 
   {
-    clientUI.display(msg.toString());
+    String message = msg.toString();
     
+    //the history asked for did not fit at once: ask for what follows
+    if (message.startsWith("#more ")) {
+      try {
+        sendToServer(CommandTable.compact(ChatProtocol.HISTORY, "since " + message.substring(6)));
+      }
+      catch(IOException e) {
+        clientUI.display("The rest of the history could not be asked for");
+      }
+      return;
+    }
     
+    //"#<sequence> " starts what is said to everyone when the server keeps a history
+    long sequence = 0;
+    int i = 1;
+    while (message.startsWith("#") && i < message.length() && Character.isDigit(message.charAt(i))) {
+      sequence = sequence * 10 + (message.charAt(i++) - '0');
+    }
+    if (i > 1 && i < message.length() && message.charAt(i) == ' ') {
+      if (sequence <= lastSequence) {
+        return;   //already displayed
+      }
+      lastSequence = sequence;
+      message = message.substring(i + 1);
+    }
+    clientUI.display(message);
+  }
+  
+  /**
+   * @return The sequence number of the last message to everyone received,
+   *         or -1 if none was.
+   */
+  public long getLastSequence() {
+    return lastSequence;
   }
   /*
    * handle user command
    */
   public void handleCommand(String command) throws IOException{
-	  String[] com = command.split(" "); //split string
-	  
-	  switch(com[0]) {  //first string == commands
-	  
-	  //#quit Causes the client to terminate gracefully. Make sure the connection to the server is terminated before exiting the program.
-	  	case "#quit":  //command #quit terminate
-	  		quit();
-	  		break;
-	  		
-	  		
-	  		//#logoff Causes the client to disconnect from the server, but not quit
-	  	case "#logoff":      //coommand logoff 
-	  		try {closeConnection(); }
-	  		catch(IOException e){clientUI.display("Error when trying to disconnect from the server ");}
-	  		break;
-	  		
-	  		
-	     //#sethost <host> Calls the setHost method in the client. Only allowed if the client is logged off; displays an error message otherwise.
-	  	case "#sethost":    // command set host
-	  		if(isConnected() == false) {
-	  			if(com.length >1) {
-	  				setHost(com[1]);  
-	  				 clientUI.display("The host is set to: " + getHost());
-	  			}
-	  			else {clientUI.display("#sethost <host>");}
-	  		} 
-	  		else { throw new IOException("Error, please log off before setting host.");}
-	  		break;
-	  	
-	  		
-	  		//#setport <port> Calls the setPort method in the client, with the same constraints as #sethost.
-	  	case "#setport":     //command set port
-	  		if(isConnected == false) {
-	  			if(com.length > 1) {
-	  				
-	  				try {
-	  					int port = Integer.parseInt(com[1]);
-	  					setPort(port);
-	  					clientUI.display("The port is set to: " + getPort());
-	  				}
-	 
-	  				catch(NumberFormatException e) {clientUI.display("Invalid port, the port needs to be an integer.");}
-	  			} else {clientUI.display("#setport <port>");}
-	  		} 
-	  		else {throw new IOException("Error, please log off before setting port");}
-	  		break;
-	  		
-	  		
-	  	//#login Causes the client to connect to the server. Only allowed if the client is not already connected; displays an error message otherwise.
-	  	case "#login":    //command login
-	  		if(isConnected == false) {
-	  			try {
-	  				openConnection();
-	  			} catch(IOException e) {clientUI.display("Could not connect to the server.");}
-	  			
-	  		} else {clientUI.display("You are already connected to the server");}
-	  		break;
-	  		
-	  		//#gethost Displays the current host name
-	  	case "#gethost":    //command to get the current host 
-	  		clientUI.display("The current host is: " + getHost());
-	  		break;
-	  		
-	  	//#getport Displays the current port number.
-	  	case "#getport":     //command to get the current port
-	  		clientUI.display("The current port is: " + getPort());
-	  		break;
-	  		
-	    default : //if command not in the above 
-	    	clientUI.display("Command is unknown: " + command);
+	  if (!COMMANDS.dispatch(command, this)) { //if command not registered
+		  clientUI.display("Command is unknown: " + command);
+	  }
+  }
+  
+  /**
+   * Handles #sethost <host> and #setport <port>, only allowed if the client
+   * is logged off.
+   *
+   * @param command The command.
+   */
+  private void setAddress(Command command) throws IOException {
+	  boolean host = command.getName().equals("sethost");
+	  if (isConnected()) {
+		  throw new IOException("Error, please log off before setting " + (host ? "host." : "port"));
+	  }
+	  if (command.argumentCount() < 1) {
+		  clientUI.display("#" + command.getName() + (host ? " <host>" : " <port>"));
+	  } else if (host) {
+		  setHost(command.argument(0));  
+		  clientUI.display("The host is set to: " + getHost());
+	  } else {
+		  try {
+			  int port = Integer.parseInt(command.argument(0));
+			  setPort(port);
+			  clientUI.display("The port is set to: " + getPort());
+		  }
+		  catch(NumberFormatException e) {clientUI.display("Invalid port, the port needs to be an integer.");}
 	  }
   }
+  
+  /**
+   * Handles #login [last <n> | since <sequence>], only allowed if the client
+   * is not already connected.
+   *
+   * @param command The #login command.
+   */
+  private void login(Command command) {
+	  if(isConnected == false) {
+		  historyRequest = command.argumentCount() > 0 ? command.rest(0) : null;
+		  try {
+			  openConnection();
+		  } catch(IOException e) {clientUI.display("Could not connect to the server.");}
+		  
+	  } else {clientUI.display("You are already connected to the server");}
+  }
 
   /**
    * This method handles all data coming from the UI and commands            
@@ -158,10 +259,14 @@ public class ChatClient extends AbstractClient{
     	  handleCommand(message);
     	  
       } else {
-    	  try {sendToServer(message);}
-    	  catch(IOException e) {clientUI.display("Message could not be sent to server. Shutting down client");
-    	  	quit();
-    	  }
+    	  //queued, so typing goes on while the socket is congested
+    	  sendToServerAsync(message).whenComplete((sent, e) -> {
+    	  	if (e != null && getReconnectPolicy().isEnabled()) {
+    	  		clientUI.display("Message could not be sent to server: " + message);   //the connection comes back by itself
+    	  	} else if (e != null) {clientUI.display("Message could not be sent to server. Shutting down client");
+    	  		quit();
+    	  	}
+    	  });
     	  
       }
     }
@@ -198,10 +303,26 @@ public class ChatClient extends AbstractClient{
   	@Override
 	protected void connectionException(Exception exception) {
   	    isConnected = false;
+  	    if (getReconnectPolicy().isEnabled()) {
+  	    	clientUI.display("The connection to the server is lost, reconnecting");
+  	    	return;
+  	    }
 		clientUI.display("The server is shut down");
 		System.exit(0);
 	}
   	
+	/**
+	 * Hook method called when the reconnect policy gives up: the client
+	 * terminates, as when the connection is lost without a policy.
+	 * 
+	 * @param exception The failure of the last attempt.
+	 */
+  	@Override
+	protected void reconnectFailed(Exception exception) {
+		clientUI.display("The server could not be reached again");
+		System.exit(0);
+	}
+  	
 	/**
 	 * Hook method called after the connection has been closed. The default
 	 * implementation does nothing. The method may be overriden by subclasses to
@@ -226,9 +347,17 @@ public class ChatClient extends AbstractClient{
   		
   		
   		if(loginId != null && !loginId.isEmpty()) {
+  			String history = historyRequest;
+  			historyRequest = null;  //asked for once, later logins resume instead
+  			if (history == null && lastSequence >= 0) {
+  				history = "since " + lastSequence;   //what was said while disconnected
+  			} else if (history != null) {
+  				lastSequence = -1;   //what was asked for is displayed again, even if seen before
+  			}
   			try {
   			    
-  				sendToServer("#login " + loginId);  //the #login is sent to the server 
+  				sendToServer(CommandTable.compact(ChatProtocol.LOGIN, loginId
+  					+ (history == null ? "" : " " + history)));  //the #login is sent to the server 
   			}
   			catch(IOException e) { 
   				clientUI.display("The loginId could not be sent to the server"); 
@@ -5,9 +5,15 @@ package edu.seg2105.client.ui;
 
 import java.io.*;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 import common.ChatIF;
+import ocsf.common.MessageCodec;
+import ocsf.common.ReconnectPolicy;
 import edu.seg2105.client.backend.ChatClient;
 
 /**
@@ -50,10 +56,23 @@ public class ClientConsole implements ChatIF
    * @param port The port to connect on.
    */
   public ClientConsole(String loginId, String host,int port) //loginId is the first parameter if no login == quit()
+  {
+    this(loginId, host, port, null);
+  }
+
+  /**
+   * Constructs an instance of the ClientConsole UI.
+   *
+   * @param loginId The login id of the user.
+   * @param host The host to connect to.
+   * @param port The port to connect on.
+   * @param codec The codec of the server, or null for object streams.
+   */
+  public ClientConsole(String loginId, String host, int port, MessageCodec codec)
   {
     try 
     {
-      client= new ChatClient(host, port, this, loginId);  //ChatClient constructor
+      client= new ChatClient(host, port, this, loginId, codec);  //ChatClient constructor
       
       
     } 
@@ -113,7 +132,13 @@ public class ClientConsole implements ChatIF
   /**
    * This method is responsible for the creation of the Client UI.
    *
-   * @param args[0] The host to connect to.
+   * @param args[0] The login id.
+   * @param args[1] The host to connect to, possibly followed by other
+   *          servers tried when the connection is lost, as in
+   *          "host1,host2:5556".
+   * @param args[2] The port to connect on.
+   * @param args[3] The codec of the server ("serialization", "text" or
+   *          "binary") if it has one or uses the selector engine.
    */
   public static void main(String[] args) 
   {
@@ -134,6 +159,8 @@ public class ClientConsole implements ChatIF
     
     try {host = args[1];}
     catch(ArrayIndexOutOfBoundsException e ) {host ="LocalHost"; }
+    String[] servers = host.split(",");   //the first server, then the others to try
+    host = servers[0];
     
     
     
@@ -145,7 +172,30 @@ public class ClientConsole implements ChatIF
     
     
 
-    ClientConsole chat=  new ClientConsole(loginId,  host, port);
+    //3 optional: the codec of the server, "serialization" for a selector server without one
+    MessageCodec codec = null;
+    if (args.length > 3) {
+    	codec = MessageCodec.forName(args[3]);
+    	if (codec == null) {
+    		System.out.println("Unknown codec " + args[3] + ", using object streams");
+    	}
+    }
+
+    ClientConsole chat=  new ClientConsole(loginId,  host, port, codec);
+    
+    //A lost connection comes back by itself, to this server or the others, and
+    //the clients of a server that restarts spread their attempts over time
+    List<InetSocketAddress> alternates = new ArrayList<InetSocketAddress>();
+    for (int i = 1; i < servers.length; i++) {
+    	String[] server = servers[i].split(":");
+    	try {
+    		alternates.add(InetSocketAddress.createUnresolved(server[0],
+    			server.length > 1 ? Integer.parseInt(server[1]) : port));
+    	}
+    	catch(NumberFormatException e) {System.out.println("Invalid port for " + servers[i] + ", not used");}
+    }
+    chat.client.setAlternateServers(alternates);
+    chat.client.setReconnectPolicy(ReconnectPolicy.exponential(500, 30_000, TimeUnit.MILLISECONDS));
     chat.accept();  
   }
 }
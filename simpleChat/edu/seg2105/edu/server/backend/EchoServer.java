@@ -5,7 +5,28 @@ package edu.seg2105.edu.server.backend;
 
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import common.ChatProtocol;
+import common.Command;
+import common.CommandTable;
+import ocsf.common.AsyncLogger;
+import ocsf.common.Compression;
+import ocsf.common.FlushPolicy;
+import ocsf.common.HeartbeatPolicy;
+import ocsf.common.LogLevel;
+import ocsf.common.MessageCodec;
+import ocsf.common.ResetPolicy;
 import ocsf.server.*;
 
 /**
@@ -26,6 +47,135 @@ public class EchoServer extends AbstractServer
    */
   final public static int DEFAULT_PORT = 5555;
   
+  /**
+   * The most messages of the history sent to a client at login.
+   */
+  final public static int MAX_HISTORY = 1000;
+  
+  /**
+   * The number of recent messages to everyone sent to a client at login
+   * when it does not ask for the history.
+   */
+  final public static int RECENT_HISTORY = 500;
+  
+  /**
+   * The length from which messages to clients are deflated.
+   */
+  final public static int COMPRESSION_THRESHOLD = 1024;
+  
+  /**
+   * How the time of a message of the history is shown.
+   */
+  private static final DateTimeFormatter HISTORY_TIME =
+    DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+  
+  /**
+   * The login id of a client, once it logged in.
+   */
+  private static final AttributeKey<String> LOGIN_ID = AttributeKey.newKey("loginId");
+  
+  /**
+   * The rooms a client joined.
+   */
+  private static final AttributeKey<Set<String>> ROOMS = AttributeKey.newKey("rooms");
+  
+  /**
+   * The commands typed on the server console.
+   */
+  private static final CommandTable<EchoServer> SERVER_COMMANDS = new CommandTable<EchoServer>()
+    //#quit Causes the server to quit gracefully.
+    .register("quit", (command, server) -> server.quit())
+    //#stop Causes the server to stop listening for new clients.
+    .register("stop", (command, server) -> server.stopListening())
+    //#close Causes the server not only to stop listening for new clients, but also to disconnect all existing clients.
+    .register("close", (command, server) -> {
+    	try {server.close();}
+    	catch(IOException e) {System.out.println("Error while trying to close the server:  "+ e.getMessage());}
+    })
+    //#setport <port> Calls the setPort method in the server. Only allowed if the server is closed.
+    .register("setport", (command, server) -> server.setPort(command))
+    //#start Causes the server to start listening for new clients. Only valid if the server is stopped.
+    .register("start", (command, server) -> {
+    	if(server.isListening() == false) {
+    		try {server.listen();}
+    		catch(IOException e) {System.out.println("Error trying to start the server: " + e.getMessage());}
+    	}else {
+    		System.out.println("The server is already listening");
+    	}
+    })
+    //#getport Displays the current port number.
+    .register("getport", (command, server) -> System.out.println("The current port is: " + server.getPort()))
+    //#ratelimit [<messages/s> <burst> [drop|delay|disconnect] | off] Displays or sets how many messages every client may send.
+    .register("ratelimit", (command, server) -> server.setRateLimit(command))
+    //#userlimit <loginId> [<messages/s> <burst> [drop|delay|disconnect] | off | default] Displays or sets the limit of one login id.
+    .register("userlimit", (command, server) -> server.setUserLimit(command))
+    //#stats Displays the traffic and latencies also published over JMX.
+    .register("stats", (command, server) -> {
+    	System.out.println(server.getMetrics());
+    	System.out.println("compression: " + server.getCompressionStatistics());
+    	System.out.println("log: " + server.getLogger());
+    	System.out.println("rate limit: " + server.getRateLimit());
+    	System.out.println("slow consumers: " + server.getSlowConsumerPolicy());
+    });
+  
+  /**
+   * The commands of logged in clients, and #login. Either form of a command
+   * is understood, as typed or compact.
+   */
+  private static final CommandTable<ClientContext> CLIENT_COMMANDS = new CommandTable<ClientContext>()
+    .register("login", ChatProtocol.LOGIN, (command, context) -> context.server.login(command, context.client))
+    .register("join", ChatProtocol.JOIN, (command, context) -> context.server.handleRoomCommand(command, context.client))
+    .register("leave", ChatProtocol.LEAVE, (command, context) -> context.server.handleRoomCommand(command, context.client))
+    .register("msg", ChatProtocol.MSG, (command, context) -> context.server.handlePrivateMessage(command, context.client))
+    .register("history", ChatProtocol.HISTORY, (command, context) -> context.server.continueHistory(command, context.client));
+  
+  //Instance variables **********************************************
+  
+  /**
+   * The members of every room, so that a message to a room only costs
+   * as much as the room is large. A room exists while it has members.
+   * Each client also keeps the rooms it joined, under "rooms".
+   */
+  private final ConcurrentHashMap<String, Set<ConnectionToClient>> rooms =
+    new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+  
+  /**
+   * The connection of every logged in client, by login id, so that a
+   * private message is delivered without looking at anyone else. A login
+   * id can only be used by one connection at a time.
+   */
+  private final ConcurrentHashMap<String, ConnectionToClient> sessions =
+    new ConcurrentHashMap<String, ConnectionToClient>();
+  
+  /**
+   * The logged in clients sent what is said to everyone. A client is added
+   * under the broadcast lock once it was sent the history it asked for, so
+   * that it neither misses a message nor gets one twice.
+   */
+  private final Set<ConnectionToClient> listeners = ConcurrentHashMap.newKeySet();
+  
+  /**
+   * Where what is said to everyone is kept, or null to keep nothing.
+   */
+  private volatile MessageJournal journal;
+  
+  /**
+   * Keeps the messages to everyone in the order of their sequence numbers.
+   */
+  private final Object broadcastLock = new Object();
+  
+  /**
+   * Where what happens is logged, without waiting for the console.
+   */
+  private volatile AsyncLogger log = AsyncLogger.console();
+  
+  /**
+   * The rate limits set on the console for some login ids, applied to
+   * their connection when they log in.
+   */
+  private final ConcurrentHashMap<String, RateLimit> loginRateLimits =
+    new ConcurrentHashMap<String, RateLimit>();
+  
   //Constructors ****************************************************
   
   /**
@@ -37,6 +187,17 @@ public class EchoServer extends AbstractServer
   {
     super(port);
   }
+
+  /**
+   * Constructs an instance of the echo server.
+   *
+   * @param port The port number to connect on.
+   * @param engine The way client connections are serviced.
+   */
+  public EchoServer(int port, ServerEngine engine) 
+  {
+    super(port, engine);
+  }
   //Instance methods ************************************************
   
   /**
@@ -49,35 +210,17 @@ public class EchoServer extends AbstractServer
 	  
 	 String message = msg.toString();
 	 
-	 if(message.startsWith("#login ")) {
-		 System.out.println("Message received: " +message + " from "+ client.getInfo("loginId"));  //test case 2004
-		 if(client.getInfo("loginId") != null) { //clients already has a loginId
-			 try {
-				 client.sendToClient("Error: login command already used. The loginId command cannot be implemented more than once. Terminating client immediately");
-				 client.close();
-				}
-			 catch(IOException e) {}
-			 return;
-		 } 
-		 
-		 String[] com = message.split(" ", 2);   //  /2 the String
-		 if  (com.length<2) {
-			 try {
-			client.sendToClient("Error:  missing the loginID");
-			 client.close();
-			 }
-			 catch(IOException e) {}
-			 return;
-		 }
-		 
-		 String loginId = com[1];  //get value of loginId
-		 client.setInfo("loginId", loginId); 
-		 System.out.println(loginId+ " has logged on.");             // server see client is logged in
-		 this.sendToAllClients(loginId + " has logged on.");       // server send to all client that the client is logged in
+	 //Plain chat, most of what arrives, is not parsed at all
+	 Command command = message.startsWith("#") ? CLIENT_COMMANDS.parse(message) : null;
+	 
+	 if(command != null && command.getOpcode() == ChatProtocol.LOGIN) {
+		 try {CLIENT_COMMANDS.execute(command, new ClientContext(this, client));}
+		 catch(IOException e) {}
 	 } 
 	 else {  //else == not a logni message received == terminate connection
 		 
-		 if( client.getInfo("loginId") == null) {
+		 String loginId = client.getAttribute(LOGIN_ID);
+		 if( loginId == null) {
 			 try {
 				 client.sendToClient("Error: you nee to login in first");
 				 client.close();
@@ -88,12 +231,443 @@ public class EchoServer extends AbstractServer
 			 
 		 }
 		 
-		 String loginId = (String) client.getInfo("loginId");
-		 System.out.println("Message received: " + message + " from  " + loginId);    //prefixed by the ID
-		 this.sendToAllClients(loginId + "-> "+ message );
+		 log.sample(LogLevel.INFO, "Message received: {} from  {}", command == null ? message : command, loginId);    //prefixed by the ID
+		 
+		 if (command != null) {   //#join, #leave or #msg; other lines starting with # are chat
+			 try {CLIENT_COMMANDS.execute(command, new ClientContext(this, client));}
+			 catch(IOException e) {}
+			 return;
+		 }
+		 
+		 Set<String> joined = roomsOf(client);
+		 if (joined.isEmpty()) {   // not in any room: talk to everyone, as before rooms existed
+			 broadcast(loginId + "-> "+ message );
+		 } else {
+			 for (String room : joined) {
+				 sendToRoom(room, "[" + room + "] " + loginId + "-> " + message);
+			 }
+		 }
 	 }
 	 
   } 
+  
+  /**
+   * Handles "#login <loginId> [last <n> | since <sequence>]": the client
+   * owns the login id from now on, and is sent what was said before. The
+   * login id is all that follows #login, unless it ends with a request for
+   * the history, so that it may have spaces, as "John Smith".
+   *
+   * @param command The #login command.
+   * @param client The client that logs in.
+   */
+  private void login(Command command, ConnectionToClient client) throws IOException {
+	  log.info("Message received: {} from {}", command, client.getAttribute(LOGIN_ID));  //test case 2004
+	  if(client.getAttribute(LOGIN_ID) != null) { //clients already has a loginId
+		  client.sendToClient("Error: login command already used. The loginId command cannot be implemented more than once. Terminating client immediately");
+		  client.close();
+		  return;
+	  } 
+	  
+	  if  (command.argumentCount() < 1) {
+		  client.sendToClient("Error:  missing the loginID");
+		  client.close();
+		  return;
+	  }
+	  
+	  int history = historyArgument(command);
+	  String loginId = command.arguments(0, history);  //get value of loginId
+	  if (!startSession(loginId, client)) {
+		  client.sendToClient("Error: " + loginId + " is already logged on. Terminating client immediately");
+		  client.close();
+		  return;
+	  }
+	  
+	  RateLimit limit = loginRateLimits.get(loginId);
+	  if (limit != null) {
+		  client.setRateLimit(limit);   //set for this login id on the console
+	  }
+	  
+	  log.info("{} has logged on.", loginId);             // server see client is logged in
+	  synchronized (broadcastLock) {   //nothing is said between the history and what follows
+		  if (history < command.argumentCount()) {
+			  if (sendHistory(command, history, client)) {   //what was said before, if the client asked
+				  listen(client);
+			  }
+		  } else {
+			  sendRecent(client);   //otherwise what was said just before
+			  listen(client);
+		  }
+	  }
+	  broadcast(loginId + " has logged on.");       // server send to all client that the client is logged in
+  }
+  
+  /**
+   * Sends a message to every logged in client, and keeps it in the history
+   * if the server has a journal. The message is then preceded by its
+   * sequence number, as in "#42 alice-> hello", so that a client that comes
+   * back can ask for what it missed with "#login <loginId> since 42".
+   * Messages leave in the order of their numbers, so the last number a
+   * client saw is all it needs to remember.
+   *
+   * @param msg The message.
+   */
+  private void broadcast(String msg) {
+	  MessageJournal journal = this.journal;
+	  synchronized (broadcastLock) {
+		  if (journal == null) {
+			  this.broadcastToClients(msg, listeners);
+			  return;
+		  }
+		  
+		  long sequence;
+		  try {
+			  sequence = journal.append(msg.getBytes(StandardCharsets.UTF_8));
+		  }
+		  catch(IOException e) {
+			  log.warn("Could not keep the message in the history: {}", e.getMessage());
+			  this.broadcastToClients(msg, listeners);
+			  return;
+		  }
+		  this.broadcastToClients("#" + sequence + " " + msg, listeners);
+	  }
+  }
+  
+  /**
+   * Sends a client what is said to everyone from now on. Must be called
+   * holding the broadcast lock, once the client was sent what was said
+   * before.
+   *
+   * @param client The client that logged in.
+   */
+  private void listen(ConnectionToClient client) {
+	  listeners.add(client);
+	  if (!client.isConnected()) {   //closed meanwhile, maybe before endSession could see it
+		  listeners.remove(client);
+	  }
+  }
+  
+  /**
+   * Sends a client that logs in the history it asked for, oldest first:
+   * "last <n>" for the last n messages, "since <sequence>" for every
+   * message after that one. Each message is preceded by its sequence
+   * number and time, as in "#42 14:03:11 alice-> hello". At most
+   * MAX_HISTORY messages are sent; if more follow, the client is then sent
+   * "#more <sequence>" to ask for them with "#history since <sequence>".
+   * Must be called holding the broadcast lock.
+   *
+   * @param command The #login or #history command.
+   * @param history The number of the argument "last" or "since".
+   * @param client The client that logs in.
+   * @return false if the client was sent "#more", true once it has all it
+   *         asked for.
+   */
+  private boolean sendHistory(Command command, int history, ConnectionToClient client) {
+	  MessageJournal journal = this.journal;
+	  try {
+		  if (journal == null) {
+			  client.sendToClient("Error: the server keeps no history");
+			  return true;
+		  }
+		  
+		  long number = command.argumentAsLong(history + 1);
+		  
+		  List<MessageJournal.Entry> entries;
+		  if (command.argumentEquals(history, "last")) {
+			  entries = journal.readLast((int) Math.min(number, MAX_HISTORY));
+		  } else {
+			  entries = journal.read(number + 1, MAX_HISTORY);
+		  }
+		  
+		  for (MessageJournal.Entry entry : entries) {
+			  client.sendToClient("#" + entry.getSequence() + " "
+				  + HISTORY_TIME.format(Instant.ofEpochMilli(entry.getTimestamp())) + " "
+				  + new String(entry.getPayload(), StandardCharsets.UTF_8));
+		  }
+		  
+		  if (entries.size() == MAX_HISTORY && command.argumentEquals(history, "since")) {
+			  long last = entries.get(entries.size() - 1).getSequence();
+			  if (last < journal.getLastSequence()) {   //cut short: live messages would hide the gap
+				  client.sendToClient("#more " + last);
+				  return false;
+			  }
+		  }
+	  }
+	  catch(IOException e) {}
+	  return true;
+  }
+  
+  /**
+   * Handles "#history since <sequence>", which a client sends when told by
+   * "#more" that the history it asked for did not fit, until it has it all.
+   * Only then is it sent what is said to everyone.
+   *
+   * @param command The #history command.
+   * @param client The client that asks.
+   */
+  private void continueHistory(Command command, ConnectionToClient client) throws IOException {
+	  if (command.argumentCount() != 2 || !command.argumentEquals(0, "since") || command.argumentAsLong(1) < 0) {
+		  client.sendToClient("Error: the command is #history since <sequence>");
+		  return;
+	  }
+	  
+	  synchronized (broadcastLock) {
+		  if (listeners.contains(client)) {
+			  client.sendToClient("Error: the history was already sent");
+			  return;
+		  }
+		  if (sendHistory(command, 0, client)) {
+			  listen(client);
+		  }
+	  }
+  }
+  
+  /**
+   * Finds where a #login command asks for the history: "last <n>" or
+   * "since <sequence>" after the login id, ending the command.
+   *
+   * @param command The #login command.
+   * @return The number of the argument "last" or "since", or the number of
+   *         arguments if the command does not ask for the history.
+   */
+  private static int historyArgument(Command command) {
+	  int at = command.argumentCount() - 2;
+	  if (at >= 1 && (command.argumentEquals(at, "last") || command.argumentEquals(at, "since"))
+		  && command.argumentAsLong(at + 1) >= 0) {
+		  return at;
+	  }
+	  return command.argumentCount();
+  }
+  
+  /**
+   * Sends a client that logs in the last messages said to everyone, as
+   * they were sent, if the server keeps them in a broadcast ring. They
+   * were encoded when broadcast, so this is one write however many
+   * clients log in at once.
+   *
+   * @param client The client that logs in.
+   */
+  private void sendRecent(ConnectionToClient client) {
+	  BroadcastRing ring = getBroadcastRing();
+	  if (ring != null) {
+		  try {ring.replay(client, RECENT_HISTORY);}
+		  catch(IOException e) {}
+	  }
+  }
+  
+  /**
+   * Keeps what is said to everyone in a journal, from now on.
+   *
+   * @param journal The journal, or null to stop keeping the history.
+   */
+  public void setJournal(MessageJournal journal) {
+	  this.journal = journal;
+  }
+  
+  /**
+   * @return The journal of what is said to everyone, or null.
+   */
+  public MessageJournal getJournal() {
+	  return journal;
+  }
+  
+  /**
+   * Logs what happens to another logger from now on, such as one writing
+   * to a file. The previous one is left open.
+   *
+   * @param log The logger.
+   */
+  public void setLogger(AsyncLogger log) {
+	  if (log == null)
+		  throw new NullPointerException("log");
+	  this.log = log;
+  }
+  
+  /**
+   * @return Where what happens is logged.
+   */
+  public AsyncLogger getLogger() {
+	  return log;
+  }
+  
+  /**
+   * Handles #join and #leave from a logged in client.
+   *
+   * @param command The command.
+   * @param client The client that sent the command.
+   */
+  private void handleRoomCommand(Command command, ConnectionToClient client) {
+	  String loginId = client.getAttribute(LOGIN_ID);
+	  try {
+		  if (command.argumentCount() != 1) {
+			  client.sendToClient("Error: #" + command.getName() + " needs one room name");
+			  return;
+		  }
+		  
+		  String room = command.argument(0);
+		  Set<String> joined = roomsOf(client);
+		  if (command.getOpcode() == ChatProtocol.JOIN) {
+			  if (!joined.add(room)) {
+				  client.sendToClient("Error: you are already in room " + room);
+				  return;
+			  }
+			  rooms.compute(room, (name, members) -> {
+				  if (members == null) members = ConcurrentHashMap.newKeySet();
+				  members.add(client);
+				  return members;
+			  });
+			  if (!client.isConnected()) {   //closed meanwhile, maybe after leaveAllRooms
+				  removeFromRoom(room, client);
+				  return;
+			  }
+			  sendToRoom(room, loginId + " has joined room " + room);
+		  } else {
+			  if (!joined.contains(room)) {
+				  client.sendToClient("Error: you are not in room " + room);
+				  return;
+			  }
+			  sendToRoom(room, loginId + " has left room " + room);   //the client still hears it
+			  joined.remove(room);
+			  removeFromRoom(room, client);
+		  }
+	  }
+	  catch(IOException e) {}
+  }
+  
+  /**
+   * Handles "#msg <loginId> <text>" from a logged in client: the text goes
+   * to that client only, and back to the sender as a receipt.
+   *
+   * @param command The #msg command.
+   * @param client The client that sent the command.
+   */
+  private void handlePrivateMessage(Command command, ConnectionToClient client) {
+	  String loginId = client.getAttribute(LOGIN_ID);
+	  try {
+		  if (command.argumentCount() < 2) {
+			  client.sendToClient("Error: #msg <loginId> <text>");
+			  return;
+		  }
+		  
+		  String to = command.argument(0);
+		  String text = command.rest(1);
+		  ConnectionToClient target = sessions.get(to);
+		  if (target == null) {
+			  client.sendToClient("Error: " + to + " is not logged on");
+			  return;
+		  }
+		  try {
+			  target.sendToClient(loginId + " (private)-> " + text);
+		  }
+		  catch(IOException e) {
+			  client.sendToClient("Error: the message could not be delivered to " + to);
+			  return;
+		  }
+		  client.sendToClient("to " + to + " (private)-> " + text);
+	  }
+	  catch(IOException e) {}
+  }
+  
+  /**
+   * Records the connection of a client that logs in, and its login id on
+   * the connection. The login id is refused if another connection uses it,
+   * unless that connection is already closing and has just not been
+   * cleaned up yet.
+   *
+   * @param loginId The login id.
+   * @param client The connection of the client.
+   * @return true if the client now owns the login id.
+   */
+  private boolean startSession(String loginId, ConnectionToClient client) {
+	  ConnectionToClient existing = sessions.putIfAbsent(loginId, client);
+	  if (existing != null && (existing.isConnected() || !sessions.replace(loginId, existing, client))) {
+		  return false;
+	  }
+	  client.setAttribute(LOGIN_ID, loginId);
+	  if (!client.isConnected()) {   //closed meanwhile, maybe before endSession could see the login id
+		  sessions.remove(loginId, client);
+		  return false;
+	  }
+	  return true;
+  }
+  
+  /**
+   * Forgets the connection of a client that is gone, unless its login id
+   * already belongs to a newer connection.
+   */
+  private void endSession(ConnectionToClient client) {
+	  listeners.remove(client);
+	  String loginId = client.getAttribute(LOGIN_ID);
+	  if (loginId != null) {
+		  sessions.remove(loginId, client);
+	  }
+  }
+  
+  /**
+   * @param loginId A login id.
+   * @return The connection of the client logged in with it, or null.
+   */
+  public ConnectionToClient getSession(String loginId) {
+	  return sessions.get(loginId);
+  }
+  
+  /**
+   * Sends a message to the members of a room, encoded once for all of them.
+   *
+   * @param room The name of the room.
+   * @param msg The message.
+   */
+  public void sendToRoom(String room, Object msg) {
+	  Set<ConnectionToClient> members = rooms.get(room);
+	  if (members != null) {
+		  sendToClients(msg, members);
+	  }
+  }
+  
+  /**
+   * @param room The name of a room.
+   * @return The members of the room, empty if it does not exist.
+   */
+  public Set<ConnectionToClient> getRoomMembers(String room) {
+	  Set<ConnectionToClient> members = rooms.get(room);
+	  return members == null ? Collections.<ConnectionToClient>emptySet() : Collections.unmodifiableSet(members);
+  }
+  
+  /**
+   * Returns the rooms a client joined, kept on its connection. Created by
+   * the handlers of that client; read by leaveAllRooms too, which may run
+   * alongside them.
+   */
+  private Set<String> roomsOf(ConnectionToClient client) {
+	  Set<String> joined = client.getAttribute(ROOMS);
+	  if (joined == null) {
+		  joined = ConcurrentHashMap.newKeySet();
+		  Set<String> existing = client.setAttributeIfAbsent(ROOMS, joined);
+		  if (existing != null) joined = existing;
+	  }
+	  return joined;
+  }
+  
+  /**
+   * Removes a client that is gone from every room it joined.
+   */
+  private void leaveAllRooms(ConnectionToClient client) {
+	  Set<String> joined = client.getAttribute(ROOMS);
+	  if (joined != null) {
+		  for (String room : joined) {
+			  removeFromRoom(room, client);
+		  }
+	  }
+  }
+  
+  /**
+   * Removes a client from a room, and the room once it is empty.
+   */
+  private void removeFromRoom(String room, ConnectionToClient client) {
+	  rooms.computeIfPresent(room, (name, members) -> {
+		  members.remove(client);
+		  return members.isEmpty() ? null : members;
+	  });
+  }
   //handle message from ServerConsole
   public void  handleMessageFromServerUI(String message) throws IOException {
 	  if (message.startsWith("#")){
@@ -101,7 +675,7 @@ public class EchoServer extends AbstractServer
 		   
 	  } else {      // Any message originating from the end-user of the server should be prefixed by the string "SERVER MSG>
 		  System.out.println("SERVER MSG-> " + message);
-		  this.sendToAllClients( "SERVER MSG-> " +  message);
+		  broadcast( "SERVER MSG-> " +  message);
 	  }
   }
   
@@ -110,68 +684,140 @@ public class EchoServer extends AbstractServer
   
   //commands
   private void handleServerCommand(String command) throws IOException {
-	  String[] com = command.split(" ");  //split the string
+	  if (!SERVER_COMMANDS.dispatch(command, this)) { //if command not registered
+		  System.out.println("Command is unknown" );
+	  }
+  }
+  
+  /**
+   * Handles #quit: the server closes, the history is on disk, and the
+   * program ends.
+   */
+  private void quit() {
+	  try{close();}
+	  catch(IOException e){   }
+	  if (journal != null) {
+		  try {journal.close();}   //the history is on disk before leaving
+		  catch(IOException e) {System.out.println("Error while closing the history: " + e.getMessage());}
+	  }
+	  try {log.close();}   //the last lines are written before leaving
+	  catch(IOException e) {}
+	  System.exit(0);
+  }
+  
+  /**
+   * Handles #setport <port>, only allowed if the server is closed.
+   *
+   * @param command The #setport command.
+   */
+  private void setPort(Command command) {
+	  if(isListening() == false) {
+		  if (command.argumentCount() < 1) {
+			  System.out.println("#setport <port>");
+			  return;
+		  }
+		  try {
+			  int port = Integer.parseInt(command.argument(0));
+			  setPort(port);
+			  System.out.println("The port is set to:  " + getPort());
+		  }
+		  catch(NumberFormatException  e) {System.out.println("Invalid port, the port needs to be an integer.");}
+	  } else {
+		  System.out.println( "The server is still open. The server must be close before setting a port");
+	  }
+  }
+    
+  /**
+   * Handles "#ratelimit [&lt;messages/s&gt; &lt;burst&gt; [drop|delay|disconnect] | off]":
+   * displays or sets how many messages every client may send, except the
+   * login ids given a limit of their own. Takes effect at once.
+   *
+   * @param command The #ratelimit command.
+   */
+  private void setRateLimit(Command command) {
+	  if (command.argumentCount() == 0) {
+		  System.out.println("The rate limit is: " + getRateLimit());
+		  return;
+	  }
+	  RateLimit limit = parseRateLimit(command, 0);
+	  if (limit == null) {
+		  System.out.println("#ratelimit [<messages/s> <burst> [drop|delay|disconnect] | off]");
+		  return;
+	  }
+	  setRateLimit(limit);
+	  System.out.println("The rate limit is set to: " + limit);
+  }
+  
+  /**
+   * Handles "#userlimit &lt;loginId&gt; [&lt;messages/s&gt; &lt;burst&gt; [drop|delay|disconnect] | off | default]":
+   * displays or sets how many messages one login id may send, whatever the
+   * others may. "default" gives it the limit of everyone again. Takes
+   * effect at once if the login id is logged on, and at every login.
+   *
+   * @param command The #userlimit command.
+   */
+  private void setUserLimit(Command command) {
+	  String usage = "#userlimit <loginId> [<messages/s> <burst> [drop|delay|disconnect] | off | default]";
+	  if (command.argumentCount() == 0) {
+		  System.out.println(usage);
+		  return;
+	  }
+	  String loginId = command.argument(0);
+	  if (command.argumentCount() == 1) {
+		  RateLimit limit = loginRateLimits.get(loginId);
+		  System.out.println("The rate limit of " + loginId + " is: " + (limit == null ? getRateLimit() + " (everyone's)" : limit));
+		  return;
+	  }
 	  
-	  switch(com[0]) {
+	  RateLimit limit = null;   //null: the limit of everyone
+	  if (command.argumentCount() == 2 && command.argumentEquals(1, "default")) {
+		  loginRateLimits.remove(loginId);
+	  } else {
+		  limit = parseRateLimit(command, 1);
+		  if (limit == null) {
+			  System.out.println(usage);
+			  return;
+		  }
+		  loginRateLimits.put(loginId, limit);
+	  }
 	  
-	  //#quit Causes the server to quit gracefully.
-	  	case "#quit":  //command #quit terminate
-	  		try{close();}
-	  		catch(IOException e){   }
-	  		System.exit(0);
-	  		break;
-	  		
-	  	//#stop Causes the server to stop listening for new clients.
-	  	case "#stop":      //coommand stop
-	  		stopListening();
-	  		break;
-	  		
-	  	//#close Causes the server not only to stop listening for new clients, but also to disconnect all existing clients.
-	  	case "#close":    // command close
-	  		try {close();}
-	  		catch(IOException e) {System.out.println("Error while trying to close the server:  "+ e.getMessage());}
-	  		break;
-	  	//#setport <port> Calls the setPort method in the server. Only allowed if the server is closed.
-	  	case "#setport":     //command set port
-	  		if(isListening() == false) {
-	  			
-	  				try {
-	  					int port = Integer.parseInt(com[1]);
-	  					setPort(port);
-	  					System.out.println("The port is set to:  " + getPort());
-	  				}
-	  				catch(NumberFormatException  e) {System.out.println("Invalid port, the port needs to be an integer.");}
-	  				
-	  			
-	  		} else {
-	  			System.out.println( "The server is still open. The server must be close before setting a port");
-	  		}
-	  		
-	  		break;
-	  		
-	  	//#start Causes the server to start listening for new clients. Only valid if the server is stopped.
-	  	case "#start":    //command start
-	  		
-	  		if(isListening() == false) {
-	  			try {listen();}
-	  			catch(IOException e) {System.out.println("Error trying to start the server: " + e.getMessage());}
-	  		}else {
-	  			System.out.println("The server is already listening");
-	  		}
-	  		break;
-	  		
-	  	//#getport Displays the current port number.
-	  	case "#getport":     //command to get the current port
-	  		System.out.println("The current port is: " + getPort());
-	  		break;
-	  	
-	  		
-	    default : //if command not in the above 
-	    	System.out.println("Command is unknown" );
-	    
+	  ConnectionToClient client = sessions.get(loginId);
+	  if (client != null) {
+		  client.setRateLimit(limit);
 	  }
+	  System.out.println("The rate limit of " + loginId + " is set to: " + (limit == null ? getRateLimit() + " (everyone's)" : limit));
   }
-    
+  
+  /**
+   * Reads a rate limit from the arguments of a command, from the given
+   * one on: "&lt;messages/s&gt; &lt;burst&gt; [drop|delay|disconnect]", where
+   * over the limit messages are delayed unless said otherwise, or "off".
+   *
+   * @param command The command.
+   * @param first The number of the first argument of the limit.
+   * @return The limit, or null if the arguments are not one.
+   */
+  private static RateLimit parseRateLimit(Command command, int first) {
+	  int count = command.argumentCount() - first;
+	  if (count == 1 && command.argumentEquals(first, "off")) {
+		  return RateLimit.NONE;
+	  }
+	  if (count < 2 || count > 3) {
+		  return null;
+	  }
+	  long rate = command.argumentAsLong(first);
+	  long burst = command.argumentAsLong(first + 1);
+	  if (rate <= 0 || burst <= 0 || burst > Integer.MAX_VALUE) {
+		  return null;
+	  }
+	  OverLimitPolicy policy = OverLimitPolicy.DELAY;
+	  if (count == 3) {
+		  try {policy = OverLimitPolicy.valueOf(command.argument(first + 2).toUpperCase());}
+		  catch(IllegalArgumentException e) {return null;}
+	  }
+	  return RateLimit.perSecond(rate, (int) burst, policy);
+  }
+  
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
@@ -179,8 +825,7 @@ public class EchoServer extends AbstractServer
   @Override
   protected void serverStarted()
   {
-    System.out.println
-      ("Server listening for connections on port " + getPort());
+    log.info("Server listening for connections on port {}", getPort());
   }
   
   /**
@@ -190,37 +835,69 @@ public class EchoServer extends AbstractServer
   @Override
   protected void serverStopped()
   {
-    System.out.println
-      ("Server has stopped listening for connections.");
+    log.info("Server has stopped listening for connections.");
   }
   
   @Override
 	protected void clientConnected(ConnectionToClient client) {
-		System.out.println("A new client is connected to the server");
+		log.info("A new client is connected to the server");
 	}
 	
 	 @Override
 	synchronized protected void clientDisconnected(ConnectionToClient client) {
-		// Since we don't track which ID belongs to this client directly,
-		// remove by value.
-		String loginId = (String) client.getInfo("loginId"); 
+		// The framework already removed the client from the connections,
+		// remove it from its rooms and the sessions too
+		leaveAllRooms(client);
+		endSession(client);
+		
+		String loginId = client.getAttribute(LOGIN_ID); 
 		if(loginId != null) {
-			System.out.println(loginId + " has disconnected");
-			this.sendToAllClients(loginId + " has disconnected");
+			log.info("{} has disconnected", loginId);
+			broadcast(loginId + " has disconnected");
 		} else {
-			 System.out.println("A client has disconnected");
+			 log.info("A client has disconnected");
 		}
 		
 	}
 	
 	
+	/* 
+	 */
+	@Override
+	protected void clientRateLimited(ConnectionToClient client) {
+		String loginId = client.getAttribute(LOGIN_ID);
+		log.warn("{} sent too many messages, disconnecting", loginId != null ? loginId : client);
+		try {
+			client.sendToClient("Error: more than " + client.getRateLimit().getMessagesPerSecond()
+				+ " messages a second. Terminating client immediately");
+		}
+		catch(IOException e) {}
+	}
+	
+	/* 
+	 * Tells a client that reads too slowly how many lines it missed, and
+	 * how to get them back when the server keeps a history.
+	 */
+	@Override
+	protected Object gapMarker(ConnectionToClient client, int dropped) {
+		String loginId = client.getAttribute(LOGIN_ID);
+		String warning = "Warning: you are reading too slowly, " + dropped + " messages to you were dropped";
+		if (journal == null || loginId == null) {
+			return warning;
+		}
+		return warning + "; log in again with #login " + loginId + " last <n> to get them back";
+	}
+	
 	/* 
 	 */
 	@Override
 	synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
+		leaveAllRooms(client);   //the connection is closed, clientDisconnected is not called
+		endSession(client);
 		
-		if(client.getInfo("loginId") != null) { System.out.println("Exception for " +client.getInfo("loginId") +  ": "+ exception.getMessage()); }
-		else {System.out.println("Client exception: " + exception.getMessage() ); }
+		String loginId = client.getAttribute(LOGIN_ID);
+		if(loginId != null) { log.warn("Exception for {}: {}", loginId, exception.getMessage()); }
+		else {log.warn("Client exception: {}", exception.getMessage() ); }
 	}
 		
 	
@@ -228,7 +905,7 @@ public class EchoServer extends AbstractServer
 	
 	@Override
 	protected void listeningException(Throwable exception) {
-		System.out.println("Listen exception: "  + exception.getMessage());
+		log.warn("Listen exception: {}", exception.getMessage());
 	}
   
   
@@ -247,6 +924,11 @@ public class EchoServer extends AbstractServer
    *
    * @param args[0] The port number to listen on.  Defaults to 5555 
    *          if no argument is entered.
+   * @param args[1] "selector" to service the clients with the selector
+   *          engine, or "virtual" for one virtual thread per client,
+   *          instead of one platform thread per client.
+   * @param args[2] The codec exchanged with the clients: "serialization",
+   *          "text" or "binary". Object streams if omitted.
    */
   public static void main(String[] args) 
   {
@@ -261,7 +943,58 @@ public class EchoServer extends AbstractServer
       port = DEFAULT_PORT; //Set port to 5555
     }
 	
-    EchoServer sv = new EchoServer(port);
+    ServerEngine engine = ServerEngine.THREAD_PER_CLIENT;
+    if (args.length > 1 && args[1].equalsIgnoreCase("selector"))
+    {
+      engine = ServerEngine.SELECTOR; //Clients must then use a codec, "serialization" by default
+    }
+    else if (args.length > 1 && args[1].equalsIgnoreCase("virtual"))
+    {
+      engine = ServerEngine.VIRTUAL_THREAD_PER_CLIENT;
+    }
+	
+    EchoServer sv = new EchoServer(port, engine);
+    if (args.length > 2)
+    {
+      sv.setCodec(MessageCodec.forName(args[2])); //Clients must use the same codec
+    }
+    //Handle the messages of different clients in parallel
+    sv.setDispatchExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    //A client that reads slowly must not hold up the others
+    sv.setOutboundQueueCapacity(1024);
+    //Every line is a new string: forget it once sent, it costs one byte
+    sv.setResetPolicy(ResetPolicy.ALWAYS);
+    //A broadcast reaches every client at once: let the lines of a busy room
+    //share system calls, for at most a millisecond, and send them unbatched
+    sv.setFlushPolicy(FlushPolicy.coalesce(1, TimeUnit.MILLISECONDS, 16 * 1024));
+    sv.setTcpNoDelay(true);
+    //Under load, log one message in a hundred beyond the first thousand a second
+    sv.getLogger().setSampling(1000, 100);
+    //Deflate what is long enough to gain from it, once per broadcast, for
+    //the clients that can inflate it
+    sv.setCompression(Compression.deflate(COMPRESSION_THRESHOLD));
+    //Ping clients silent for 30 s and disconnect those silent for 90 s, so
+    //the connections of clients that vanished do not pile up
+    sv.setHeartbeatPolicy(HeartbeatPolicy.every(30, 90, TimeUnit.SECONDS));
+    //Nobody types 20 lines a second: slow down whoever pastes in a loop,
+    //instead of broadcasting for them every few microseconds
+    sv.setRateLimit(RateLimit.perSecond(20, 40, OverLimitPolicy.DELAY));
+    //A client 512 lines or 4 MB behind loses the oldest lines rather than
+    //making the server hold them, and is told how many it missed
+    sv.setSlowConsumerPolicy(SlowConsumerPolicy.dropOldest(512, 4L * 1024 * 1024));
+    //Keep what is said to everyone in ./history, at most 256 MB of it in
+    //16 MB segments; clients ask for it with #login <id> last <n>
+    try
+    {
+      sv.setJournal(new MessageJournal(Paths.get("history"), 16 * 1024 * 1024,
+        RetentionPolicy.keepBytes(256L * 1024 * 1024)));
+    }
+    catch (IOException ex)
+    {
+      System.out.println("The history could not be opened, it will not be kept: " + ex.getMessage());
+    }
+    //Clients that just log in get the last lines said to everyone from memory
+    sv.setBroadcastRing(new BroadcastRing(RECENT_HISTORY));
    
     try 
     {
@@ -276,5 +1009,21 @@ public class EchoServer extends AbstractServer
     ServerConsole console = new ServerConsole(sv);
     console.accept();
   }
+  
+  /**
+   * What a command of a client is executed with: the server and the client
+   * that sent it.
+   */
+  private static final class ClientContext
+  {
+    final EchoServer server;
+    final ConnectionToClient client;
+    
+    ClientContext(EchoServer server, ConnectionToClient client)
+    {
+      this.server = server;
+      this.client = client;
+    }
+  }
 }
 //End of EchoServer class
\ No newline at end of file